@@ -0,0 +1,76 @@
+package webbarometer.appenders;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost on the logging thread of copying an event into a {@link LogSlot}: with the message formatted right
+ * away, as before, against keeping its pattern and parameters for the sender thread to format. Also the cost of
+ * rendering a {@link PatternLayout} line into the slot's buffer against asking the layout for a String.
+ *
+ * In the appender's package because the slot is package-private.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EventCaptureBenchmark
+{
+	private final LogSlot slot = new LogSlot();
+	private LogEvent event;
+	private PatternLayout layout;
+	private LayoutRenderer renderer;
+
+	@Setup
+	public void setUp()
+	{
+		event = new Log4jLogEvent("webbarometer.benchmarks.EventCapture", null, null, Level.INFO,
+				new ParameterizedMessage("Processed request {} for {} in {}ms", new Object[] { 42, "customer", 17 }), null);
+		layout = PatternLayout.createLayout("%d %-5p [%t] %c{1} - %m%n", null, null, null, true, false, null, null);
+		renderer = new LayoutRenderer(layout, null);
+	}
+
+	@Benchmark
+	public String formatOnCaller()
+	{
+		slot.set(event, false);
+		return slot.message();
+	}
+
+	@Benchmark
+	public Object[] deferFormatting()
+	{
+		slot.set(event, false);
+		return slot.parameters;
+	}
+
+	@Benchmark
+	public String layoutToString()
+	{
+		return layout.toSerializable(event);
+	}
+
+	@Benchmark
+	public StringBuilder renderIntoSlot()
+	{
+		slot.render(renderer, event);
+		return slot.rendered;
+	}
+}
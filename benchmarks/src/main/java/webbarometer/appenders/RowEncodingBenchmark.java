@@ -0,0 +1,128 @@
+package webbarometer.appenders;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Level;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.bigquery.model.TableDataInsertAllRequest;
+import com.google.api.services.bigquery.model.TableRow;
+
+import webbarometer.utils.BigqueryUtils;
+
+/**
+ * Cost per row of building an insertAll request body: the old {@link TableRow} map per event serialized
+ * through the client's {@link JacksonFactory}, against {@link RowEncoder} writing into a recycled
+ * {@link RowBatch}. Run with {@code -prof gc} for the bytes allocated per row.
+ *
+ * In the appender's package because the encoder is package-private.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RowEncodingBenchmark
+{
+	private static final int ROWS = 500;
+	
+	/**
+	 * Counts the bytes written, so the body is not optimized away.
+	 */
+	private static final class CountingStream extends OutputStream
+	{
+		long count;
+		
+		@Override
+		public void write(int b)
+		{
+			count++;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len)
+		{
+			count += len;
+		}
+	}
+	
+	@Param({ "SEQUENCE", "CONTENT_HASH" })
+	public String insertIds;
+	
+	private final JacksonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+	private final LogSlot[] slots = new LogSlot[ROWS];
+	private final RowBatch batch = new RowBatch(64 * 1024, ROWS);
+	private final CountingStream out = new CountingStream();
+	private RowEncoder encoder;
+	
+	@Setup
+	public void setUp()
+	{
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < ROWS; i++)
+		{
+			LogSlot slot = new LogSlot();
+			slot.timeMillis = now + i;
+			slot.level = Level.INFO;
+			slot.loggerName = "webbarometer.benchmarks.RowEncoding";
+			slot.threadName = "worker-" + (i % 8);
+			slot.message = "Processed request " + i + " for \"customer\" in " + (i % 100) + "ms";
+			slots[i] = slot;
+		}
+		
+		encoder = new RowEncoder(new RowSchema(null, false, false), new HostMetadata("benchmark", null), InsertIdStrategy.valueOf(insertIds));
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public void tableRows(Blackhole blackhole) throws IOException
+	{
+		List<TableDataInsertAllRequest.Rows> rows = new ArrayList<TableDataInsertAllRequest.Rows>(ROWS);
+		for (LogSlot slot : slots)
+		{
+			String timestamp = BigqueryUtils.formatTimestamp(slot.timeMillis);
+			TableRow row = new TableRow();
+			row.set("timestamp", timestamp);
+			row.set("level", slot.level.toString());
+			row.set("logger", slot.loggerName);
+			row.set("message", slot.message);
+			row.set("thread", slot.threadName);
+			row.set("thrown", "");
+			row.set("host", "benchmark-host");
+			row.set("environment", "benchmark");
+			rows.add(new TableDataInsertAllRequest.Rows().setJson(row).setInsertId(timestamp));
+		}
+		
+		blackhole.consume(jsonFactory.toByteArray(new TableDataInsertAllRequest().setRows(rows)));
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public long rowEncoder() throws IOException
+	{
+		batch.clear();
+		for (LogSlot slot : slots)
+			encoder.encode(slot, batch);
+		
+		new InsertAllContent(batch, null, 0, null).writeTo(out);
+		return out.count;
+	}
+}
@@ -0,0 +1,72 @@
+package webbarometer.benchmarks;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import webbarometer.appenders.BigQueryAppender;
+
+/**
+ * Cost of {@link BigQueryAppender#append(LogEvent)} on the logging thread, as latency percentiles and,
+ * with {@code -prof gc}, allocation per event.
+ *
+ * With BLOCK the logging thread waits whenever the buffer is full, so once the buffer has filled up the
+ * score reflects how fast the sender drains it. DROP_NEWEST shows the cost of the hand-off alone, including
+ * dropping events the buffer has no room for.
+ */
+@BenchmarkMode({ Mode.AverageTime, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AppendBenchmark
+{
+	@Param({ "BLOCK", "DROP_NEWEST" })
+	public String overflowPolicy;
+	
+	@Param({ "8192" })
+	public int bufferSize;
+	
+	private BenchmarkLogging logging;
+	private BigQueryAppender appender;
+	private LogEvent event;
+	
+	@Setup
+	public void setUp() throws IOException, URISyntaxException
+	{
+		logging = new BenchmarkLogging(bufferSize, overflowPolicy, 500, 2, 4);
+		appender = logging.appender();
+		event = new Log4jLogEvent(AppendBenchmark.class.getName(), null, null, Level.INFO,
+				new SimpleMessage("Processed request for \"customer\" in 12ms"), null);
+	}
+	
+	@TearDown
+	public void tearDown()
+	{
+		logging.stop();
+	}
+	
+	@Benchmark
+	public void append()
+	{
+		appender.append(event);
+	}
+}
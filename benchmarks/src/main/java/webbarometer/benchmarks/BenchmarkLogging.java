@@ -0,0 +1,60 @@
+package webbarometer.benchmarks;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+
+import org.apache.logging.log4j.core.LoggerContext;
+
+import webbarometer.appenders.BigQueryAppender;
+import webbarometer.tests.FakeBigqueryServer;
+import webbarometer.utils.BigqueryUtils;
+
+/**
+ * A {@link BigQueryAppender} sending to a {@link FakeBigqueryServer} in the same JVM, configured from
+ * {@code bench-log4j2.xml}. The fake only counts the rows, so long runs do not fill the heap.
+ */
+class BenchmarkLogging
+{
+	static final String TABLE_NAME = "Log4jTestTable";
+	
+	final FakeBigqueryServer server;
+	final LoggerContext context;
+	
+	/**
+	 * Starts the fake server and a logger context whose root logger writes to the appender.
+	 */
+	BenchmarkLogging(int bufferSize, String overflowPolicy, int batchMaxRows, int senderThreads, int maxInFlight)
+			throws IOException, URISyntaxException
+	{
+		server = new FakeBigqueryServer(0);
+		server.setCaptureRows(false);
+		server.createTable(BigqueryUtils.DATASET_ID, TABLE_NAME);
+		server.start();
+		
+		System.setProperty("bench.rootUrl", server.getRootUrl());
+		System.setProperty("bench.bufferSize", Integer.toString(bufferSize));
+		System.setProperty("bench.overflowPolicy", overflowPolicy);
+		System.setProperty("bench.batchMaxRows", Integer.toString(batchMaxRows));
+		System.setProperty("bench.senderThreads", Integer.toString(senderThreads));
+		System.setProperty("bench.maxInFlight", Integer.toString(maxInFlight));
+		
+		context = new LoggerContext("benchmark", null, BenchmarkLogging.class.getResource("/bench-log4j2.xml").toURI());
+		context.start();
+	}
+	
+	BigQueryAppender appender()
+	{
+		return (BigQueryAppender) context.getConfiguration().getAppender("BIGQUERY");
+	}
+	
+	int rowsDelivered()
+	{
+		return server.getRowCount(BigqueryUtils.DATASET_ID, TABLE_NAME);
+	}
+	
+	void stop()
+	{
+		context.stop();
+		server.stop();
+	}
+}
@@ -0,0 +1,88 @@
+package webbarometer.benchmarks;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Events per second logged through a Logger by 1, 8 and 64 producer threads into an appender that sends
+ * to a fake insertAll endpoint in the same JVM. The buffer blocks when full, so the score is bounded by
+ * how fast the batches are encoded and sent. The parameters are the settings to tune: buffer size, rows
+ * per batch, sender threads and requests in flight.
+ *
+ * The fake server shares the CPUs with the producers, so compare settings with each other rather than
+ * reading the scores as BigQuery's throughput.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EndToEndBenchmark
+{
+	@Param({ "8192" })
+	public int bufferSize;
+	
+	@Param({ "100", "500" })
+	public int batchMaxRows;
+	
+	@Param({ "2", "4" })
+	public int senderThreads;
+	
+	@Param({ "4" })
+	public int maxInFlight;
+	
+	private BenchmarkLogging logging;
+	private Logger log;
+	
+	@Setup
+	public void setUp() throws IOException, URISyntaxException
+	{
+		logging = new BenchmarkLogging(bufferSize, "BLOCK", batchMaxRows, senderThreads, maxInFlight);
+		log = logging.context.getLogger(EndToEndBenchmark.class.getName());
+	}
+	
+	@TearDown
+	public void tearDown()
+	{
+		logging.stop();
+		System.out.println("Rows delivered to the fake insertAll endpoint: " + logging.rowsDelivered());
+	}
+	
+	@Benchmark
+	@Threads(1)
+	public void producers1()
+	{
+		log.info("Processed request for {} in {}ms", "customer", 12);
+	}
+	
+	@Benchmark
+	@Threads(8)
+	public void producers8()
+	{
+		log.info("Processed request for {} in {}ms", "customer", 12);
+	}
+	
+	@Benchmark
+	@Threads(64)
+	public void producers64()
+	{
+		log.info("Processed request for {} in {}ms", "customer", 12);
+	}
+}
@@ -0,0 +1,69 @@
+package webbarometer.benchmarks;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import webbarometer.utils.BigqueryUtils;
+
+/**
+ * Cost of formatting a Bigquery timestamp, against the shared {@link SimpleDateFormat} that
+ * {@link BigqueryUtils#formatDate(Date)} used before, locked so that it is correct under concurrency.
+ * Timestamps advance one millisecond per call, like a busy logger. Run with {@code -t 4} or more to see
+ * the contention.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FormatDateBenchmark
+{
+	@State(Scope.Thread)
+	public static class Clock
+	{
+		long millis = System.currentTimeMillis();
+	}
+	
+	private final SimpleDateFormat simpleDateFormat = newSimpleDateFormat();
+	
+	@Benchmark
+	public String formatDate(Clock clock)
+	{
+		return BigqueryUtils.formatDate(new Date(clock.millis++));
+	}
+	
+	@Benchmark
+	public String formatTimestamp(Clock clock)
+	{
+		return BigqueryUtils.formatTimestamp(clock.millis++);
+	}
+	
+	@Benchmark
+	public String lockedSimpleDateFormat(Clock clock)
+	{
+		synchronized (simpleDateFormat)
+		{
+			return simpleDateFormat.format(new Date(clock.millis++));
+		}
+	}
+	
+	private static SimpleDateFormat newSimpleDateFormat()
+	{
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format;
+	}
+}
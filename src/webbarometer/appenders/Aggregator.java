@@ -0,0 +1,272 @@
+package webbarometer.appenders;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.message.Message;
+
+/**
+ * Collapses identical events into one row with a count.
+ *
+ * Events are identical if they have the same logger, level, message template (the format of a parameterized
+ * message, so "Retrying {}" matches whatever the parameter was, or the formatted message if there is no format,
+ * as for a map message) and thrown exception class. The first event of
+ * a kind is copied into a {@link LogSlot} and held for the window; identical events logged in the meantime only
+ * bump its count and last time. When the window ends the slot is published into the {@link EventBuffer} as a
+ * single event, whose {@link FieldMapping.Source#COUNT} and {@link FieldMapping.Source#LAST_TIMESTAMP} columns
+ * tell how many events it stands for and until when, with the first event's message as the sample.
+ *
+ * At most {@code maxKeys} kinds are held at once. Events of a new kind beyond that are not aggregated but
+ * passed on as they are, so memory stays flat however many distinct messages are logged. Windows are closed,
+ * and their kinds evicted, by a background thread.
+ */
+class Aggregator implements Runnable
+{
+	/**
+	 * What makes events identical.
+	 */
+	private static final class Key
+	{
+		private final String loggerName;
+		private final Level level;
+		private final String template;
+		private final String thrownClass;
+		private final int hash;
+
+		Key(LogEvent event)
+		{
+			Message message = event.getMessage();
+			String format = message.getFormat();
+			this.loggerName = event.getLoggerName();
+			this.level = event.getLevel();
+			// Map and structured data messages have an empty format; their data is what tells them apart.
+			this.template = format == null || format.isEmpty() ? message.getFormattedMessage() : format;
+			this.thrownClass = event.getThrown() == null ? null : event.getThrown().getClass().getName();
+
+			int h = loggerName == null ? 0 : loggerName.hashCode();
+			h = 31 * h + level.hashCode();
+			h = 31 * h + (template == null ? 0 : template.hashCode());
+			h = 31 * h + (thrownClass == null ? 0 : thrownClass.hashCode());
+			this.hash = h;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key))
+				return false;
+
+			Key other = (Key) o;
+			return hash == other.hash && level == other.level && equal(loggerName, other.loggerName)
+					&& equal(template, other.template) && equal(thrownClass, other.thrownClass);
+		}
+
+		private static boolean equal(String a, String b)
+		{
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+
+	/**
+	 * The events of one kind in the current window.
+	 */
+	private static final class Aggregate
+	{
+		final LogSlot sample = new LogSlot();
+		final long windowEnd;
+
+		/**
+		 * The number of events, or -1 once the window is closed and no more may be added.
+		 */
+		final AtomicLong count = new AtomicLong(1);
+		volatile long lastMillis;
+
+		Aggregate(LogEvent first, boolean includeLocation, LayoutRenderer renderer, long windowEnd)
+		{
+			sample.set(first, includeLocation);
+			if (renderer != null)
+				sample.render(renderer, first);
+			this.lastMillis = sample.timeMillis;
+			this.windowEnd = windowEnd;
+		}
+
+		/**
+		 * @return
+		 * 		false if the window was closed in the meantime.
+		 */
+		boolean add(long timeMillis)
+		{
+			while (true)
+			{
+				long current = count.get();
+				if (current < 0)
+					return false;
+				if (count.compareAndSet(current, current + 1))
+				{
+					// Racing threads may both lose the other's time; it only shortens the span a little.
+					if (timeMillis > lastMillis)
+						lastMillis = timeMillis;
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * Closes the window and writes the count and last time into the sample.
+		 */
+		LogSlot close()
+		{
+			sample.count = count.getAndSet(-1);
+			sample.lastMillis = lastMillis;
+			return sample;
+		}
+	}
+
+	private final EventBuffer buffer;
+	private final AppenderMetrics metrics;
+	private final long windowMillis;
+	private final int maxKeys;
+	private final boolean includeLocation;
+	private final LayoutRenderer renderer;
+	private final ConcurrentHashMap<Key, Aggregate> aggregates;
+
+	private ScheduledExecutorService ticker;
+
+	/**
+	 * @param buffer
+	 * 		Where the aggregated events are published.
+	 * @param metrics
+	 * 		Counts the aggregated events, and the published ones as accepted.
+	 * @param windowMillis
+	 * 		How long identical events are collected before their row is sent.
+	 * @param maxKeys
+	 * 		The most kinds of events collected at once.
+	 * @param includeLocation
+	 * 		Whether to capture the caller's location of the first event of a kind.
+	 * @param renderer
+	 * 		Renders the first event of a kind with the appender's layout, or null if no column needs it.
+	 */
+	Aggregator(EventBuffer buffer, AppenderMetrics metrics, long windowMillis, int maxKeys, boolean includeLocation, LayoutRenderer renderer)
+	{
+		this.buffer = buffer;
+		this.metrics = metrics;
+		this.windowMillis = windowMillis;
+		this.maxKeys = maxKeys;
+		this.includeLocation = includeLocation;
+		this.renderer = renderer;
+		this.aggregates = new ConcurrentHashMap<Key, Aggregate>(Math.min(maxKeys, 1024));
+	}
+
+	/**
+	 * Counts the event into its aggregate, starting one if there is none and there is room.
+	 *
+	 * @return
+	 * 		false if the event was not taken and is to be published as it is.
+	 */
+	boolean absorb(LogEvent event)
+	{
+		Key key = new Key(event);
+		while (true)
+		{
+			Aggregate aggregate = aggregates.get(key);
+			if (aggregate != null)
+			{
+				if (aggregate.add(event.getTimeMillis()))
+				{
+					metrics.eventAggregated();
+					return true;
+				}
+
+				// Closed while we looked; it is on its way out of the map.
+				aggregates.remove(key, aggregate);
+				continue;
+			}
+
+			if (aggregates.size() >= maxKeys)
+				return false;
+
+			Aggregate created = new Aggregate(event, includeLocation, renderer, System.currentTimeMillis() + windowMillis);
+			aggregate = aggregates.putIfAbsent(key, created);
+			if (aggregate == null)
+				return true;
+		}
+	}
+
+	/**
+	 * Starts the background thread that closes the windows.
+	 *
+	 * @param name
+	 * 		The name of the owning appender, used to name the thread.
+	 */
+	void start(final String name)
+	{
+		ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "BigQueryAppender-" + name + "-aggregate");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long tick = Math.max(1, windowMillis / 4);
+		ticker.scheduleWithFixedDelay(this, tick, tick, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the background thread and publishes every aggregate, whether its window ended or not.
+	 */
+	void stop()
+	{
+		if (ticker != null)
+		{
+			ticker.shutdownNow();
+			try
+			{
+				ticker.awaitTermination(windowMillis, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		flush(true);
+	}
+
+	@Override
+	public void run()
+	{
+		flush(false);
+	}
+
+	private void flush(boolean all)
+	{
+		long now = System.currentTimeMillis();
+		for (Iterator<Map.Entry<Key, Aggregate>> i = aggregates.entrySet().iterator(); i.hasNext();)
+		{
+			Aggregate aggregate = i.next().getValue();
+			if (!all && aggregate.windowEnd > now)
+				continue;
+
+			i.remove();
+			if (buffer.publish(aggregate.close()))
+				metrics.eventAccepted();
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package webbarometer.appenders;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+
+/**
+ * Hands dead-lettered rows to another log4j {@link Appender}, e.g. a rolling file, as ERROR events whose
+ * message is the reason followed by the row JSON.
+ */
+class AppenderDeadLetterSink implements DeadLetterSink
+{
+	private final Appender appender;
+	private final String loggerName;
+
+	/**
+	 * @param appender
+	 * 		The fallback appender.
+	 * @param loggerName
+	 * 		The logger name stamped on the events, usually the BigQuery appender's name.
+	 */
+	AppenderDeadLetterSink(Appender appender, String loggerName)
+	{
+		this.appender = appender;
+		this.loggerName = loggerName;
+	}
+
+	@Override
+	public void deadLetter(String rowJson, String reason)
+	{
+		appender.append(new Log4jLogEvent(loggerName, null, AppenderDeadLetterSink.class.getName(), Level.ERROR,
+				new SimpleMessage(reason + ": " + rowJson), null));
+	}
+
+	/**
+	 * Does nothing: the fallback appender belongs to the configuration, which stops it.
+	 */
+	@Override
+	public void close()
+	{
+	}
+}
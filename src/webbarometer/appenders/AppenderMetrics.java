@@ -0,0 +1,365 @@
+package webbarometer.appenders;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Counters and histograms for one {@link BigQueryAppender}, published as a {@link BigQueryAppenderMXBean}.
+ *
+ * Logging threads only touch {@link LongAdder}s and the sender threads record into {@link Histogram}s, so
+ * keeping the metrics takes no locks. Optionally a one-line summary is logged to a fallback logger at a
+ * fixed interval; that logger must not write to the BigQuery appender itself.
+ */
+class AppenderMetrics implements BigQueryAppenderMXBean
+{
+	/**
+	 * The metrics currently registered under each name. A reconfigured appender registers before the one it
+	 * replaces stops, so the old one must only unregister the name while it still owns it.
+	 */
+	private static final Map<ObjectName, AppenderMetrics> owners = new HashMap<ObjectName, AppenderMetrics>();
+
+	private final EventBuffer buffer;
+	private final Sampler sampler;
+	private final DiskSpool spool;
+	private final GzipCompressor compressor;
+
+	private final LongAdder accepted = new LongAdder();
+	private final LongAdder aggregated = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder inserted = new LongAdder();
+	private final LongAdder spooled = new LongAdder();
+	private final LongAdder retries = new LongAdder();
+	private final LongAdder requestErrors = new LongAdder();
+	private final Histogram batchRows = new Histogram();
+	private final Histogram batchBytes = new Histogram();
+	private final Histogram insertMicros = new Histogram();
+
+	private ObjectName objectName;
+	private ScheduledExecutorService reporter;
+
+	/**
+	 * @param buffer
+	 * 		The appender's buffer, for the queue depth and drop counts.
+	 * @param sampler
+	 * 		The appender's sampler. May be null.
+	 * @param spool
+	 * 		The appender's spool. May be null.
+	 * @param compressor
+	 * 		The appender's compressor. May be null.
+	 */
+	AppenderMetrics(EventBuffer buffer, Sampler sampler, DiskSpool spool, GzipCompressor compressor)
+	{
+		this.buffer = buffer;
+		this.sampler = sampler;
+		this.spool = spool;
+		this.compressor = compressor;
+	}
+
+	void eventAccepted()
+	{
+		accepted.increment();
+	}
+
+	void eventAggregated()
+	{
+		aggregated.increment();
+	}
+
+	void rowsFailed(int rows)
+	{
+		failed.add(rows);
+	}
+
+	void rowsInserted(int rows)
+	{
+		inserted.add(rows);
+	}
+
+	void rowsSpooled(int rows)
+	{
+		spooled.add(rows);
+	}
+
+	void rowsRetried(int rows)
+	{
+		retries.add(rows);
+	}
+
+	void batchFlushed(int rows, long bytes)
+	{
+		batchRows.record(rows);
+		batchBytes.record(bytes);
+	}
+
+	/**
+	 * Records one insertAll request.
+	 *
+	 * @param nanos
+	 * 		How long it took.
+	 * @param succeeded
+	 * 		false if it failed as a whole; per-row errors still count as a success.
+	 */
+	void requestCompleted(long nanos, boolean succeeded)
+	{
+		insertMicros.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+		if (!succeeded)
+			requestErrors.increment();
+	}
+
+	/**
+	 * Registers the MBean, replacing one left behind by an earlier appender of the same name, e.g. after a
+	 * reconfiguration.
+	 */
+	void register(String name)
+	{
+		synchronized (owners)
+		{
+			try
+			{
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				objectName = new ObjectName("webbarometer.appenders:type=BigQueryAppender,name=" + ObjectName.quote(name));
+				if (server.isRegistered(objectName))
+					server.unregisterMBean(objectName);
+				server.registerMBean(new StandardMBean(this, BigQueryAppenderMXBean.class, true), objectName);
+				owners.put(objectName, this);
+			}
+			catch (JMException e)
+			{
+				System.err.println("Could not register BigQuery appender metrics: " + e.getMessage());
+				objectName = null;
+			}
+		}
+	}
+
+	/**
+	 * Logs {@link #toString()} to the given logger every {@code intervalMillis} on a background thread.
+	 */
+	void startReporting(final String name, String loggerName, long intervalMillis)
+	{
+		final Logger logger = LogManager.getLogger(loggerName);
+		reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "BigQueryAppender-" + name + "-metrics");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		reporter.scheduleAtFixedRate(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				logger.info("BigQueryAppender " + name + " " + AppenderMetrics.this);
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the reporting and unregisters the MBean, unless a newer appender of the same name has replaced it.
+	 */
+	void stop()
+	{
+		if (reporter != null)
+			reporter.shutdownNow();
+
+		synchronized (owners)
+		{
+			if (objectName != null && owners.get(objectName) == this)
+			{
+				owners.remove(objectName);
+				try
+				{
+					ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+				}
+				catch (JMException e)
+				{
+					// Already unregistered by someone else.
+				}
+			}
+			objectName = null;
+		}
+	}
+
+	@Override
+	public long getEventsAccepted()
+	{
+		return accepted.sum();
+	}
+
+	@Override
+	public long getEventsDropped()
+	{
+		long dropped = 0;
+		for (OverflowPolicy policy : OverflowPolicy.values())
+			dropped += buffer.getDropped(policy);
+
+		return dropped;
+	}
+
+	@Override
+	public long getEventsAggregated()
+	{
+		return aggregated.sum();
+	}
+
+	@Override
+	public long getEventsSuppressed()
+	{
+		return sampler == null ? 0 : sampler.getSuppressed();
+	}
+
+	@Override
+	public long getRowsFailed()
+	{
+		return failed.sum();
+	}
+
+	@Override
+	public long getRowsInserted()
+	{
+		return inserted.sum();
+	}
+
+	@Override
+	public long getRowsSpooled()
+	{
+		return spooled.sum();
+	}
+
+	@Override
+	public long getRetries()
+	{
+		return retries.sum();
+	}
+
+	@Override
+	public int getQueueDepth()
+	{
+		return buffer.size();
+	}
+
+	@Override
+	public int getQueueCapacity()
+	{
+		return buffer.capacity();
+	}
+
+	@Override
+	public long getSpoolBytes()
+	{
+		return spool == null ? 0 : spool.sizeBytes();
+	}
+
+	@Override
+	public long getBatches()
+	{
+		return batchRows.getCount();
+	}
+
+	@Override
+	public double getBatchRowsMean()
+	{
+		return batchRows.getMean();
+	}
+
+	@Override
+	public long getBatchRowsP50()
+	{
+		return batchRows.getPercentile(50);
+	}
+
+	@Override
+	public long getBatchRowsP99()
+	{
+		return batchRows.getPercentile(99);
+	}
+
+	@Override
+	public double getBatchBytesMean()
+	{
+		return batchBytes.getMean();
+	}
+
+	@Override
+	public long getBatchBytesP50()
+	{
+		return batchBytes.getPercentile(50);
+	}
+
+	@Override
+	public long getBatchBytesP99()
+	{
+		return batchBytes.getPercentile(99);
+	}
+
+	@Override
+	public long getRequests()
+	{
+		return insertMicros.getCount();
+	}
+
+	@Override
+	public long getRequestErrors()
+	{
+		return requestErrors.sum();
+	}
+
+	@Override
+	public long getInsertLatencyMillisP50()
+	{
+		return insertMicros.getPercentile(50) / 1000;
+	}
+
+	@Override
+	public long getInsertLatencyMillisP90()
+	{
+		return insertMicros.getPercentile(90) / 1000;
+	}
+
+	@Override
+	public long getInsertLatencyMillisP99()
+	{
+		return insertMicros.getPercentile(99) / 1000;
+	}
+
+	@Override
+	public long getInsertLatencyMillisMax()
+	{
+		return insertMicros.getMax() / 1000;
+	}
+
+	@Override
+	public double getCompressionRatio()
+	{
+		return compressor == null ? 1 : compressor.getRatio();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("accepted=%d dropped=%d suppressed=%d aggregated=%d failed=%d inserted=%d spooled=%d retries=%d queue=%d/%d spoolBytes=%d"
+				+ " batches=%d rows/batch p50=%d p99=%d bytes/batch p50=%d p99=%d requests=%d errors=%d latency ms p50=%d p90=%d p99=%d max=%d",
+				getEventsAccepted(), getEventsDropped(), getEventsSuppressed(), getEventsAggregated(), getRowsFailed(), getRowsInserted(), getRowsSpooled(), getRetries(),
+				getQueueDepth(), getQueueCapacity(), getSpoolBytes(), getBatches(), getBatchRowsP50(), getBatchRowsP99(),
+				getBatchBytesP50(), getBatchBytesP99(), getRequests(), getRequestErrors(), getInsertLatencyMillisP50(),
+				getInsertLatencyMillisP90(), getInsertLatencyMillisP99(), getInsertLatencyMillisMax());
+	}
+}
@@ -0,0 +1,512 @@
+package webbarometer.appenders;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background flush stage for the {@link BigQueryAppender}.
+ *
+ * Events are handed over through an {@link EventBuffer} and a single sender thread encodes them into one
+ * {@link RowBatch} per table, as picked by the {@link TableRouter}. A batch is flushed as soon as it reaches
+ * {@code maxRows} rows or {@code maxBytes} request bytes; a row that would take it past {@code maxBytes} is
+ * moved into the next batch instead, so requests are never cut by BigQuery. A row larger than
+ * {@code maxRowBytes} on its own is dead-lettered rather than sent to be rejected. All open batches are
+ * flushed once the first row in any of them has waited {@code lingerMillis}. Sent batches are recycled. Batches
+ * are handed to a {@link SenderPool} and sent through a {@link RetryingInserter}; rows still failing after
+ * the retries are written to the {@link DiskSpool}, if there is one. In {@link DeliveryMode#LOAD} batches are
+ * instead appended to the staging files of a {@link LoadJobSender}, right on the sender thread.
+ *
+ * On stop the sender drains the buffer with batches {@value #DRAIN_FACTOR} times the usual size, until a
+ * deadline. Rows it cannot send by then, whether still buffered, batched or in flight, go to the spool, the
+ * fallback file, or the dead-letter sink, in that order of preference. Alternatively the buffered events can be
+ * handed to the buffer of the appender replacing this one.
+ */
+class BatchingSender implements Runnable, RingBuffer.Handler<LogSlot>
+{
+	/**
+	 * The initial size of a batch's byte buffer; it grows as needed and keeps its size when recycled.
+	 */
+	private static final int INITIAL_BATCH_BYTES = 64 * 1024;
+
+	/**
+	 * How much larger batches may grow while draining on stop.
+	 */
+	static final int DRAIN_FACTOR = 4;
+
+	/**
+	 * BigQuery's limits for a single insertAll request.
+	 */
+	private static final int MAX_REQUEST_ROWS = 10000;
+	private static final long MAX_REQUEST_BYTES = 9 * 1024 * 1024;
+
+	/**
+	 * How long stopping waits for the sender thread after the deadline, once it has been interrupted.
+	 */
+	private static final long INTERRUPT_GRACE_MILLIS = 1000;
+
+	private final RetryingInserter inserter;
+	private final SenderPool pool;
+	private final TableRouter router;
+	private final EventBuffer buffer;
+	private final DiskSpool spool;
+	private final LoadJobSender loader;
+	private final DeadLetterSink fallback;
+	private final RowEncoder encoder;
+	private final AppenderMetrics metrics;
+	private final int maxRows;
+	private final long maxBytes;
+	private final int maxRowBytes;
+	private final long lingerMillis;
+
+	private final ConcurrentLinkedQueue<RowBatch> freeBatches = new ConcurrentLinkedQueue<RowBatch>();
+
+	/**
+	 * The destinations with a non-empty batch.
+	 */
+	private final List<TableRouter.Destination> open = new ArrayList<TableRouter.Destination>();
+
+	/**
+	 * A destination whose batch reached a size limit, flushed once the current event has been handled.
+	 */
+	private TableRouter.Destination full;
+
+	/**
+	 * When the open batches are flushed, set when the first of them gets its first row.
+	 */
+	private long deadline;
+
+	private volatile boolean running;
+	private Thread thread;
+
+	/**
+	 * Set by {@link #stop(long, EventBuffer)}: when the drain has to end, as a {@link System#nanoTime()}, and
+	 * the buffer to hand the buffered events to instead of sending them.
+	 */
+	private volatile long drainDeadline;
+	private volatile EventBuffer successor;
+	private boolean draining;
+
+	/**
+	 * @param inserter
+	 * 		Sends the batches.
+	 * @param pool
+	 * 		Runs the inserts.
+	 * @param router
+	 * 		Picks the table of each event. The table is the pool's ordering key.
+	 * @param buffer
+	 * 		The buffer the logging threads publish into.
+	 * @param encoder
+	 * 		Encodes buffered events into rows.
+	 * @param spool
+	 * 		Where rows that exhausted their retries are written. May be null, in which case they are dead-lettered.
+	 * @param loader
+	 * 		Stages the batches for load jobs, or null to stream them through the inserter.
+	 * @param fallback
+	 * 		Where rows not sent by the stop deadline are written if there is no spool. May be null, in which case
+	 * 		they are dead-lettered.
+	 * @param maxRows
+	 * 		The maximum number of rows in a single insertAll request.
+	 * @param maxBytes
+	 * 		The maximum encoded size of the rows in a single insertAll request.
+	 * @param maxRowBytes
+	 * 		The maximum encoded size of a single row.
+	 * @param lingerMillis
+	 * 		How long a row may wait for more rows before its batch is flushed.
+	 * @param metrics
+	 * 		Records the batches and the rows that were spooled or could not be encoded.
+	 */
+	BatchingSender(RetryingInserter inserter, SenderPool pool, TableRouter router, EventBuffer buffer, RowEncoder encoder, DiskSpool spool, LoadJobSender loader, DeadLetterSink fallback, int maxRows, long maxBytes, int maxRowBytes, long lingerMillis,
+			AppenderMetrics metrics)
+	{
+		this.inserter = inserter;
+		this.pool = pool;
+		this.router = router;
+		this.buffer = buffer;
+		this.encoder = encoder;
+		this.spool = spool;
+		this.loader = loader;
+		this.fallback = fallback;
+		this.maxRows = maxRows;
+		this.maxBytes = maxBytes;
+		this.maxRowBytes = maxRowBytes;
+		this.lingerMillis = lingerMillis;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Starts the sender thread.
+	 *
+	 * @param name
+	 * 		The name of the owning appender, used to name the thread.
+	 */
+	void start(String name)
+	{
+		running = true;
+		thread = new Thread(this, "BigQueryAppender-" + name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Tells the sender thread to flush whatever is buffered and exit, and waits for it.
+	 *
+	 * @param timeoutMillis
+	 * 		How long the buffered events and in-flight requests may take to be sent. What is not sent by then is
+	 * 		spooled or written to the fallback.
+	 * @param successor
+	 * 		The buffer of an appender taking over from this one, to move the buffered events to instead of
+	 * 		sending them, or null.
+	 */
+	void stop(long timeoutMillis, EventBuffer successor)
+	{
+		this.successor = successor;
+		this.drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		running = false;
+		if (thread == null)
+			return;
+
+		buffer.wake(thread);
+		try
+		{
+			thread.join(timeoutMillis);
+			if (thread.isAlive())
+			{
+				// Blocked on a full pool; the interrupt makes it spill the rest.
+				thread.interrupt();
+				thread.join(INTERRUPT_GRACE_MILLIS);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		while (running)
+		{
+			fillBatches();
+			flushFull();
+			if (!running || System.nanoTime() - deadline >= 0)
+				flushAll();
+		}
+
+		EventBuffer next = successor;
+		if (next != null)
+			handOver(next);
+		else
+			drain();
+		flushAll();
+
+		try
+		{
+			long remaining = Math.max(0, drainDeadline - System.nanoTime());
+			if (!pool.shutdown(TimeUnit.NANOSECONDS.toMillis(remaining)))
+			{
+				// Interrupted requests spill their rows.
+				System.err.println("BigQuery inserts still in flight at the stop deadline, spooling their rows");
+				pool.shutdownNow(INTERRUPT_GRACE_MILLIS);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			pool.shutdownNow(0);
+		}
+	}
+
+	/**
+	 * Sends whatever was buffered before the appender stopped, in larger batches, until the deadline. Past it
+	 * the rest is encoded and spilled.
+	 */
+	private void drain()
+	{
+		draining = true;
+		while (!buffer.isEmpty())
+		{
+			while (full == null && buffer.poll(this))
+				;
+			flushFull();
+		}
+	}
+
+	/**
+	 * Moves the buffered events to the successor's buffer. The batches already encoded are still sent from here.
+	 */
+	private void handOver(final EventBuffer next)
+	{
+		RingBuffer.Handler<LogSlot> move = new RingBuffer.Handler<LogSlot>()
+		{
+			@Override
+			public void onSlot(LogSlot slot)
+			{
+				if (!next.publish(slot))
+					metrics.rowsFailed(1);
+				slot.clear();
+			}
+		};
+
+		while (buffer.poll(move))
+			;
+	}
+
+	private boolean pastDrainDeadline()
+	{
+		return !running && System.nanoTime() - drainDeadline >= 0;
+	}
+
+	/**
+	 * Waits for a first event if no batch is open, then keeps collecting events until a batch is full or
+	 * the linger deadline passes.
+	 */
+	private void fillBatches()
+	{
+		if (open.isEmpty() && !buffer.poll(this))
+		{
+			buffer.await(TimeUnit.MILLISECONDS.toNanos(lingerMillis));
+			if (!buffer.poll(this))
+				return;
+		}
+
+		while (full == null)
+		{
+			if (buffer.poll(this))
+				continue;
+
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0 || !running)
+				break;
+
+			buffer.await(remaining);
+		}
+	}
+
+	/**
+	 * Called for each event taken from the buffer: encodes its rows into the batch of its table.
+	 */
+	@Override
+	public void onSlot(LogSlot slot)
+	{
+		try
+		{
+			TableRouter.Destination destination = router.route(slot.loggerName, slot.level, slot.timeMillis);
+			int parts = encoder.split(slot);
+			for (int part = 0; part < parts; part++)
+				add(destination, slot, part);
+		}
+		catch (IOException e)
+		{
+			metrics.rowsFailed(1);
+			System.err.println("Could not encode log event for BigQuery: " + e.getMessage());
+		}
+		finally
+		{
+			encoder.endSplit();
+			slot.clear();
+		}
+	}
+
+	/**
+	 * Encodes one row of the event into the destination's batch. If the row takes the batch past the byte
+	 * limit it is moved to a new batch and the old one is flushed right away; a batch that reaches a limit is
+	 * flushed once the event has been handled.
+	 */
+	private void add(TableRouter.Destination destination, LogSlot slot, int part) throws IOException
+	{
+		RowBatch batch = destination.batch;
+		if (batch == null)
+		{
+			batch = newBatch();
+			batch.table = destination.key;
+			destination.batch = batch;
+			if (open.isEmpty())
+				deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+			open.add(destination);
+		}
+
+		encoder.encode(slot, batch, part);
+		int last = batch.rowCount() - 1;
+		if (batch.lastRowLength() > maxRowBytes)
+		{
+			inserter.deadLetter(batch, last, "row of " + batch.lastRowLength() + " bytes is larger than " + maxRowBytes);
+			batch.truncate(last);
+			return;
+		}
+
+		long byteLimit = draining ? Math.min(maxBytes * DRAIN_FACTOR, MAX_REQUEST_BYTES) : Math.min(maxBytes, MAX_REQUEST_BYTES);
+		int rowLimit = draining ? Math.min(maxRows * DRAIN_FACTOR, MAX_REQUEST_ROWS) : Math.min(maxRows, MAX_REQUEST_ROWS);
+		if (last > 0 && batch.requestBytes() > byteLimit)
+		{
+			RowBatch next = newBatch();
+			next.table = destination.key;
+			batch.moveLastRow(next);
+			destination.batch = next;
+			flush(destination.key, batch);
+			batch = next;
+		}
+
+		if (batch.rowCount() >= rowLimit || batch.requestBytes() >= byteLimit)
+			full = destination;
+	}
+
+	private void flushFull()
+	{
+		if (full == null)
+			return;
+
+		open.remove(full);
+		flush(full);
+		full = null;
+	}
+
+	private void flushAll()
+	{
+		for (TableRouter.Destination destination : open)
+			flush(destination);
+		open.clear();
+	}
+
+	/**
+	 * Hands the destination's batch to the pool as one insertAll request. Blocks while the pool has the
+	 * maximum number of requests in flight.
+	 */
+	private void flush(TableRouter.Destination destination)
+	{
+		RowBatch rows = destination.batch;
+		destination.batch = null;
+		flush(destination.key, rows);
+	}
+
+	private void flush(String key, final RowBatch rows)
+	{
+		if (rows.rowCount() == 0)
+		{
+			freeBatches.offer(rows);
+			return;
+		}
+
+		metrics.batchFlushed(rows.rowCount(), rows.byteSize());
+		if (loader != null)
+		{
+			stage(rows);
+			return;
+		}
+		if (pastDrainDeadline())
+		{
+			spill(rows, "not sent before the stop deadline");
+			return;
+		}
+
+		try
+		{
+			pool.submit(key, new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					send(rows);
+				}
+			});
+		}
+		catch (InterruptedException e)
+		{
+			running = false;
+			spill(rows, "not sent before the stop deadline");
+		}
+	}
+
+	/**
+	 * Appends the rows to the load job files, dead-lettering them if they could not be written, then recycles
+	 * the batch.
+	 */
+	private void stage(RowBatch rows)
+	{
+		try
+		{
+			loader.stage(rows);
+		}
+		catch (IOException e)
+		{
+			for (int row = 0; row < rows.rowCount(); row++)
+				inserter.deadLetter(rows, row, "could not stage for loading: " + e.getMessage());
+		}
+
+		rows.clear();
+		freeBatches.offer(rows);
+	}
+
+	/**
+	 * Inserts the rows and spools or dead-letters the ones that failed, then recycles the batch. Runs on a
+	 * pool thread.
+	 */
+	private void send(RowBatch rows)
+	{
+		if (pastDrainDeadline())
+		{
+			spill(rows, "not sent before the stop deadline");
+			return;
+		}
+
+		int[] failed;
+		try
+		{
+			failed = inserter.insert(rows);
+		}
+		catch (InterruptedException e)
+		{
+			spill(rows, "not sent before the stop deadline");
+			return;
+		}
+
+		for (int row : failed)
+		{
+			if (spool == null)
+				inserter.deadLetter(rows, row, "retries exhausted");
+			else if (spool.append(rows, row))
+				metrics.rowsSpooled(1);
+			else
+				inserter.deadLetter(rows, row, "spool full");
+		}
+
+		rows.clear();
+		freeBatches.offer(rows);
+	}
+
+	/**
+	 * Keeps rows that could not be sent in time locally: in the spool, so they are sent on the next start,
+	 * else in the fallback file, else with the dead letters. Then recycles the batch.
+	 */
+	private void spill(RowBatch rows, String reason)
+	{
+		for (int row = 0; row < rows.rowCount(); row++)
+		{
+			if (spool != null && spool.append(rows, row))
+				metrics.rowsSpooled(1);
+			else if (fallback != null)
+			{
+				metrics.rowsFailed(1);
+				fallback.deadLetter(rows.rowString(row), reason);
+			}
+			else
+				inserter.deadLetter(rows, row, reason);
+		}
+
+		rows.clear();
+		freeBatches.offer(rows);
+	}
+
+	/**
+	 * @return
+	 * 		A recycled batch, or a new one if none is free. At most one more batch per table than the pool has
+	 * 		requests in flight ever exists.
+	 */
+	private RowBatch newBatch()
+	{
+		RowBatch free = freeBatches.poll();
+		return free != null ? free : new RowBatch(INITIAL_BATCH_BYTES, Math.min(maxRows, 1024));
+	}
+}
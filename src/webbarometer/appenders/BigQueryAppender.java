@@ -3,32 +3,64 @@ package webbarometer.appenders;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.security.GeneralSecurityException;
-import java.util.Date;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.Appender;
 import org.apache.logging.log4j.core.Filter;
 import org.apache.logging.log4j.core.Layout;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.Configuration;
 import org.apache.logging.log4j.core.config.plugins.Plugin;
 import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginConfiguration;
 import org.apache.logging.log4j.core.config.plugins.PluginElement;
 import org.apache.logging.log4j.core.config.plugins.PluginFactory;
 
 import com.google.api.services.bigquery.Bigquery;
-import com.google.api.services.bigquery.model.TableDataInsertAllRequest;
-import com.google.api.services.bigquery.model.TableReference;
-import com.google.api.services.bigquery.model.TableRow;
+import com.google.api.services.bigquery.model.TableSchema;
 
+import webbarometer.utils.BigqueryClients;
 import webbarometer.utils.BigqueryUtils;
 
 /**
  * Log4j2 Appender for sending log messages to Big Query
  * 
+ * Events are copied into a lock-free {@link EventBuffer} and sent in batches by a {@link BatchingSender}, so
+ * logging threads never wait on BigQuery unless the buffer is full and the {@link OverflowPolicy} says so.
+ * 
+ * The columns of the rows are declared with nested {@code <Field>} elements, see {@link FieldMapping}; long
+ * values can be truncated or split over several rows per column. A nested Layout renders the message column,
+ * or a column with the {@code layout} source, on the logging thread into a buffer reused by every event; see
+ * {@link LayoutRenderer}.
+ * 
+ * Rows go to the {@code table} pattern, or to the table of the first matching {@code <TableRoute>}; see
+ * {@link TableRouter}.
+ * 
+ * Under load, chatty events can be thinned out before they reach the buffer with nested {@code <RateLimit>}
+ * elements and {@code samplingStartFill}; see {@link Sampler}.
+ * 
+ * With {@code aggregateMillis} set, identical events are collapsed into one row with a count, see
+ * {@link Aggregator}.
+ * 
+ * With {@code senderExecution="VIRTUAL"} on Java 21 every request in flight gets a virtual thread instead of
+ * a platform thread of a fixed pool, so many concurrent uploads need no large pool; see {@link SenderExecution}.
+ * 
+ * With {@code delivery="LOAD"} rows are not streamed but staged in files under {@code loadDirectory} and sent as
+ * load jobs, see {@link LoadJobSender}.
+ * 
+ * Stopping drains the buffer for up to {@code shutdownTimeoutMillis}, also from a JVM shutdown hook; rows not
+ * sent by then go to the spool or the {@code fallbackFile}. When log4j reconfigures and a new appender of the
+ * same name in the same configuration file has already started, the buffered events are handed to it instead.
+ * 
+ * Appenders with the same {@code serviceAccount} and {@code keyFile}, or the same {@code rootUrl}, share one
+ * client, connection pool and access token, see {@link BigqueryClients}.
+ * 
  * @author Sonny Trujillo <sonnyt@customercentrix.com>
  */
 @Plugin(name = "BigQueryAppender", category = "Core", elementType = "appender", printObject = true)
@@ -36,83 +68,424 @@ public class BigQueryAppender extends AbstractAppender
 {
 	private static final String TEST_TABLE_NAME = "Log4jTestTable";
 	
+	/**
+	 * The started appenders by configuration location and name, to find the successor on reconfiguration.
+	 */
+	private static final ConcurrentMap<String, BigQueryAppender> INSTANCES = new ConcurrentHashMap<String, BigQueryAppender>();
+	
+	private BigqueryClients.Lease client;
 	private Bigquery bigquery;
-	private TableReference testTableRef = new TableReference()
-		.setProjectId(BigqueryUtils.PROJECT_ID)
-		.setDatasetId(BigqueryUtils.DATASET_ID)
-		.setTableId(TEST_TABLE_NAME);
+	private EventBuffer buffer;
+	private Sampler sampler;
+	private Aggregator aggregator;
+	private BatchingSender sender;
+	private DiskSpool spool;
+	private SpoolReplayer replayer;
+	private LoadJobSender loader;
+	private DeadLetterSink deadLetters;
+	private DeadLetterSink fallback;
+	private HostMetadata metadata;
+	private RowSchema schema;
+	private boolean suffixed;
+	private GzipCompressor compressor;
+	private AppenderMetrics metrics;
+	private String metricsLogger;
+	private long metricsIntervalMillis;
+	private long metadataRefreshMillis;
+	private String instanceKey;
+	private long shutdownTimeoutMillis;
+	private Thread shutdownHook;
+	private boolean stopped;
 
-	protected BigQueryAppender(String name, Filter filter, Layout<? extends Serializable> layout) throws GeneralSecurityException, IOException
+	protected BigQueryAppender(String name, Filter filter, Layout<? extends Serializable> layout, LayoutRenderer renderer, FieldMapping[] fields,
+			String project, String dataset, String table, TableRoute[] routes, boolean createTables,
+			int bufferSize, OverflowPolicy overflowPolicy, Level dropThreshold,
+			RateLimit[] rateLimits, Level samplingExemptLevel, double samplingStartFill,
+			long aggregateMillis, int aggregateMaxKeys,
+			int batchMaxRows, long batchMaxBytes, int maxRowBytes, long lingerMillis,
+			String spoolDirectory, int spoolSegmentBytes, long spoolMaxBytes, DiskSpool.SyncPolicy spoolSync,
+			int retryMaxAttempts, long retryBaseMillis, long retryMaxMillis, DeadLetterSink deadLetters,
+			int senderThreads, int maxInFlight, boolean orderedPerTable, SenderExecution senderExecution, boolean epochTimestamps,
+			String environment, String deployment, HostMetadata.Mode metadataMode, long metadataRefreshMillis,
+			int compressionLevel, int compressionMinBytes, boolean compressionAdaptive, InsertIdStrategy insertIds, String rootUrl,
+			String serviceAccount, String keyFile,
+			String metricsLogger, long metricsIntervalMillis,
+			String instanceKey, long shutdownTimeoutMillis, DeadLetterSink fallback, boolean shutdownHook,
+			DeliveryMode delivery, String loadDirectory, long loadFileBytes, long loadRotateMillis, long loadPollMillis) throws GeneralSecurityException, IOException
 	{
 		super(name, filter, layout);
 		
-		bigquery = BigqueryUtils.makeBigqueryConnection(BigqueryUtils.SERVICE_ACCOUNT_EMAIL, new File("key.p12"));
+		int connections = (senderExecution == SenderExecution.VIRTUAL ? maxInFlight : senderThreads) + 1;
+		if (rootUrl != null)
+			client = BigqueryClients.acquire(rootUrl, connections);
+		else
+			client = BigqueryClients.acquire(serviceAccount, new File(keyFile), connections);
+		bigquery = client.get();
+		schema = new RowSchema(fields, epochTimestamps, renderer != null);
+		if (!schema.needsLayout())
+			renderer = null;
+		buffer = new EventBuffer(bufferSize, overflowPolicy, dropThreshold, schema.needsLocation(), renderer);
+		if (rateLimits.length > 0 || (samplingStartFill > 0 && samplingStartFill < 1))
+			sampler = new Sampler(buffer, rateLimits, samplingExemptLevel, samplingStartFill);
+		// Load jobs cannot use template tables, so the metadata always goes into the rows.
+		suffixed = delivery == DeliveryMode.STREAMING && metadataMode == HostMetadata.Mode.TEMPLATE_SUFFIX;
+		this.metadata = new HostMetadata(environment, deployment, suffixed);
+		this.metadataRefreshMillis = metadataRefreshMillis;
+		if (compressionLevel > 0)
+			compressor = new GzipCompressor(compressionLevel, compressionMinBytes, compressionAdaptive);
+		
+		if (spoolDirectory != null && delivery == DeliveryMode.STREAMING)
+			spool = new DiskSpool(new File(spoolDirectory), spoolSegmentBytes, spoolMaxBytes, spoolSync);
+		metrics = new AppenderMetrics(buffer, sampler, spool, compressor);
+		if (aggregateMillis > 0)
+			aggregator = new Aggregator(buffer, metrics, aggregateMillis, aggregateMaxKeys, schema.needsLocation(), renderer);
+		this.metricsLogger = metricsLogger;
+		this.metricsIntervalMillis = metricsIntervalMillis;
+		
+		TableRouter router = new TableRouter(bigquery, project, dataset, table, routes, createTables ? getTableSchema() : null);
+		RetryingInserter inserter = new RetryingInserter(bigquery, router, suffixed ? metadata.templateSuffix() : null, retryMaxAttempts, retryBaseMillis, retryMaxMillis,
+				deadLetters, compressor, metrics);
+		if (spool != null)
+			replayer = new SpoolReplayer(inserter, spool, batchMaxRows);
+		SenderPool pool = new SenderPool(name, senderThreads, maxInFlight, orderedPerTable, senderExecution);
+		RowEncoder encoder;
+		if (delivery == DeliveryMode.LOAD)
+		{
+			loader = new LoadJobSender(bigquery, router, new File(loadDirectory), loadFileBytes, loadRotateMillis, loadPollMillis,
+					createTables ? getTableSchema() : null, metrics);
+			encoder = new RowEncoder(schema, metadata);
+		}
+		else
+			encoder = new RowEncoder(schema, metadata, insertIds);
+		sender = new BatchingSender(inserter, pool, router, buffer, encoder, spool, loader, fallback,
+				batchMaxRows, batchMaxBytes, maxRowBytes, lingerMillis, metrics);
+		
+		this.deadLetters = deadLetters;
+		this.fallback = fallback;
+		this.instanceKey = instanceKey;
+		this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+		if (shutdownHook)
+		{
+			this.shutdownHook = new Thread("BigQueryAppender-" + name + "-shutdown")
+			{
+				@Override
+				public void run()
+				{
+					BigQueryAppender.this.stop();
+				}
+			};
+		}
 	}
-
+	
 	@Override
-	public void append(LogEvent event)
+	public void start()
 	{
-		String thrown = event.getThrown() == null ? "" : event.getThrown().getMessage();
-		String thread = event.getThreadName();
-		String timestamp = BigqueryUtils.formatDate(new Date(event.getTimeMillis()));
-		String level = event.getLevel().toString();
-		String logger = event.getLoggerName();
-		String message = event.getMessage().getFormattedMessage();
-
-		TableRow row = new TableRow();		
-		row.set("timestamp", timestamp);
-		row.set("level", level);
-		row.set("logger", logger);
-		row.set("message", message);
-		row.set("thread", thread);
-		row.set("thrown", thrown);
-		row.set("source", getSource());
-		
-		TableDataInsertAllRequest.Rows rows = new TableDataInsertAllRequest.Rows();
-		rows.setJson(row);
-		rows.setInsertId(timestamp);
-				
-		List<TableDataInsertAllRequest.Rows> data = new LinkedList<TableDataInsertAllRequest.Rows>();		
-		data.add(rows);
-		
-		try
+		metadata.start(getName(), metadataRefreshMillis);
+		metrics.register(getName());
+		if (metricsLogger != null && metricsIntervalMillis > 0)
+			metrics.startReporting(getName(), metricsLogger, metricsIntervalMillis);
+		if (loader != null)
+			loader.start(getName());
+		if (aggregator != null)
+			aggregator.start(getName());
+		sender.start(getName());
+		if (replayer != null)
+			replayer.start(getName());
+		if (shutdownHook != null)
+			Runtime.getRuntime().addShutdownHook(shutdownHook);
+		INSTANCES.put(instanceKey, this);
+		super.start();
+	}
+	
+	/**
+	 * Drains the buffer for up to {@code shutdownTimeoutMillis}, or hands it to the appender replacing this one.
+	 * Called by log4j, or by the shutdown hook if the JVM exits first; only the first call does anything.
+	 */
+	@Override
+	public synchronized void stop()
+	{
+		if (stopped)
+			return;
+		stopped = true;
+		
+		super.stop();
+		if (sampler != null)
+			publish(sampler.takeSummary(true));
+		if (aggregator != null)
+			aggregator.stop();
+		
+		EventBuffer successor = null;
+		BigQueryAppender next = INSTANCES.get(instanceKey);
+		if (next != null && next != this && next.isStarted())
+			successor = next.buffer;
+		else
+			INSTANCES.remove(instanceKey, this);
+		sender.stop(shutdownTimeoutMillis, successor);
+		
+		if (shutdownHook != null && Thread.currentThread() != shutdownHook)
 		{
-			BigqueryUtils.insertTableData(bigquery, testTableRef, data);
+			try
+			{
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			}
+			catch (IllegalStateException e)
+			{
+				// The JVM is already shutting down.
+			}
 		}
-		catch (IOException e)
+		if (replayer != null)
+			replayer.stop();
+		if (loader != null)
+			loader.stop();
+		metadata.stop();
+		metrics.stop();
+		if (deadLetters != null)
+			deadLetters.close();
+		if (fallback != null)
+			fallback.close();
+		client.close();
+		if (compressor != null)
 		{
-			System.err.println("Could not insert table data into BigQuery: " + e.getMessage());			
-		}				
+			LOGGER.info("BigQueryAppender " + getName() + " " + compressor);
+			compressor.close();
+		}
 	}
 
-	/**
-	 * Gets the Host Address and returns it.
-	 * 
-	 * @return The Host Address.
-	 */
-	private String getSource()
+	@Override
+	public void append(LogEvent event)
 	{
-		InetAddress ip;
-		try 
+		if (sampler == null)
 		{
-			ip = InetAddress.getLocalHost();
-			return ip.getHostAddress();	 
-		} 
-		catch (UnknownHostException e) 
-		{	 
-			e.printStackTrace();	 
+			publish(event);
+			return;
 		}
 		
-		return null;
+		if (sampler.accept(event))
+		{
+			publish(event);
+			publish(sampler.takeSummary(false));
+		}
+	}
+	
+	private void publish(LogEvent event)
+	{
+		if (event == null)
+			return;
+		if (aggregator != null && aggregator.absorb(event))
+			return;
+		
+		if (buffer.publish(event))
+			metrics.eventAccepted();
+		else
+			error("BigQuery buffer is full, dropping event from " + event.getLoggerName());
+	}
+	
+	/**
+	 * @return
+	 * 		The appender's metrics, which are also registered as an MBean while it is started.
+	 */
+	public BigQueryAppenderMXBean getMetrics()
+	{
+		return metrics;
+	}
+	
+	/**
+	 * @return
+	 * 		The schema of the table the rows are written to, derived from the configured fields. Use it to
+	 * 		create the table.
+	 */
+	public TableSchema getTableSchema()
+	{
+		return schema.tableSchema(suffixed);
+	}
+	
+	/**
+	 * @return
+	 * 		The number of events dropped by the given overflow policy since this appender was created.
+	 */
+	public long getDroppedEvents(OverflowPolicy policy)
+	{
+		return buffer.getDropped(policy);
+	}
+	
+	/**
+	 * @return
+	 * 		Uncompressed bytes per compressed byte over all compressed requests, or 1 if compression is off or
+	 * 		nothing was compressed yet.
+	 */
+	public double getCompressionRatio()
+	{
+		return compressor == null ? 1 : compressor.getRatio();
+	}
+	
+	/**
+	 * @return
+	 * 		The CPU time spent compressing request bodies, in nanoseconds.
+	 */
+	public long getCompressionCpuNanos()
+	{
+		return compressor == null ? 0 : compressor.getCpuNanos();
+	}
+	
+	/**
+	 * @return
+	 * 		The gzip level currently used, which moves in adaptive mode, or 0 if compression is off.
+	 */
+	public int getCompressionLevel()
+	{
+		return compressor == null ? 0 : compressor.getLevel();
 	}
 	
 	@PluginFactory
 	public static BigQueryAppender createAppender(
 			@PluginAttribute("name") String name,			
             @PluginElement("Filters") Filter filter,
-			@PluginElement("Layout") Layout<? extends Serializable> layout) throws GeneralSecurityException, IOException 
+			@PluginElement("Layout") Layout<? extends Serializable> layout,
+			@PluginElement("Fields") FieldMapping[] fields,
+			@PluginAttribute(value = "project", defaultString = BigqueryUtils.PROJECT_ID) String project,
+			@PluginAttribute(value = "dataset", defaultString = BigqueryUtils.DATASET_ID) String dataset,
+			@PluginAttribute(value = "table", defaultString = TEST_TABLE_NAME) String table,
+			@PluginElement("TableRoutes") TableRoute[] routes,
+			@PluginAttribute(value = "createTables", defaultBoolean = false) boolean createTables,
+			@PluginAttribute(value = "bufferSize", defaultInt = 8192) int bufferSize,
+			@PluginAttribute(value = "overflowPolicy", defaultString = "BLOCK") String overflowPolicy,
+			@PluginAttribute(value = "dropThreshold", defaultString = "WARN") String dropThreshold,
+			@PluginElement("RateLimits") RateLimit[] rateLimits,
+			@PluginAttribute(value = "samplingExemptLevel", defaultString = "WARN") String samplingExemptLevel,
+			@PluginAttribute(value = "samplingStartFill", defaultDouble = 0) double samplingStartFill,
+			@PluginAttribute(value = "aggregateMillis", defaultLong = 0) long aggregateMillis,
+			@PluginAttribute(value = "aggregateMaxKeys", defaultInt = 10000) int aggregateMaxKeys,
+			@PluginAttribute(value = "batchMaxRows", defaultInt = 500) int batchMaxRows,
+			@PluginAttribute(value = "batchMaxBytes", defaultLong = 1000000) long batchMaxBytes,
+			@PluginAttribute(value = "maxRowBytes", defaultInt = 1048576) int maxRowBytes,
+			@PluginAttribute(value = "lingerMillis", defaultLong = 1000) long lingerMillis,
+			@PluginAttribute("spoolDirectory") String spoolDirectory,
+			@PluginAttribute(value = "spoolSegmentBytes", defaultInt = 16777216) int spoolSegmentBytes,
+			@PluginAttribute(value = "spoolMaxBytes", defaultLong = 1073741824) long spoolMaxBytes,
+			@PluginAttribute(value = "spoolSync", defaultString = "SEGMENT") String spoolSync,
+			@PluginAttribute(value = "retryMaxAttempts", defaultInt = 5) int retryMaxAttempts,
+			@PluginAttribute(value = "retryBaseMillis", defaultLong = 200) long retryBaseMillis,
+			@PluginAttribute(value = "retryMaxMillis", defaultLong = 30000) long retryMaxMillis,
+			@PluginAttribute("deadLetterFile") String deadLetterFile,
+			@PluginAttribute("deadLetterAppender") String deadLetterAppender,
+			@PluginAttribute(value = "senderThreads", defaultInt = 2) int senderThreads,
+			@PluginAttribute(value = "maxInFlight", defaultInt = 4) int maxInFlight,
+			@PluginAttribute(value = "orderedPerTable", defaultBoolean = false) boolean orderedPerTable,
+			@PluginAttribute(value = "senderExecution", defaultString = "PLATFORM") String senderExecution,
+			@PluginAttribute(value = "epochTimestamps", defaultBoolean = false) boolean epochTimestamps,
+			@PluginAttribute("environment") String environment,
+			@PluginAttribute("deployment") String deployment,
+			@PluginAttribute(value = "metadataMode", defaultString = "ROW") String metadataMode,
+			@PluginAttribute(value = "metadataRefreshMillis", defaultLong = 300000) long metadataRefreshMillis,
+			@PluginAttribute(value = "compressionLevel", defaultInt = 0) int compressionLevel,
+			@PluginAttribute(value = "compressionMinBytes", defaultInt = 8192) int compressionMinBytes,
+			@PluginAttribute(value = "compressionAdaptive", defaultBoolean = false) boolean compressionAdaptive,
+			@PluginAttribute(value = "insertIds", defaultString = "SEQUENCE") String insertIds,
+			@PluginAttribute("rootUrl") String rootUrl,
+			@PluginAttribute(value = "serviceAccount", defaultString = BigqueryUtils.SERVICE_ACCOUNT_EMAIL) String serviceAccount,
+			@PluginAttribute(value = "keyFile", defaultString = BigqueryUtils.KEY_FILE) String keyFile,
+			@PluginAttribute("metricsLogger") String metricsLogger,
+			@PluginAttribute(value = "metricsIntervalMillis", defaultLong = 60000) long metricsIntervalMillis,
+			@PluginAttribute(value = "shutdownTimeoutMillis", defaultLong = 10000) long shutdownTimeoutMillis,
+			@PluginAttribute("fallbackFile") String fallbackFile,
+			@PluginAttribute(value = "shutdownHook", defaultBoolean = true) boolean shutdownHook,
+			@PluginAttribute(value = "delivery", defaultString = "STREAMING") String delivery,
+			@PluginAttribute("loadDirectory") String loadDirectory,
+			@PluginAttribute(value = "loadFileBytes", defaultLong = 67108864) long loadFileBytes,
+			@PluginAttribute(value = "loadRotateMillis", defaultLong = 300000) long loadRotateMillis,
+			@PluginAttribute(value = "loadPollMillis", defaultLong = 10000) long loadPollMillis,
+			@PluginConfiguration Configuration config) throws GeneralSecurityException, IOException 
 	{
-	    return new BigQueryAppender(name, filter, layout);
+		if (!TableRouter.isValidPattern(table))
+		{
+			LOGGER.error("Invalid table pattern " + table + " for BigQueryAppender " + name);
+			return null;
+		}
+		
+		if (layout != null && LayoutRenderer.isBinary(layout))
+		{
+			LOGGER.error("BigQueryAppender " + name + " cannot write the binary output of " + layout + " into a column");
+			return null;
+		}
+		
+		DeliveryMode deliveryMode = DeliveryMode.valueOf(delivery.toUpperCase());
+		if (deliveryMode == DeliveryMode.LOAD && loadDirectory == null)
+		{
+			LOGGER.error("BigQueryAppender " + name + " needs a loadDirectory to deliver by load jobs");
+			return null;
+		}
+		
+		DeadLetterSink deadLetters = null;
+		if (deadLetterFile != null)
+			deadLetters = new FileDeadLetterSink(new File(deadLetterFile));
+		else if (deadLetterAppender != null)
+		{
+			Appender appender = config.getAppender(deadLetterAppender);
+			if (appender == null)
+				LOGGER.error("No appender named " + deadLetterAppender + " for dead-lettered BigQuery rows");
+			else
+				deadLetters = new AppenderDeadLetterSink(appender, name);
+		}
+		
+		DeadLetterSink fallback = null;
+		if (fallbackFile != null)
+			fallback = new FileDeadLetterSink(new File(fallbackFile));
+		String location = config == null || config.getConfigurationSource() == null ? null : config.getConfigurationSource().getLocation();
+		
+		SenderExecution execution = SenderExecution.valueOf(senderExecution.toUpperCase());
+		if (execution == SenderExecution.VIRTUAL && !SenderExecution.virtualThreadsAvailable())
+		{
+			LOGGER.warn("BigQueryAppender " + name + ": virtual threads need Java 21, sending on " + senderThreads + " platform threads");
+			execution = SenderExecution.PLATFORM;
+		}
+		
+		List<TableRoute> validRoutes = new ArrayList<TableRoute>();
+		if (routes != null)
+		{
+			for (TableRoute route : routes)
+			{
+				if (route != null)
+					validRoutes.add(route);
+			}
+		}
+		
+		List<RateLimit> validLimits = new ArrayList<RateLimit>();
+		if (rateLimits != null)
+		{
+			for (RateLimit limit : rateLimits)
+			{
+				if (limit != null)
+					validLimits.add(limit);
+			}
+		}
+		
+		List<FieldMapping> validFields = new ArrayList<FieldMapping>();
+		if (fields != null)
+		{
+			for (FieldMapping field : fields)
+			{
+				if (field != null)
+					validFields.add(field);
+				if (field != null && field.getSource() == FieldMapping.Source.LAYOUT && layout == null)
+					LOGGER.warn("BigQueryAppender " + name + " has no Layout for its layout field " + field.getName());
+			}
+		}
+		
+	    return new BigQueryAppender(name, filter, layout, layout == null ? null : new LayoutRenderer(layout, config), validFields.toArray(new FieldMapping[validFields.size()]),
+	    		project, dataset, table, validRoutes.toArray(new TableRoute[validRoutes.size()]), createTables,
+	    		bufferSize, OverflowPolicy.valueOf(overflowPolicy.toUpperCase()), Level.toLevel(dropThreshold, Level.WARN),
+	    		validLimits.toArray(new RateLimit[validLimits.size()]), Level.toLevel(samplingExemptLevel, Level.WARN), samplingStartFill,
+	    		aggregateMillis, aggregateMaxKeys,
+	    		batchMaxRows, batchMaxBytes, maxRowBytes, lingerMillis,
+	    		spoolDirectory, spoolSegmentBytes, spoolMaxBytes, DiskSpool.SyncPolicy.valueOf(spoolSync.toUpperCase()),
+	    		retryMaxAttempts, retryBaseMillis, retryMaxMillis, deadLetters,
+	    		senderThreads, maxInFlight, orderedPerTable, execution, epochTimestamps,
+	    		environment, deployment, HostMetadata.Mode.valueOf(metadataMode.toUpperCase()), metadataRefreshMillis,
+	    		compressionLevel, compressionMinBytes, compressionAdaptive, InsertIdStrategy.valueOf(insertIds.toUpperCase()), rootUrl,
+	    		serviceAccount, keyFile,
+	    		metricsLogger, metricsIntervalMillis,
+	    		location + "#" + name, shutdownTimeoutMillis, fallback, shutdownHook,
+	    		deliveryMode, loadDirectory, loadFileBytes, loadRotateMillis, loadPollMillis);
 	}
 	
 }
@@ -0,0 +1,108 @@
+package webbarometer.appenders;
+
+/**
+ * The operational metrics of a {@link BigQueryAppender}, registered with the platform MBean server as
+ * {@code webbarometer.appenders:type=BigQueryAppender,name=<appender name>}.
+ *
+ * Counters are totals since the appender was created. Histogram values are accurate to within 12.5%.
+ */
+public interface BigQueryAppenderMXBean
+{
+	/**
+	 * @return
+	 * 		Events taken into the buffer.
+	 */
+	long getEventsAccepted();
+
+	/**
+	 * @return
+	 * 		Events dropped by the overflow policy.
+	 */
+	long getEventsDropped();
+
+	/**
+	 * @return
+	 * 		Events suppressed by sampling or rate limits.
+	 */
+	long getEventsSuppressed();
+
+	/**
+	 * @return
+	 * 		Events counted into the row of an earlier identical event instead of getting their own.
+	 */
+	long getEventsAggregated();
+
+	/**
+	 * @return
+	 * 		Rows that could not be encoded or were dead-lettered.
+	 */
+	long getRowsFailed();
+
+	/**
+	 * @return
+	 * 		Rows BigQuery accepted.
+	 */
+	long getRowsInserted();
+
+	/**
+	 * @return
+	 * 		Rows written to the disk spool after their retries ran out.
+	 */
+	long getRowsSpooled();
+
+	/**
+	 * @return
+	 * 		Rows re-submitted after a failed attempt.
+	 */
+	long getRetries();
+
+	int getQueueDepth();
+
+	int getQueueCapacity();
+
+	/**
+	 * @return
+	 * 		The bytes held in the disk spool, or 0 if there is none.
+	 */
+	long getSpoolBytes();
+
+	long getBatches();
+
+	double getBatchRowsMean();
+
+	long getBatchRowsP50();
+
+	long getBatchRowsP99();
+
+	double getBatchBytesMean();
+
+	long getBatchBytesP50();
+
+	long getBatchBytesP99();
+
+	/**
+	 * @return
+	 * 		insertAll requests sent, including retries and spool replays.
+	 */
+	long getRequests();
+
+	/**
+	 * @return
+	 * 		insertAll requests that failed as a whole, e.g. with a 5xx or a timeout.
+	 */
+	long getRequestErrors();
+
+	long getInsertLatencyMillisP50();
+
+	long getInsertLatencyMillisP90();
+
+	long getInsertLatencyMillisP99();
+
+	long getInsertLatencyMillisMax();
+
+	/**
+	 * @return
+	 * 		Uncompressed bytes per compressed byte, or 1 if compression is off.
+	 */
+	double getCompressionRatio();
+}
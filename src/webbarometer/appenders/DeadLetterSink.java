@@ -0,0 +1,23 @@
+package webbarometer.appenders;
+
+import java.io.Closeable;
+
+/**
+ * Receives rows that failed for good and will never be inserted into BigQuery. Closed when the appender stops.
+ */
+interface DeadLetterSink extends Closeable
+{
+	/**
+	 * @param rowJson
+	 * 		The row that could not be inserted, as its encoded insertAll JSON.
+	 * @param reason
+	 * 		Why it failed, e.g. the insertError reason reported by BigQuery.
+	 */
+	void deadLetter(String rowJson, String reason);
+
+	/**
+	 * Releases what the sink holds open. Rows dead-lettered afterwards are lost.
+	 */
+	@Override
+	void close();
+}
@@ -0,0 +1,18 @@
+package webbarometer.appenders;
+
+/**
+ * How the {@link BigQueryAppender} gets rows into BigQuery.
+ */
+enum DeliveryMode
+{
+	/**
+	 * Rows are streamed with {@code tabledata.insertAll} and can be queried within seconds.
+	 */
+	STREAMING,
+	/**
+	 * Rows are staged to local newline-delimited JSON files, which are sent as load jobs once they are big
+	 * or old enough; see {@link LoadJobSender}. Rows show up minutes later, but loading costs nothing and is
+	 * not bound by the streaming quotas.
+	 */
+	LOAD;
+}
@@ -0,0 +1,382 @@
+package webbarometer.appenders;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A write-ahead spool of rows that could not be sent to BigQuery.
+ *
+ * Rows are appended to memory-mapped segment files named {@code <id>.seg} under the spool directory. Each
+ * record is a 4 byte length followed by the row as encoded by {@link RowEncoder}, i.e. its UTF-8 insertAll JSON. If
+ * the length has {@link #TABLE_FLAG} set, the row is preceded by a 2 byte length and the UTF-8 key of its
+ * {@link TableRouter.Destination}; records without it were written before rows were routed. The payload is written before its length,
+ * so a record cut short by a crash reads back as the end of the segment. A small checkpoint file holds the
+ * read position, which lets a restarted JVM resume replay where the last one left off.
+ *
+ * Reading is two-phase: {@link #peek(int, RowBatch)} returns the next rows for one table without consuming them and
+ * {@link #commit()} consumes them once they have been inserted. Fully consumed segments are deleted.
+ */
+class DiskSpool
+{
+	/**
+	 * When written data is forced to the storage device.
+	 */
+	enum SyncPolicy
+	{
+		/**
+		 * Leave it to the operating system. Survives a JVM crash, but not a power loss.
+		 */
+		NEVER,
+		/**
+		 * Force a segment when it is full and rotated.
+		 */
+		SEGMENT,
+		/**
+		 * Force after every record. Safest and slowest.
+		 */
+		ALWAYS;
+	}
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String CHECKPOINT_FILE = "checkpoint";
+	private static final int LENGTH_BYTES = 4;
+	private static final int TABLE_LENGTH_BYTES = 2;
+
+	/**
+	 * Set in a record's length when the record starts with the key of its table.
+	 */
+	private static final int TABLE_FLAG = 0x40000000;
+
+	private static final class Segment
+	{
+		final long id;
+		final File file;
+		final MappedByteBuffer buffer;
+		int writePosition;
+
+		Segment(long id, File file, MappedByteBuffer buffer)
+		{
+			this.id = id;
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+
+	private final File directory;
+	private final int segmentBytes;
+	private final long maxBytes;
+	private final SyncPolicy syncPolicy;
+
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	private final MappedByteBuffer checkpoint;
+
+	private long readSegment;
+	private int readPosition;
+	private long pendingSegment;
+	private int pendingPosition;
+	private long rejected;
+
+	/**
+	 * Opens the spool, recovering any segments and the read position left by a previous run.
+	 *
+	 * @param directory
+	 * 		The directory holding the segment files. Created if missing.
+	 * @param segmentBytes
+	 * 		The size of each segment file.
+	 * @param maxBytes
+	 * 		The maximum total size of all segment files. Rows are rejected once it is reached.
+	 * @param syncPolicy
+	 * 		When writes are forced to disk.
+	 * @throws IOException
+	 */
+	DiskSpool(File directory, int segmentBytes, long maxBytes, SyncPolicy syncPolicy) throws IOException
+	{
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.maxBytes = maxBytes;
+		this.syncPolicy = syncPolicy;
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create spool directory " + directory);
+
+		checkpoint = map(new File(directory, CHECKPOINT_FILE), 12);
+		readSegment = checkpoint.getLong(0);
+		readPosition = checkpoint.getInt(8);
+
+		recover();
+	}
+
+	/**
+	 * Maps every existing segment and finds its write position.
+	 */
+	private void recover() throws IOException
+	{
+		File[] files = directory.listFiles();
+		List<Long> ids = new ArrayList<Long>();
+		for (File file : files == null ? new File[0] : files)
+		{
+			String name = file.getName();
+			if (name.endsWith(SEGMENT_SUFFIX))
+				ids.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+		}
+
+		Long[] sorted = ids.toArray(new Long[ids.size()]);
+		Arrays.sort(sorted);
+
+		for (long id : sorted)
+		{
+			if (id < readSegment)
+			{
+				segmentFile(id).delete();
+				continue;
+			}
+
+			Segment segment = new Segment(id, segmentFile(id), map(segmentFile(id), segmentBytes));
+			int position = 0;
+			while (position + LENGTH_BYTES <= segmentBytes)
+			{
+				int length = segment.buffer.getInt(position) & ~TABLE_FLAG;
+				if (length <= 0 || position + LENGTH_BYTES + length > segmentBytes)
+					break;
+				position += LENGTH_BYTES + length;
+			}
+			segment.writePosition = position;
+			segments.add(segment);
+		}
+
+		if (segments.isEmpty() || segments.getFirst().id != readSegment)
+		{
+			readSegment = segments.isEmpty() ? readSegment : segments.getFirst().id;
+			readPosition = 0;
+		}
+		pendingSegment = readSegment;
+		pendingPosition = readPosition;
+	}
+
+	/**
+	 * Appends a row of a batch to the spool.
+	 *
+	 * @return
+	 * 		false if the row was rejected because the spool is full or the row does not fit in a segment.
+	 */
+	synchronized boolean append(RowBatch batch, int row)
+	{
+		try
+		{
+			byte[] table = batch.table == null ? null : batch.table.getBytes(StandardCharsets.UTF_8);
+			int length = batch.rowLength(row) + (table == null ? 0 : TABLE_LENGTH_BYTES + table.length);
+			int recordBytes = LENGTH_BYTES + length;
+			if (recordBytes > segmentBytes)
+			{
+				rejected++;
+				return false;
+			}
+
+			Segment segment = segments.isEmpty() ? null : segments.getLast();
+			if (segment == null || segment.writePosition + recordBytes > segmentBytes)
+			{
+				if ((long) (segments.size() + 1) * segmentBytes > maxBytes)
+				{
+					rejected++;
+					return false;
+				}
+
+				if (segment != null && syncPolicy == SyncPolicy.SEGMENT)
+					segment.buffer.force();
+
+				segment = newSegment(segment == null ? readSegment : segment.id + 1);
+			}
+
+			ByteBuffer body = segment.buffer.duplicate();
+			body.position(segment.writePosition + LENGTH_BYTES);
+			if (table != null)
+			{
+				body.putShort((short) table.length);
+				body.put(table);
+			}
+			batch.copyRow(row, body);
+			segment.buffer.putInt(segment.writePosition, table == null ? length : length | TABLE_FLAG);
+			segment.writePosition += recordBytes;
+
+			if (syncPolicy == SyncPolicy.ALWAYS)
+				segment.buffer.force();
+
+			return true;
+		}
+		catch (IOException e)
+		{
+			System.err.println("Could not spool row to " + directory + ": " + e.getMessage());
+			rejected++;
+			return false;
+		}
+	}
+
+	/**
+	 * Reads up to {@code max} rows from the read position into the batch without consuming them, stopping
+	 * before the first row for another table. Sets the batch's {@link RowBatch#table}. Calling it again
+	 * before {@link #commit()} returns the same rows.
+	 *
+	 * @return
+	 * 		The number of rows read.
+	 */
+	synchronized int peek(int max, RowBatch into)
+	{
+		int rows = 0;
+		into.table = null;
+		long segmentId = readSegment;
+		int position = readPosition;
+		boolean otherTable = false;
+
+		for (Segment segment : segments)
+		{
+			if (segment.id < segmentId)
+				continue;
+			if (segment.id > segmentId)
+			{
+				segmentId = segment.id;
+				position = 0;
+			}
+
+			while (rows < max && position < segment.writePosition)
+			{
+				int header = segment.buffer.getInt(position);
+				int length = header & ~TABLE_FLAG;
+				ByteBuffer body = segment.buffer.duplicate();
+				body.position(position + LENGTH_BYTES);
+
+				String table = null;
+				int rowLength = length;
+				if ((header & TABLE_FLAG) != 0)
+				{
+					byte[] key = new byte[body.getShort() & 0xffff];
+					body.get(key);
+					table = new String(key, StandardCharsets.UTF_8);
+					rowLength -= TABLE_LENGTH_BYTES + key.length;
+				}
+
+				if (rows > 0 && !(table == null ? into.table == null : table.equals(into.table)))
+				{
+					otherTable = true;
+					break;
+				}
+
+				into.table = table;
+				into.addRaw(body, rowLength);
+				rows++;
+				position += LENGTH_BYTES + length;
+			}
+
+			if (rows >= max || otherTable)
+				break;
+		}
+
+		pendingSegment = segmentId;
+		pendingPosition = position;
+		return rows;
+	}
+
+	/**
+	 * Consumes the rows returned by the last {@link #peek(int, RowBatch)} and deletes segments that are fully read.
+	 */
+	synchronized void commit()
+	{
+		readSegment = pendingSegment;
+		readPosition = pendingPosition;
+
+		while (segments.size() > 1 && segments.getFirst().id < readSegment)
+			segments.removeFirst().file.delete();
+
+		// Once everything is read, start over at the beginning of the last segment.
+		if (segments.size() == 1 && readPosition == segments.getFirst().writePosition)
+		{
+			Segment last = segments.removeFirst();
+			last.file.delete();
+			readSegment = last.id + 1;
+			readPosition = 0;
+			pendingSegment = readSegment;
+			pendingPosition = 0;
+		}
+
+		checkpoint.putLong(0, readSegment);
+		checkpoint.putInt(8, readPosition);
+		if (syncPolicy == SyncPolicy.ALWAYS)
+			checkpoint.force();
+	}
+
+	/**
+	 * @return
+	 * 		true if there are no unread rows.
+	 */
+	synchronized boolean isEmpty()
+	{
+		if (segments.isEmpty())
+			return true;
+
+		Segment last = segments.getLast();
+		return last.id == readSegment && last.writePosition == readPosition;
+	}
+
+	/**
+	 * @return
+	 * 		The number of bytes used by the segment files.
+	 */
+	synchronized long sizeBytes()
+	{
+		return (long) segments.size() * segmentBytes;
+	}
+
+	/**
+	 * @return
+	 * 		The number of rows rejected because the spool was full.
+	 */
+	synchronized long getRejected()
+	{
+		return rejected;
+	}
+
+	/**
+	 * Forces all segments and the checkpoint to disk.
+	 */
+	synchronized void sync()
+	{
+		for (Segment segment : segments)
+			segment.buffer.force();
+		checkpoint.force();
+	}
+
+	private Segment newSegment(long id) throws IOException
+	{
+		File file = segmentFile(id);
+		Segment segment = new Segment(id, file, map(file, segmentBytes));
+		segments.add(segment);
+		return segment;
+	}
+
+	private File segmentFile(long id)
+	{
+		return new File(directory, String.format("%020d%s", id, SEGMENT_SUFFIX));
+	}
+
+	private static MappedByteBuffer map(File file, int size) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+		finally
+		{
+			// The mapping stays valid after the channel is closed.
+			raf.close();
+		}
+	}
+}
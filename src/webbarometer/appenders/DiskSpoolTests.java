@@ -0,0 +1,203 @@
+package webbarometer.appenders;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Exercises the {@link DiskSpool} on its own: reading and consuming rows, rotating and deleting segments,
+ * rejecting rows once full and picking up where a crashed JVM left off. Lives next to the spool, which is not
+ * public.
+ */
+public class DiskSpoolTests
+{
+	/**
+	 * Room for four records of a row from {@link #row(String, int)} for table "t": 4 + 2 + 1 + 7 bytes each.
+	 */
+	private static final int SEGMENT_BYTES = 64;
+	private static final int RECORD_BYTES = 14;
+
+	private File directory;
+
+	@Before
+	public void createDirectory() throws IOException
+	{
+		directory = File.createTempFile("bigquery-spool", "");
+		directory.delete();
+	}
+
+	@After
+	public void deleteDirectory()
+	{
+		File[] files = directory.listFiles();
+		for (File file : files == null ? new File[0] : files)
+			file.delete();
+		directory.delete();
+	}
+
+	/**
+	 * Peeked rows stay in the spool until they are committed.
+	 */
+	@Test
+	public void rowsAreConsumedOnCommit() throws IOException
+	{
+		DiskSpool spool = new DiskSpool(directory, SEGMENT_BYTES, 10 * SEGMENT_BYTES, DiskSpool.SyncPolicy.NEVER);
+		Assert.assertTrue(spool.isEmpty());
+		for (int i = 0; i < 3; i++)
+			Assert.assertTrue(spool.append(row("t", i), 0));
+
+		RowBatch batch = new RowBatch(64, 4);
+		Assert.assertEquals(2, spool.peek(2, batch));
+		Assert.assertEquals("t", batch.table);
+		Assert.assertEquals("{\"n\":0}", batch.rowString(0));
+
+		batch.clear();
+		Assert.assertEquals(2, spool.peek(2, batch));
+		Assert.assertEquals("{\"n\":0}", batch.rowString(0));
+		spool.commit();
+
+		batch.clear();
+		Assert.assertEquals(1, spool.peek(10, batch));
+		Assert.assertEquals("{\"n\":2}", batch.rowString(0));
+		spool.commit();
+		Assert.assertTrue(spool.isEmpty());
+	}
+
+	/**
+	 * A peek stops before the first row for another table.
+	 */
+	@Test
+	public void peekStopsAtAnotherTable() throws IOException
+	{
+		DiskSpool spool = new DiskSpool(directory, SEGMENT_BYTES, 10 * SEGMENT_BYTES, DiskSpool.SyncPolicy.NEVER);
+		spool.append(row("a", 0), 0);
+		spool.append(row("a", 1), 0);
+		spool.append(row("b", 2), 0);
+
+		RowBatch batch = new RowBatch(64, 4);
+		Assert.assertEquals(2, spool.peek(10, batch));
+		Assert.assertEquals("a", batch.table);
+		spool.commit();
+
+		batch.clear();
+		Assert.assertEquals(1, spool.peek(10, batch));
+		Assert.assertEquals("b", batch.table);
+	}
+
+	/**
+	 * Rows go on in a new segment when one is full, and fully read segments are deleted.
+	 */
+	@Test
+	public void segmentsAreRotatedAndDeleted() throws IOException
+	{
+		DiskSpool spool = new DiskSpool(directory, SEGMENT_BYTES, 10 * SEGMENT_BYTES, DiskSpool.SyncPolicy.SEGMENT);
+		for (int i = 0; i < 10; i++)
+			Assert.assertTrue(spool.append(row("t", i), 0));
+		Assert.assertEquals(3 * SEGMENT_BYTES, spool.sizeBytes());
+		Assert.assertEquals(3, segmentFiles().length);
+
+		RowBatch batch = new RowBatch(64, 8);
+		Assert.assertEquals(6, spool.peek(6, batch));
+		Assert.assertEquals("{\"n\":5}", batch.rowString(5));
+		spool.commit();
+		Assert.assertEquals(2, segmentFiles().length);
+
+		batch.clear();
+		Assert.assertEquals(4, spool.peek(10, batch));
+		Assert.assertEquals("{\"n\":9}", batch.rowString(3));
+		spool.commit();
+		Assert.assertTrue(spool.isEmpty());
+		Assert.assertEquals(0, segmentFiles().length);
+	}
+
+	/**
+	 * Once the segments would exceed maxBytes, rows are rejected and counted, and those spooled before are
+	 * still read back.
+	 */
+	@Test
+	public void rowsAreRejectedWhenFull() throws IOException
+	{
+		DiskSpool spool = new DiskSpool(directory, SEGMENT_BYTES, 2 * SEGMENT_BYTES, DiskSpool.SyncPolicy.NEVER);
+		for (int i = 0; i < 8; i++)
+			Assert.assertTrue(spool.append(row("t", i), 0));
+		Assert.assertFalse(spool.append(row("t", 8), 0));
+		Assert.assertEquals(1, spool.getRejected());
+
+		RowBatch batch = new RowBatch(64, 8);
+		Assert.assertEquals(8, spool.peek(10, batch));
+		Assert.assertEquals("{\"n\":7}", batch.rowString(7));
+	}
+
+	/**
+	 * A reopened spool resumes at the committed position, and a record whose length was never written, as
+	 * after a crash half-way through an append, reads as the end of the segment and is written over.
+	 */
+	@Test
+	public void spoolIsRecoveredAfterRestart() throws IOException
+	{
+		DiskSpool spool = new DiskSpool(directory, SEGMENT_BYTES, 10 * SEGMENT_BYTES, DiskSpool.SyncPolicy.ALWAYS);
+		for (int i = 0; i < 3; i++)
+			spool.append(row("t", i), 0);
+		RowBatch batch = new RowBatch(64, 4);
+		spool.peek(1, batch);
+		spool.commit();
+		spool.sync();
+
+		// The payload of a fourth record without its length.
+		RandomAccessFile segment = new RandomAccessFile(segmentFiles()[0], "rw");
+		try
+		{
+			segment.seek(3 * RECORD_BYTES + 4);
+			segment.write(new byte[] { 0, 1, 't', '{', '"', 'n', '"' });
+		}
+		finally
+		{
+			segment.close();
+		}
+
+		DiskSpool recovered = new DiskSpool(directory, SEGMENT_BYTES, 10 * SEGMENT_BYTES, DiskSpool.SyncPolicy.ALWAYS);
+		Assert.assertFalse(recovered.isEmpty());
+		Assert.assertTrue(recovered.append(row("t", 3), 0));
+
+		batch.clear();
+		Assert.assertEquals(3, recovered.peek(10, batch));
+		Assert.assertEquals("{\"n\":1}", batch.rowString(0));
+		Assert.assertEquals("{\"n\":3}", batch.rowString(2));
+	}
+
+	private File[] segmentFiles()
+	{
+		File[] files = directory.listFiles(new FilenameFilter()
+		{
+			@Override
+			public boolean accept(File dir, String name)
+			{
+				return name.endsWith(".seg");
+			}
+		});
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 * @return
+	 * 		A batch whose only row is {@code {"n":<n>}}, for the given table.
+	 */
+	private static RowBatch row(String table, int n)
+	{
+		byte[] json = ("{\"n\":" + n + "}").getBytes(StandardCharsets.UTF_8);
+		RowBatch batch = new RowBatch(64, 1);
+		batch.table = table;
+		batch.addRaw(ByteBuffer.wrap(json), json.length);
+		return batch;
+	}
+}
@@ -0,0 +1,210 @@
+package webbarometer.appenders;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+
+/**
+ * The hand-off between logging threads and the sender thread: a {@link RingBuffer} of {@link LogSlot}s
+ * plus the {@link OverflowPolicy} applied when it is full.
+ */
+class EventBuffer
+{
+	private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private static final RingBuffer.Handler<LogSlot> DISCARD = new RingBuffer.Handler<LogSlot>()
+	{
+		@Override
+		public void onSlot(LogSlot slot)
+		{
+			slot.clear();
+		}
+	};
+
+	private final RingBuffer<LogSlot> ring;
+	private final OverflowPolicy policy;
+	private final Level threshold;
+	private final RingBuffer.Translator<LogSlot, LogEvent> translator;
+	private final Map<OverflowPolicy, LongAdder> dropped = new EnumMap<OverflowPolicy, LongAdder>(OverflowPolicy.class);
+
+	private volatile Thread consumer;
+
+	/**
+	 * @param capacity
+	 * 		The number of slots, rounded up to a power of two.
+	 * @param policy
+	 * 		What to do when the buffer is full.
+	 * @param threshold
+	 * 		The least specific level that is kept under {@link OverflowPolicy#DROP_BELOW_LEVEL}.
+	 * @param includeLocation
+	 * 		Whether to capture the caller's location with every event.
+	 * @param renderer
+	 * 		Renders every event into its slot with the appender's layout, or null if no column needs it.
+	 */
+	EventBuffer(int capacity, OverflowPolicy policy, Level threshold, final boolean includeLocation, final LayoutRenderer renderer)
+	{
+		this.ring = new RingBuffer<LogSlot>(capacity, LogSlot.FACTORY);
+		this.policy = policy;
+		this.threshold = threshold;
+		if (renderer == null)
+			this.translator = includeLocation ? LogSlot.LOCATION_TRANSLATOR : LogSlot.TRANSLATOR;
+		else
+		{
+			this.translator = new RingBuffer.Translator<LogSlot, LogEvent>()
+			{
+				@Override
+				public void translateTo(LogSlot slot, LogEvent event)
+				{
+					slot.set(event, includeLocation);
+					slot.render(renderer, event);
+				}
+			};
+		}
+
+		for (OverflowPolicy p : OverflowPolicy.values())
+			dropped.put(p, new LongAdder());
+	}
+
+	/**
+	 * Copies the event into a slot, applying the overflow policy if the buffer is full.
+	 *
+	 * @return
+	 * 		false if the event was dropped.
+	 */
+	boolean publish(LogEvent event)
+	{
+		return publish(translator, event, event.getLevel());
+	}
+
+	/**
+	 * Copies an aggregated event into a slot, applying the overflow policy if the buffer is full.
+	 *
+	 * @return
+	 * 		false if the event was dropped.
+	 */
+	boolean publish(LogSlot aggregate)
+	{
+		return publish(LogSlot.COPY_TRANSLATOR, aggregate, aggregate.level);
+	}
+
+	private <A> boolean publish(RingBuffer.Translator<LogSlot, A> translator, A event, Level level)
+	{
+		if (ring.tryPublish(translator, event))
+		{
+			wakeConsumer();
+			return true;
+		}
+
+		switch (policy)
+		{
+			case DROP_NEWEST:
+				dropped.get(OverflowPolicy.DROP_NEWEST).increment();
+				return false;
+
+			case DROP_OLDEST:
+				do
+				{
+					if (ring.poll(DISCARD))
+						dropped.get(OverflowPolicy.DROP_OLDEST).increment();
+				}
+				while (!ring.tryPublish(translator, event));
+				wakeConsumer();
+				return true;
+
+			case DROP_BELOW_LEVEL:
+				if (isKept(level))
+					return block(translator, event);
+				dropped.get(OverflowPolicy.DROP_BELOW_LEVEL).increment();
+				return false;
+
+			default:
+				return block(translator, event);
+		}
+	}
+
+	/**
+	 * Waits until the sender frees a slot and publishes the event into it.
+	 */
+	private <A> boolean block(RingBuffer.Translator<LogSlot, A> translator, A event)
+	{
+		do
+		{
+			wakeConsumer();
+			LockSupport.parkNanos(BLOCK_PARK_NANOS);
+		}
+		while (!ring.tryPublish(translator, event));
+		wakeConsumer();
+		return true;
+	}
+
+	private boolean isKept(Level level)
+	{
+		return level.isMoreSpecificThan(threshold) || level.isMoreSpecificThan(Level.ERROR);
+	}
+
+	/**
+	 * Hands the oldest event to the handler and frees its slot. Only called from the sender thread.
+	 *
+	 * @return
+	 * 		false if the buffer is empty.
+	 */
+	boolean poll(RingBuffer.Handler<LogSlot> handler)
+	{
+		return ring.poll(handler);
+	}
+
+	/**
+	 * Parks the sender thread until an event is published or the timeout expires.
+	 */
+	void await(long timeoutNanos)
+	{
+		consumer = Thread.currentThread();
+		if (ring.size() == 0)
+			LockSupport.parkNanos(this, timeoutNanos);
+		consumer = null;
+	}
+
+	/**
+	 * Unparks the given sender thread, e.g. so it notices it has been stopped.
+	 */
+	void wake(Thread thread)
+	{
+		LockSupport.unpark(thread);
+	}
+
+	private void wakeConsumer()
+	{
+		Thread waiting = consumer;
+		if (waiting != null)
+			LockSupport.unpark(waiting);
+	}
+
+	boolean isEmpty()
+	{
+		return ring.size() == 0;
+	}
+
+	int size()
+	{
+		return ring.size();
+	}
+
+	int capacity()
+	{
+		return ring.capacity();
+	}
+
+	/**
+	 * @return
+	 * 		The number of events dropped by the given policy.
+	 */
+	long getDropped(OverflowPolicy policy)
+	{
+		return dropped.get(policy).sum();
+	}
+}
@@ -0,0 +1,141 @@
+package webbarometer.appenders;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Fills an {@link EventBuffer} that nothing drains and checks what each {@link OverflowPolicy} does with the
+ * next event, and what it counts as dropped.
+ */
+public class EventBufferTests
+{
+	/**
+	 * The smallest buffer the ring allows.
+	 */
+	private static final int CAPACITY = 2;
+
+	@Test
+	public void dropNewestRejectsTheEvent()
+	{
+		EventBuffer buffer = full(OverflowPolicy.DROP_NEWEST);
+		Assert.assertFalse(buffer.publish(event(Level.ERROR, "new")));
+
+		Assert.assertEquals(1, buffer.getDropped(OverflowPolicy.DROP_NEWEST));
+		Assert.assertEquals(Arrays.asList("queued 0", "queued 1"), drain(buffer));
+	}
+
+	@Test
+	public void dropOldestMakesRoom()
+	{
+		EventBuffer buffer = full(OverflowPolicy.DROP_OLDEST);
+		Assert.assertTrue(buffer.publish(event(Level.INFO, "new")));
+
+		Assert.assertEquals(1, buffer.getDropped(OverflowPolicy.DROP_OLDEST));
+		Assert.assertEquals(Arrays.asList("queued 1", "new"), drain(buffer));
+	}
+
+	/**
+	 * Under the threshold an event is dropped; at the threshold, and at ERROR whatever the threshold, it waits
+	 * for a slot.
+	 */
+	@Test
+	public void dropBelowLevelKeepsErrors() throws InterruptedException
+	{
+		EventBuffer buffer = full(OverflowPolicy.DROP_BELOW_LEVEL);
+		Assert.assertFalse(buffer.publish(event(Level.INFO, "info")));
+		Assert.assertEquals(1, buffer.getDropped(OverflowPolicy.DROP_BELOW_LEVEL));
+
+		assertBlocks(buffer, event(Level.WARN, "warn"));
+
+		buffer = new EventBuffer(CAPACITY, OverflowPolicy.DROP_BELOW_LEVEL, Level.FATAL, false, null);
+		fill(buffer);
+		assertBlocks(buffer, event(Level.ERROR, "error"));
+		Assert.assertEquals(0, buffer.getDropped(OverflowPolicy.DROP_BELOW_LEVEL));
+	}
+
+	@Test
+	public void blockWaitsForASlot() throws InterruptedException
+	{
+		EventBuffer buffer = full(OverflowPolicy.BLOCK);
+		assertBlocks(buffer, event(Level.DEBUG, "debug"));
+		Assert.assertEquals(0, buffer.getDropped(OverflowPolicy.BLOCK));
+	}
+
+	/**
+	 * Publishes the event on another thread, checks it waits while the buffer is full, then frees a slot and
+	 * checks the event gets in behind the queued ones.
+	 */
+	private static void assertBlocks(final EventBuffer buffer, final LogEvent event) throws InterruptedException
+	{
+		final AtomicBoolean published = new AtomicBoolean();
+		Thread logger = new Thread("EventBufferTests-logger")
+		{
+			@Override
+			public void run()
+			{
+				published.set(buffer.publish(event));
+			}
+		};
+		logger.start();
+		logger.join(200);
+		Assert.assertTrue(logger.isAlive());
+
+		buffer.poll(collect(new ArrayList<String>()));
+		logger.join(10000);
+		Assert.assertTrue(published.get());
+
+		List<String> rest = drain(buffer);
+		Assert.assertEquals(event.getMessage().getFormattedMessage(), rest.get(rest.size() - 1));
+	}
+
+	private static EventBuffer full(OverflowPolicy policy)
+	{
+		EventBuffer buffer = new EventBuffer(CAPACITY, policy, Level.WARN, false, null);
+		fill(buffer);
+		return buffer;
+	}
+
+	private static void fill(EventBuffer buffer)
+	{
+		for (int i = 0; i < CAPACITY; i++)
+			Assert.assertTrue(buffer.publish(event(Level.INFO, "queued " + i)));
+	}
+
+	private static List<String> drain(EventBuffer buffer)
+	{
+		List<String> messages = new ArrayList<String>();
+		RingBuffer.Handler<LogSlot> handler = collect(messages);
+		while (buffer.poll(handler))
+		{
+			// Collected by the handler.
+		}
+		return messages;
+	}
+
+	private static RingBuffer.Handler<LogSlot> collect(final List<String> messages)
+	{
+		return new RingBuffer.Handler<LogSlot>()
+		{
+			@Override
+			public void onSlot(LogSlot slot)
+			{
+				messages.add(slot.message());
+				slot.clear();
+			}
+		};
+	}
+
+	private static LogEvent event(Level level, String message)
+	{
+		return new Log4jLogEvent(EventBufferTests.class.getName(), null, EventBufferTests.class.getName(), level, new SimpleMessage(message), null);
+	}
+}
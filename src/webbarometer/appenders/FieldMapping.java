@@ -0,0 +1,295 @@
+package webbarometer.appenders;
+
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import webbarometer.utils.BigqueryUtils.FieldType;
+
+/**
+ * One column of the rows a {@link BigQueryAppender} writes, declared as a {@code <Field>} element inside the
+ * appender:
+ *
+ * <pre>
+ * &lt;Field name="request_id" source="context:requestId" /&gt;
+ * &lt;Field name="user_id" source="map:userId" type="INTEGER" /&gt;
+ * &lt;Field name="exception" source="exception" /&gt;
+ * &lt;Field name="stack_trace" source="stack_trace" maxLength="65536" overflow="SPLIT" /&gt;
+ * </pre>
+ *
+ * The source names what the column is read from; see {@link Source}. {@link Source#CONTEXT} and
+ * {@link Source#MAP} take a key after a colon and may be given any scalar {@link FieldType}; the other sources
+ * have a fixed type. If an appender declares no fields, it writes {@link #defaults()}.
+ *
+ * A STRING column may be given a {@code maxLength} in characters, so one huge message or stack trace cannot
+ * get a row, and with it a whole insertAll request, rejected. What happens to longer values is its
+ * {@link Overflow}.
+ *
+ * The element is called Field rather than Column because log4j already has a Column plugin.
+ */
+@Plugin(name = "Field", category = "Core", printObject = true)
+public final class FieldMapping
+{
+	/**
+	 * Where a column's value comes from.
+	 */
+	public enum Source
+	{
+		/** The event time. */
+		TIMESTAMP(FieldType.TIMESTAMP),
+		/** The level name. */
+		LEVEL(FieldType.STRING),
+		/** The logger name. */
+		LOGGER(FieldType.STRING),
+		/**
+		 * The formatted message; rendered with the appender's Layout instead if it has one and no {@link #LAYOUT}
+		 * column is declared.
+		 */
+		MESSAGE(FieldType.STRING),
+		/** The event rendered by the appender's Layout, e.g. a whole {@code PatternLayout} line. */
+		LAYOUT(FieldType.STRING),
+		/** The name of the thread that logged the event. */
+		THREAD(FieldType.STRING),
+		/** The marker name. */
+		MARKER(FieldType.STRING),
+		/**
+		 * The caller's class, method, file and line, as {@code class.method(file:line)}. Log4j finds the
+		 * caller by walking the stack on the logging thread, so this is the one source that is expensive.
+		 */
+		LOCATION(FieldType.STRING),
+		/** The message of the thrown exception, or an empty String. */
+		THROWN(FieldType.STRING),
+		/** The thrown exception and its causes, printed the way {@link Throwable#printStackTrace()} does. */
+		STACK_TRACE(FieldType.STRING),
+		/**
+		 * The thrown exception and its causes as a REPEATED RECORD of {@code class} and {@code message}, from
+		 * the outermost exception in.
+		 */
+		EXCEPTION(FieldType.RECORD),
+		/**
+		 * The stack frames of the thrown exception and its causes as a REPEATED RECORD of {@code cause},
+		 * {@code class}, {@code method}, {@code file} and {@code line}, where {@code cause} is the index of
+		 * the exception in the {@link #EXCEPTION} column. Frames a cause shares with the exception it caused
+		 * are left out.
+		 */
+		FRAMES(FieldType.RECORD),
+		/** The number of identical events the row stands for, which is 1 unless they are aggregated. */
+		COUNT(FieldType.INTEGER),
+		/** The time of the last of the events the row stands for; the same as {@link #TIMESTAMP} unless aggregated. */
+		LAST_TIMESTAMP(FieldType.TIMESTAMP),
+		/**
+		 * The index of the row among the rows an event was split into by a {@link Overflow#SPLIT} column; 0 if
+		 * the event fit into one row.
+		 */
+		PART(FieldType.INTEGER),
+		/** A ThreadContext (MDC) value; the source is written {@code context:key}. */
+		CONTEXT(FieldType.STRING),
+		/**
+		 * A field of a {@code MapMessage} or {@code StructuredDataMessage}; the source is written
+		 * {@code map:key}.
+		 */
+		MAP(FieldType.STRING);
+
+		final FieldType defaultType;
+
+		private Source(FieldType defaultType)
+		{
+			this.defaultType = defaultType;
+		}
+
+		boolean isKeyed()
+		{
+			return this == CONTEXT || this == MAP;
+		}
+	}
+
+	/**
+	 * What happens to a value longer than the column's {@code maxLength}.
+	 */
+	public enum Overflow
+	{
+		/** The value is cut to {@code maxLength} characters, the last three of which are "...". */
+		TRUNCATE,
+		/**
+		 * The event is written as several rows, each holding the next {@code maxLength} characters of the value
+		 * and the event's other columns as they are. A {@link Source#PART} column tells the rows apart.
+		 */
+		SPLIT
+	}
+
+	private final String name;
+	private final Source source;
+	private final String key;
+	private final FieldType type;
+	private final int maxLength;
+	private final Overflow overflow;
+
+	FieldMapping(String name, Source source, String key, FieldType type)
+	{
+		this(name, source, key, type, 0, Overflow.TRUNCATE);
+	}
+
+	FieldMapping(String name, Source source, String key, FieldType type, int maxLength, Overflow overflow)
+	{
+		this.name = name;
+		this.source = source;
+		this.key = key;
+		this.type = type;
+		this.maxLength = maxLength;
+		this.overflow = overflow;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public Source getSource()
+	{
+		return source;
+	}
+
+	/**
+	 * @return
+	 * 		The ThreadContext or MapMessage key, or null for the other sources.
+	 */
+	public String getKey()
+	{
+		return key;
+	}
+
+	public FieldType getType()
+	{
+		return type;
+	}
+
+	/**
+	 * @return
+	 * 		The most characters of a value written into one row, or 0 for no limit.
+	 */
+	public int getMaxLength()
+	{
+		return maxLength;
+	}
+
+	public Overflow getOverflow()
+	{
+		return overflow;
+	}
+
+	/**
+	 * @return
+	 * 		The columns written when no fields are configured: timestamp, level, logger, message, thread and
+	 * 		thrown, as they were before the mapping was configurable.
+	 */
+	static FieldMapping[] defaults()
+	{
+		return new FieldMapping[] {
+				new FieldMapping("timestamp", Source.TIMESTAMP, null, FieldType.TIMESTAMP),
+				new FieldMapping("level", Source.LEVEL, null, FieldType.STRING),
+				new FieldMapping("logger", Source.LOGGER, null, FieldType.STRING),
+				new FieldMapping("message", Source.MESSAGE, null, FieldType.STRING),
+				new FieldMapping("thread", Source.THREAD, null, FieldType.STRING),
+				new FieldMapping("thrown", Source.THROWN, null, FieldType.STRING) };
+	}
+
+	@Override
+	public String toString()
+	{
+		return name + "=" + source.name().toLowerCase() + (key == null ? "" : ":" + key) + " " + type
+				+ (maxLength > 0 ? " " + overflow.name().toLowerCase() + " at " + maxLength : "");
+	}
+
+	/**
+	 * @param name
+	 * 		The column name.
+	 * @param source
+	 * 		One of the {@link Source} names, case-insensitive, followed by {@code :key} for context and map.
+	 * @param type
+	 * 		The column type, only for context and map columns. Defaults to STRING.
+	 * @param maxLength
+	 * 		The most characters of a value written into one row, only for STRING columns. Defaults to no limit.
+	 * @param overflow
+	 * 		TRUNCATE or SPLIT, case-insensitive: what happens to longer values. Defaults to TRUNCATE.
+	 * @return
+	 * 		The field, or null if it is not valid.
+	 */
+	@PluginFactory
+	public static FieldMapping createField(
+			@PluginAttribute("name") String name,
+			@PluginAttribute("source") String source,
+			@PluginAttribute("type") String type,
+			@PluginAttribute(value = "maxLength", defaultInt = 0) int maxLength,
+			@PluginAttribute(value = "overflow", defaultString = "TRUNCATE") String overflow)
+	{
+		if (name == null || source == null)
+		{
+			StatusLogger.getLogger().error("A BigQuery Field needs a name and a source");
+			return null;
+		}
+
+		int colon = source.indexOf(':');
+		String key = colon < 0 ? null : source.substring(colon + 1);
+		Source parsed;
+		try
+		{
+			parsed = Source.valueOf((colon < 0 ? source : source.substring(0, colon)).trim().toUpperCase().replace('-', '_'));
+		}
+		catch (IllegalArgumentException e)
+		{
+			StatusLogger.getLogger().error("Unknown source " + source + " for BigQuery field " + name);
+			return null;
+		}
+
+		if (parsed.isKeyed() != (key != null && !key.isEmpty()))
+		{
+			StatusLogger.getLogger().error("BigQuery field " + name + ": only context and map sources take a key, and they need one");
+			return null;
+		}
+
+		FieldType parsedType = parsed.defaultType;
+		if (type != null)
+		{
+			try
+			{
+				parsedType = FieldType.valueOf(type.trim().toUpperCase());
+			}
+			catch (IllegalArgumentException e)
+			{
+				StatusLogger.getLogger().error("Unknown type " + type + " for BigQuery field " + name);
+				return null;
+			}
+
+			if (parsedType != parsed.defaultType && (!parsed.isKeyed() || parsedType == FieldType.RECORD))
+			{
+				StatusLogger.getLogger().error("BigQuery field " + name + " cannot be " + parsedType + ", its source is always " + parsed.defaultType);
+				return null;
+			}
+		}
+
+		Overflow parsedOverflow;
+		try
+		{
+			parsedOverflow = Overflow.valueOf(overflow.trim().toUpperCase());
+		}
+		catch (IllegalArgumentException e)
+		{
+			StatusLogger.getLogger().error("Unknown overflow " + overflow + " for BigQuery field " + name);
+			return null;
+		}
+
+		if (maxLength > 0 && parsedType != FieldType.STRING)
+		{
+			StatusLogger.getLogger().error("BigQuery field " + name + ": only STRING fields take a maxLength");
+			return null;
+		}
+		if (maxLength > 0 && maxLength < 4)
+		{
+			StatusLogger.getLogger().error("BigQuery field " + name + ": maxLength must be at least 4");
+			return null;
+		}
+
+		return new FieldMapping(name, parsed, key, parsedType, Math.max(0, maxLength), parsedOverflow);
+	}
+}
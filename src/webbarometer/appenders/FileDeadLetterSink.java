@@ -0,0 +1,64 @@
+package webbarometer.appenders;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Appends dead-lettered rows to a local file as newline-delimited JSON of the form
+ * <pre>{"reason": "...", "row": {"json": {...}, "insertId": "..."}}</pre>
+ */
+class FileDeadLetterSink implements DeadLetterSink
+{
+	private final File file;
+	private final Writer writer;
+	private final JsonGenerator json;
+
+	FileDeadLetterSink(File file) throws IOException
+	{
+		this.file = file;
+		this.writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+		this.json = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET).createGenerator(writer);
+		this.json.setRootValueSeparator(null);
+	}
+
+	@Override
+	public synchronized void deadLetter(String rowJson, String reason)
+	{
+		try
+		{
+			json.writeStartObject();
+			json.writeStringField("reason", reason);
+			json.writeFieldName("row");
+			json.writeRawValue(rowJson);
+			json.writeEndObject();
+			json.flush();
+			writer.write('\n');
+			writer.flush();
+		}
+		catch (IOException e)
+		{
+			System.err.println("Could not write dead-lettered row to " + file + ": " + e.getMessage());
+		}
+	}
+
+	@Override
+	public synchronized void close()
+	{
+		try
+		{
+			json.close();
+			writer.close();
+		}
+		catch (IOException e)
+		{
+			System.err.println("Could not close dead-letter file " + file + ": " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,333 @@
+package webbarometer.appenders;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import com.google.api.client.http.HttpContent;
+
+/**
+ * Gzips insertAll request bodies before they are sent.
+ *
+ * Bodies smaller than {@code minBytes} are sent as they are, since the saving would not pay for the CPU
+ * time. Each body is compressed once per attempt into a byte array, so the request still has a known
+ * length. Totals of the bytes in and out and of the CPU time spent are kept for reporting.
+ *
+ * In adaptive mode the level moves between 1 and the configured level: it goes down while compressing
+ * takes a large share of the time a request takes, and back up while it is cheap compared to the upload.
+ * Thread-safe; the sender threads share one compressor and its pool of {@link Deflater}s, which holds one per
+ * request compressed at the same time. A pool rather than one per thread, since with
+ * {@link SenderExecution#VIRTUAL} every request runs on a new thread. {@link #close()} frees their native
+ * memory.
+ */
+class GzipCompressor
+{
+	/**
+	 * A gzipped request body, sent with {@code Content-Encoding: gzip}.
+	 */
+	static final class GzipContent implements HttpContent
+	{
+		static final String ENCODING = "gzip";
+
+		private final String type;
+		private final byte[] bytes;
+		private final int length;
+
+		/**
+		 * The CPU time spent compressing this body.
+		 */
+		final long cpuNanos;
+
+		GzipContent(String type, byte[] bytes, int length, long cpuNanos)
+		{
+			this.type = type;
+			this.bytes = bytes;
+			this.length = length;
+			this.cpuNanos = cpuNanos;
+		}
+
+		@Override
+		public long getLength()
+		{
+			return length;
+		}
+
+		@Override
+		public String getType()
+		{
+			return type;
+		}
+
+		@Override
+		public boolean retrySupported()
+		{
+			return true;
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException
+		{
+			out.write(bytes, 0, length);
+			out.flush();
+		}
+	}
+
+	/**
+	 * The gzip member header: magic, deflate, no flags, no mtime, no extra flags, unknown OS.
+	 */
+	private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	/**
+	 * Adaptive mode re-evaluates the level after this many compressed requests.
+	 */
+	private static final int ADAPT_INTERVAL = 16;
+
+	/**
+	 * Above this share of request time spent compressing, the adaptive level goes down.
+	 */
+	private static final double MAX_CPU_SHARE = 0.25;
+
+	/**
+	 * Below this share of request time spent compressing, the adaptive level goes up.
+	 */
+	private static final double MIN_CPU_SHARE = 0.05;
+
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	/**
+	 * Exposes its buffer, so the compressed bytes are not copied once more.
+	 */
+	private static final class Output extends ByteArrayOutputStream
+	{
+		Output(int size)
+		{
+			super(size);
+		}
+
+		byte[] buffer()
+		{
+			return buf;
+		}
+	}
+
+	private final int maxLevel;
+	private final int minBytes;
+	private final boolean adaptive;
+	private volatile int level;
+	private volatile boolean closed;
+
+	private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+
+	private final LongAdder compressedRequests = new LongAdder();
+	private final LongAdder skippedRequests = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private final LongAdder cpuNanos = new LongAdder();
+
+	/**
+	 * CPU and request time since the adaptive level was last evaluated.
+	 */
+	private long windowCpuNanos;
+	private long windowRequestNanos;
+	private int windowRequests;
+
+	/**
+	 * @param level
+	 * 		The deflate level, 1 (fastest) to 9 (smallest). The highest level used in adaptive mode.
+	 * @param minBytes
+	 * 		Bodies smaller than this are not compressed.
+	 * @param adaptive
+	 * 		Whether to lower the level when compressing costs too much CPU compared to sending.
+	 */
+	GzipCompressor(int level, int minBytes, boolean adaptive)
+	{
+		this.maxLevel = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level));
+		this.minBytes = minBytes;
+		this.adaptive = adaptive;
+		this.level = maxLevel;
+	}
+
+	/**
+	 * Compresses the body if it is large enough.
+	 *
+	 * @return
+	 * 		A {@link GzipContent}, or the content itself if it was too small to compress.
+	 */
+	HttpContent compress(HttpContent content) throws IOException
+	{
+		long length = content.getLength();
+		if (length >= 0 && length < minBytes)
+		{
+			skippedRequests.increment();
+			return content;
+		}
+
+		long cpuBefore = cpuTime();
+		Deflater deflater = deflaters.poll();
+		if (deflater == null)
+			deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		Output out;
+		long read;
+		try
+		{
+			deflater.setLevel(level);
+
+			out = new Output(length > 0 ? (int) Math.min(Integer.MAX_VALUE - 64, length / 4 + 64) : 4096);
+			out.write(HEADER);
+			CRC32 crc = new CRC32();
+			DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, 8192);
+			CheckedOutputStream checked = new CheckedOutputStream(deflated, crc);
+			content.writeTo(checked);
+			deflated.finish();
+			read = deflater.getBytesRead();
+			writeIntLE(out, (int) crc.getValue());
+			writeIntLE(out, (int) read);
+		}
+		finally
+		{
+			release(deflater);
+		}
+
+		long spent = cpuTime() - cpuBefore;
+		compressedRequests.increment();
+		bytesIn.add(read);
+		bytesOut.add(out.size());
+		cpuNanos.add(spent);
+
+		return new GzipContent(content.getType(), out.buffer(), out.size(), spent);
+	}
+
+	/**
+	 * Returns a deflater to the pool, or frees it if the compressor was closed meanwhile.
+	 */
+	private void release(Deflater deflater)
+	{
+		deflater.reset();
+		deflaters.offer(deflater);
+		if (closed)
+			end();
+	}
+
+	/**
+	 * Frees the pooled deflaters. Requests still being compressed free theirs when they are done.
+	 */
+	void close()
+	{
+		closed = true;
+		end();
+	}
+
+	private void end()
+	{
+		Deflater deflater;
+		while ((deflater = deflaters.poll()) != null)
+			deflater.end();
+	}
+
+	/**
+	 * Reports how long a request took, for the adaptive level. Only compressed requests count.
+	 *
+	 * @param content
+	 * 		The body that was sent, as returned by {@link #compress(HttpContent)}.
+	 * @param requestNanos
+	 * 		The wall time the request took, including the upload.
+	 */
+	void requestCompleted(HttpContent content, long requestNanos)
+	{
+		if (!adaptive || !(content instanceof GzipContent))
+			return;
+
+		synchronized (this)
+		{
+			windowCpuNanos += ((GzipContent) content).cpuNanos;
+			windowRequestNanos += requestNanos;
+			if (++windowRequests < ADAPT_INTERVAL)
+				return;
+
+			double share = windowRequestNanos <= 0 ? 0 : (double) windowCpuNanos / windowRequestNanos;
+			if (share > MAX_CPU_SHARE && level > Deflater.BEST_SPEED)
+				level--;
+			else if (share < MIN_CPU_SHARE && level < maxLevel)
+				level++;
+
+			windowCpuNanos = 0;
+			windowRequestNanos = 0;
+			windowRequests = 0;
+		}
+	}
+
+	/**
+	 * @return
+	 * 		The CPU time of the current thread, or the wall time if the JVM cannot measure it, as for virtual
+	 * 		threads. Compressing does not block, so the wall time is close to the CPU time.
+	 */
+	static long cpuTime()
+	{
+		if (!THREADS.isCurrentThreadCpuTimeSupported() || SenderExecution.isVirtual(Thread.currentThread()))
+			return System.nanoTime();
+		return THREADS.getCurrentThreadCpuTime();
+	}
+
+	int getLevel()
+	{
+		return level;
+	}
+
+	long getCompressedRequests()
+	{
+		return compressedRequests.sum();
+	}
+
+	long getSkippedRequests()
+	{
+		return skippedRequests.sum();
+	}
+
+	long getBytesIn()
+	{
+		return bytesIn.sum();
+	}
+
+	long getBytesOut()
+	{
+		return bytesOut.sum();
+	}
+
+	long getCpuNanos()
+	{
+		return cpuNanos.sum();
+	}
+
+	/**
+	 * @return
+	 * 		Uncompressed bytes per compressed byte over all compressed requests, or 1 if nothing was compressed.
+	 */
+	double getRatio()
+	{
+		long out = bytesOut.sum();
+		return out == 0 ? 1 : (double) bytesIn.sum() / out;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("gzip level %d: %d requests compressed, %d skipped, %d -> %d bytes (%.1fx), %d ms CPU",
+				level, getCompressedRequests(), getSkippedRequests(), getBytesIn(), getBytesOut(), getRatio(), getCpuNanos() / 1000000);
+	}
+
+	private static void writeIntLE(OutputStream out, int value) throws IOException
+	{
+		out.write(value);
+		out.write(value >>> 8);
+		out.write(value >>> 16);
+		out.write(value >>> 24);
+	}
+}
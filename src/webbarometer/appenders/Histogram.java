@@ -0,0 +1,114 @@
+package webbarometer.appenders;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative longs with log-linear buckets, in the spirit of HdrHistogram:
+ * every power of two is split into 8 buckets, so a recorded value is off by at most 12.5%. Recording is
+ * one atomic increment and needs no allocation. Percentiles are computed from a racy but consistent
+ * enough read of the counts.
+ */
+class Histogram
+{
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+
+	/**
+	 * Records a value. Negative values are recorded as 0.
+	 */
+	void record(long value)
+	{
+		value = Math.max(0, value);
+		counts.incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+	}
+
+	long getCount()
+	{
+		return count.sum();
+	}
+
+	double getMean()
+	{
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * @param percentile
+	 * 		The percentile, from 0 to 100.
+	 * @return
+	 * 		The upper bound of the bucket holding the percentile, or 0 if nothing was recorded.
+	 */
+	long getPercentile(double percentile)
+	{
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += snapshot[i];
+			if (seen >= rank)
+				return upperBound(i);
+		}
+
+		return upperBound(BUCKETS - 1);
+	}
+
+	long getMax()
+	{
+		for (int i = BUCKETS - 1; i >= 0; i--)
+		{
+			if (counts.get(i) > 0)
+				return upperBound(i);
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Values below {@link #SUB_BUCKETS} get a bucket each; above that, the highest bit picks the group and
+	 * the next {@link #SUB_BUCKET_BITS} bits the bucket within it.
+	 */
+	static int index(long value)
+	{
+		if (value < SUB_BUCKETS)
+			return (int) value;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @return
+	 * 		The highest value that falls into the bucket.
+	 */
+	static long upperBound(int index)
+	{
+		if (index < SUB_BUCKETS)
+			return index;
+
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = index % SUB_BUCKETS;
+		long lower = (1L << exponent) | (subBucket << (exponent - SUB_BUCKET_BITS));
+		long upper = lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+		return upper < 0 ? Long.MAX_VALUE : upper;
+	}
+}
@@ -0,0 +1,230 @@
+package webbarometer.appenders;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.google.api.services.bigquery.model.TableFieldSchema;
+
+import webbarometer.utils.BigqueryUtils;
+import webbarometer.utils.BigqueryUtils.FieldType;
+
+/**
+ * Per-process values that are the same for every row: host address and name, PID and the configured
+ * environment and deployment labels.
+ *
+ * They are resolved once and then refreshed on a slow timer, so no log event ever waits on a DNS lookup.
+ * Rows read the current values from an immutable snapshot.
+ */
+class HostMetadata
+{
+	/**
+	 * How the metadata reaches BigQuery.
+	 */
+	enum Mode
+	{
+		/**
+		 * Every row carries the metadata columns.
+		 */
+		ROW,
+		/**
+		 * Each insertAll request names a {@code templateSuffix} built from the labels and host name, so
+		 * BigQuery writes the rows to a per-host table created from the configured table, and the rows leave
+		 * those columns out. The source address and PID do not belong in a table name and stay in the rows.
+		 * The suffix is built once, so it keeps the host name resolved at start.
+		 */
+		TEMPLATE_SUFFIX;
+	}
+
+	private static final class Snapshot
+	{
+		final String address;
+		final String hostName;
+
+		Snapshot(String address, String hostName)
+		{
+			this.address = address;
+			this.hostName = hostName;
+		}
+	}
+
+	private static final SerializedString SOURCE = new SerializedString("source");
+	private static final SerializedString HOST = new SerializedString("host");
+	private static final SerializedString PID = new SerializedString("pid");
+	private static final SerializedString ENVIRONMENT = new SerializedString("environment");
+	private static final SerializedString DEPLOYMENT = new SerializedString("deployment");
+
+	private final long pid;
+	private final String environment;
+	private final String deployment;
+	private final boolean suffixed;
+
+	private volatile Snapshot snapshot = new Snapshot(null, null);
+	private ScheduledExecutorService refresher;
+
+	/**
+	 * Resolves the metadata.
+	 *
+	 * @param environment
+	 * 		The environment label, e.g. "production". May be null.
+	 * @param deployment
+	 * 		The deployment label, e.g. a release or cluster name. May be null.
+	 * @param suffixed
+	 * 		Whether the labels and host name go into the {@link #templateSuffix()} instead of the rows.
+	 */
+	HostMetadata(String environment, String deployment, boolean suffixed)
+	{
+		this.environment = environment;
+		this.deployment = deployment;
+		this.suffixed = suffixed;
+		this.pid = resolvePid();
+
+		refresh();
+	}
+
+	/**
+	 * Refreshes the host address and name every {@code refreshMillis} on a background thread.
+	 *
+	 * @param name
+	 * 		The name of the owning appender, used to name the thread.
+	 */
+	void start(final String name, long refreshMillis)
+	{
+		refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "BigQueryAppender-" + name + "-metadata");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		refresher.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				refresh();
+			}
+		}, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+	}
+
+	void stop()
+	{
+		if (refresher != null)
+			refresher.shutdownNow();
+	}
+
+	/**
+	 * Resolves the host address and name. If resolving fails the previous values are kept.
+	 */
+	void refresh()
+	{
+		try
+		{
+			InetAddress ip = InetAddress.getLocalHost();
+			snapshot = new Snapshot(ip.getHostAddress(), ip.getHostName());
+		}
+		catch (UnknownHostException e)
+		{
+			System.err.println("Could not resolve the local host for BigQuery rows: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes the metadata columns into the row object being generated.
+	 */
+	void write(JsonGenerator json) throws IOException
+	{
+		Snapshot current = snapshot;
+		RowEncoder.writeString(json, SOURCE, current.address);
+		if (!suffixed)
+			RowEncoder.writeString(json, HOST, current.hostName);
+		if (pid >= 0)
+		{
+			json.writeFieldName(PID);
+			json.writeNumber(pid);
+		}
+		if (!suffixed)
+		{
+			RowEncoder.writeString(json, ENVIRONMENT, environment);
+			RowEncoder.writeString(json, DEPLOYMENT, deployment);
+		}
+	}
+
+	/**
+	 * Adds the schemas of the columns {@link #write(JsonGenerator)} writes.
+	 *
+	 * @param suffixed
+	 * 		Whether the labels and host name are left out of the rows.
+	 */
+	static void addFieldSchemas(List<TableFieldSchema> fields, boolean suffixed)
+	{
+		fields.add(BigqueryUtils.makeFieldSchema(SOURCE.getValue(), FieldType.STRING));
+		if (!suffixed)
+			fields.add(BigqueryUtils.makeFieldSchema(HOST.getValue(), FieldType.STRING));
+		fields.add(BigqueryUtils.makeFieldSchema(PID.getValue(), FieldType.INTEGER));
+		if (!suffixed)
+		{
+			fields.add(BigqueryUtils.makeFieldSchema(ENVIRONMENT.getValue(), FieldType.STRING));
+			fields.add(BigqueryUtils.makeFieldSchema(DEPLOYMENT.getValue(), FieldType.STRING));
+		}
+	}
+
+	/**
+	 * @return
+	 * 		A table suffix identifying this host and its labels, made of letters, digits and underscores.
+	 */
+	String templateSuffix()
+	{
+		StringBuilder suffix = new StringBuilder();
+		appendSuffixPart(suffix, environment);
+		appendSuffixPart(suffix, deployment);
+		appendSuffixPart(suffix, snapshot.hostName);
+		return suffix.toString();
+	}
+
+	private static void appendSuffixPart(StringBuilder suffix, String part)
+	{
+		if (part == null)
+			return;
+
+		suffix.append('_');
+		for (int i = 0; i < part.length(); i++)
+		{
+			char c = part.charAt(i);
+			suffix.append(Character.isLetterOrDigit(c) && c < 128 ? c : '_');
+		}
+	}
+
+	/**
+	 * Reads the PID from the runtime name, which is "pid@host" on the common JVMs.
+	 *
+	 * @return
+	 * 		The PID, or -1 if it could not be determined.
+	 */
+	private static long resolvePid()
+	{
+		String runtimeName = ManagementFactory.getRuntimeMXBean().getName();
+		int at = runtimeName.indexOf('@');
+
+		try
+		{
+			return Long.parseLong(at < 0 ? runtimeName : runtimeName.substring(0, at));
+		}
+		catch (NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+}
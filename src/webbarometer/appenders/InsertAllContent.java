@@ -0,0 +1,99 @@
+package webbarometer.appenders;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.json.Json;
+
+/**
+ * An insertAll request body assembled from the pre-encoded rows of a {@link RowBatch}:
+ * <pre>{"rows":[row,row,...],"templateSuffix":"..."}</pre>
+ * The rows are copied to the transport as they are, so nothing is serialized on the way out.
+ */
+class InsertAllContent implements HttpContent
+{
+	private static final byte[] ROWS_START = "{\"rows\":[".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] ROWS_END = "]".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] OBJECT_END = "}".getBytes(StandardCharsets.UTF_8);
+
+	private final RowBatch batch;
+	private final int[] rows;
+	private final int rowCount;
+	private final byte[] suffix;
+
+	/**
+	 * @param batch
+	 * 		The encoded rows.
+	 * @param rows
+	 * 		The indexes of the rows to send, or null to send all of them.
+	 * @param rowCount
+	 * 		The number of indexes in {@code rows} to use. Ignored if {@code rows} is null.
+	 * @param templateSuffix
+	 * 		The insertAll template suffix, or null. Made of letters, digits and underscores only.
+	 */
+	InsertAllContent(RowBatch batch, int[] rows, int rowCount, String templateSuffix)
+	{
+		this.batch = batch;
+		this.rows = rows;
+		this.rowCount = rows == null ? batch.rowCount() : rowCount;
+		this.suffix = templateSuffix == null ? null
+				: (",\"templateSuffix\":\"" + templateSuffix + "\"").getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return
+	 * 		The index in the batch of the {@code i}th row sent.
+	 */
+	int rowAt(int i)
+	{
+		return rows == null ? i : rows[i];
+	}
+
+	int rowCount()
+	{
+		return rowCount;
+	}
+
+	@Override
+	public long getLength()
+	{
+		long length = ROWS_START.length + ROWS_END.length + OBJECT_END.length + Math.max(0, rowCount - 1);
+		for (int i = 0; i < rowCount; i++)
+			length += batch.rowLength(rowAt(i));
+		if (suffix != null)
+			length += suffix.length;
+
+		return length;
+	}
+
+	@Override
+	public String getType()
+	{
+		return Json.MEDIA_TYPE;
+	}
+
+	@Override
+	public boolean retrySupported()
+	{
+		return true;
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException
+	{
+		out.write(ROWS_START);
+		for (int i = 0; i < rowCount; i++)
+		{
+			if (i > 0)
+				out.write(',');
+			batch.writeRow(rowAt(i), out);
+		}
+		out.write(ROWS_END);
+		if (suffix != null)
+			out.write(suffix);
+		out.write(OBJECT_END);
+		out.flush();
+	}
+}
@@ -0,0 +1,26 @@
+package webbarometer.appenders;
+
+/**
+ * How the {@link BigQueryAppender} picks the insertId BigQuery uses to drop duplicate rows on a best-effort
+ * basis. Whatever the strategy, a row keeps its insertId when it is retried or replayed from the spool,
+ * since those re-send the bytes encoded the first time.
+ */
+enum InsertIdStrategy
+{
+	/**
+	 * No insertId is sent, so BigQuery does not deduplicate. The cheapest option, and the one that allows
+	 * the highest streaming quotas.
+	 */
+	NONE,
+	/**
+	 * A random prefix chosen when the JVM starts, followed by a counter. Unique for every row the process
+	 * sends, so only actual re-sends are deduplicated.
+	 */
+	SEQUENCE,
+	/**
+	 * A 64-bit hash of the row's content, including its timestamp and host metadata. Identical events
+	 * logged in the same millisecond are treated as duplicates, which also catches rows sent again by
+	 * another process, e.g. after a spool was copied to another host.
+	 */
+	CONTENT_HASH;
+}
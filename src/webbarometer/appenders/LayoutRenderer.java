@@ -0,0 +1,143 @@
+package webbarometer.appenders;
+
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.core.pattern.PatternFormatter;
+
+/**
+ * Renders events with the appender's {@link Layout} into a {@link LogSlot}'s own buffer, on the logging
+ * thread, so the rendering is done while the event is still whole.
+ *
+ * A {@link PatternLayout} is not asked for a String; its pattern is parsed into log4j's own formatters once,
+ * and they append straight into the slot's {@link StringBuilder}, which is reused from event to event. The
+ * rendered line is later copied into the row from there, see {@link RowSchema}, so the line itself is never
+ * a String. The pattern is parsed with the layout's own {@code alwaysWriteExceptions} and {@code noConsoleNoAnsi},
+ * which log4j 2.0 only keeps in private fields; if they cannot be read the layout is called as usual.
+ *
+ * Other layouts are called as usual and their result appended; a layout returning bytes is decoded with the
+ * charset named in its content type, or UTF-8. Binary layouts are not supported, see {@link #isBinary(Layout)}.
+ *
+ * Thread-safe: the formatters keep no state between events.
+ */
+class LayoutRenderer
+{
+	private final Layout<? extends Serializable> layout;
+	private final PatternFormatter[] formatters;
+	private final Charset charset;
+
+	/**
+	 * @param layout
+	 * 		The appender's layout.
+	 * @param config
+	 * 		The configuration the layout came from, which some pattern converters look things up in. May be null.
+	 */
+	LayoutRenderer(Layout<? extends Serializable> layout, Configuration config)
+	{
+		this.layout = layout;
+		this.charset = charset(layout);
+		this.formatters = layout instanceof PatternLayout ? parse((PatternLayout) layout, config) : null;
+	}
+
+	/**
+	 * @return
+	 * 		The formatters of the layout's pattern, or null if its options could not be read. Its regex
+	 * 		replacement is not exposed and so not applied.
+	 */
+	private static PatternFormatter[] parse(PatternLayout layout, Configuration config)
+	{
+		boolean alwaysWriteExceptions;
+		boolean noConsoleNoAnsi;
+		try
+		{
+			alwaysWriteExceptions = readBoolean(layout, "alwaysWriteExceptions");
+			noConsoleNoAnsi = readBoolean(layout, "noConsoleNoAnsi");
+		}
+		catch (ReflectiveOperationException | RuntimeException e)
+		{
+			return null;
+		}
+
+		List<PatternFormatter> parsed = PatternLayout.createPatternParser(config)
+				.parse(layout.getConversionPattern(), alwaysWriteExceptions, noConsoleNoAnsi);
+		return parsed.toArray(new PatternFormatter[parsed.size()]);
+	}
+
+	private static boolean readBoolean(PatternLayout layout, String name) throws ReflectiveOperationException
+	{
+		Field field = PatternLayout.class.getDeclaredField(name);
+		field.setAccessible(true);
+		return field.getBoolean(layout);
+	}
+
+	/**
+	 * @return
+	 * 		Whether the layout writes something other than text, such as serialized Java objects, which cannot be
+	 * 		put into a column.
+	 */
+	static boolean isBinary(Layout<? extends Serializable> layout)
+	{
+		return "application/octet-stream".equals(layout.getContentType());
+	}
+
+	/**
+	 * @return
+	 * 		The charset named in the layout's content type, e.g. "text/plain; charset=ISO-8859-1", or UTF-8.
+	 */
+	private static Charset charset(Layout<? extends Serializable> layout)
+	{
+		String contentType = layout.getContentType();
+		int at = contentType == null ? -1 : contentType.toLowerCase().indexOf("charset=");
+		if (at < 0)
+			return StandardCharsets.UTF_8;
+
+		String name = contentType.substring(at + "charset=".length()).split("[;\\s]")[0].replace("\"", "");
+		try
+		{
+			return Charset.forName(name);
+		}
+		catch (IllegalArgumentException e)
+		{
+			return StandardCharsets.UTF_8;
+		}
+	}
+
+	/**
+	 * Appends the rendered event to the buffer, without the line separator a pattern usually ends with.
+	 */
+	void render(LogEvent event, StringBuilder out)
+	{
+		int start = out.length();
+		if (formatters == null)
+		{
+			Serializable rendered = layout.toSerializable(event);
+			if (rendered instanceof byte[])
+				out.append(new String((byte[]) rendered, charset));
+			else
+				out.append(rendered);
+		}
+		else
+		{
+			for (PatternFormatter formatter : formatters)
+				formatter.format(event, out);
+		}
+
+		int end = out.length();
+		while (end > start && (out.charAt(end - 1) == '\n' || out.charAt(end - 1) == '\r'))
+			end--;
+		out.setLength(end);
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.valueOf(layout);
+	}
+}
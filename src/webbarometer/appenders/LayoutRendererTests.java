@@ -0,0 +1,109 @@
+package webbarometer.appenders;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.core.layout.SerializedLayout;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Renders events with the {@link LayoutRenderer} and checks they come out as the layout itself would write
+ * them.
+ */
+public class LayoutRendererTests
+{
+	private static final LogEvent FAILED = new Log4jLogEvent(LayoutRendererTests.class.getName(), null,
+			LayoutRendererTests.class.getName(), Level.ERROR, new SimpleMessage("Failed"), new IllegalStateException("broken"));
+
+	/**
+	 * The pattern is parsed with the layout's own alwaysWriteExceptions.
+	 */
+	@Test
+	public void patternKeepsTheLayoutsExceptionSetting()
+	{
+		Assert.assertEquals("ERROR Failed", render(pattern(false), FAILED));
+		Assert.assertTrue(render(pattern(true), FAILED).contains("java.lang.IllegalStateException: broken"));
+	}
+
+	@Test
+	public void bytesAreDecodedWithTheContentTypeCharset()
+	{
+		Assert.assertEquals("Gr\u00fc\u00dfe", render(new BytesLayout("Gr\u00fc\u00dfe"), FAILED));
+	}
+
+	@Test
+	public void serializedLayoutIsBinary()
+	{
+		Assert.assertTrue(LayoutRenderer.isBinary(SerializedLayout.createLayout()));
+		Assert.assertFalse(LayoutRenderer.isBinary(pattern(true)));
+	}
+
+	private static PatternLayout pattern(boolean alwaysWriteExceptions)
+	{
+		return PatternLayout.createLayout("%p %m%n", null, null, StandardCharsets.UTF_8, alwaysWriteExceptions, false, null, null);
+	}
+
+	private static String render(Layout<?> layout, LogEvent event)
+	{
+		StringBuilder out = new StringBuilder();
+		new LayoutRenderer(layout, null).render(event, out);
+		return out.toString();
+	}
+
+	/**
+	 * Writes a fixed text as UTF-16 bytes.
+	 */
+	private static final class BytesLayout implements Layout<byte[]>
+	{
+		private final String text;
+
+		BytesLayout(String text)
+		{
+			this.text = text;
+		}
+
+		@Override
+		public byte[] getFooter()
+		{
+			return null;
+		}
+
+		@Override
+		public byte[] getHeader()
+		{
+			return null;
+		}
+
+		@Override
+		public byte[] toByteArray(LogEvent event)
+		{
+			return text.getBytes(StandardCharsets.UTF_16);
+		}
+
+		@Override
+		public byte[] toSerializable(LogEvent event)
+		{
+			return toByteArray(event);
+		}
+
+		@Override
+		public String getContentType()
+		{
+			return "text/plain; charset=UTF-16";
+		}
+
+		@Override
+		public Map<String, String> getContentFormat()
+		{
+			return Collections.emptyMap();
+		}
+	}
+}
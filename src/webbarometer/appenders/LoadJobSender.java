@@ -0,0 +1,464 @@
+package webbarometer.appenders;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.FileContent;
+import com.google.api.services.bigquery.Bigquery;
+import com.google.api.services.bigquery.model.Job;
+import com.google.api.services.bigquery.model.JobConfiguration;
+import com.google.api.services.bigquery.model.JobConfigurationLoad;
+import com.google.api.services.bigquery.model.JobReference;
+import com.google.api.services.bigquery.model.TableReference;
+import com.google.api.services.bigquery.model.TableSchema;
+
+/**
+ * Delivers rows with load jobs instead of streaming inserts, for {@link DeliveryMode#LOAD}.
+ *
+ * The sender thread appends each batch of bare rows (see {@link RowEncoder#RowEncoder(RowSchema, HostMetadata)})
+ * to an open newline-delimited JSON file for its table, named {@code <dataset>.<table>.<id>.open}. A file is
+ * closed and renamed to {@code .json} once it reaches {@code maxFileBytes} or has been open for
+ * {@code rotateMillis}. A background thread uploads every {@code .json} file as a {@code jobs.insert} load
+ * job, then polls the running jobs on each tick rather than waiting on any of them. A file is deleted once
+ * its job succeeded, or renamed to {@code .failed} if the job failed or BigQuery rejected it for good, e.g.
+ * with a 400 for a bad schema; its rows then count as failed. Submissions failing for a reason that may pass,
+ * such as a 5xx, a 429 or a lost connection, are repeated on the next tick.
+ *
+ * The job id is derived from the file name, so a file that is submitted again after a restart, e.g. because
+ * the JVM stopped before its job was confirmed, finds the existing job instead of loading the rows twice.
+ * Files left open by a crash are cut back to their last complete row and loaded on the next start.
+ */
+class LoadJobSender implements Runnable
+{
+	private static final String OPEN_SUFFIX = ".open";
+	private static final String READY_SUFFIX = ".json";
+	private static final String FAILED_SUFFIX = ".failed";
+	private static final String JOB_PREFIX = "bigquery_log4j_";
+	private static final String SOURCE_FORMAT = "NEWLINE_DELIMITED_JSON";
+	private static final String MEDIA_TYPE = "application/octet-stream";
+
+	/**
+	 * How long stopping waits for the last files to be uploaded.
+	 */
+	private static final long STOP_MILLIS = 30000;
+
+	/**
+	 * Keeps the file names of different processes sharing a directory or a project apart.
+	 */
+	private static final String PROCESS_ID = Long.toHexString(new SecureRandom().nextLong() & Long.MAX_VALUE);
+
+	/**
+	 * A staging file that rows are being appended to. Guarded by the sender's lock.
+	 */
+	private static final class OpenFile
+	{
+		final File file;
+		final OutputStream out;
+		final long openedMillis;
+		long bytes;
+
+		OpenFile(File file) throws IOException
+		{
+			this.file = file;
+			this.out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+			this.openedMillis = System.currentTimeMillis();
+		}
+	}
+
+	private final Bigquery bigquery;
+	private final TableRouter router;
+	private final File directory;
+	private final long maxFileBytes;
+	private final long rotateMillis;
+	private final long pollMillis;
+	private final TableSchema schema;
+	private final AppenderMetrics metrics;
+
+	private final AtomicLong fileIds = new AtomicLong();
+	private final Map<String, OpenFile> open = new HashMap<String, OpenFile>();
+
+	/**
+	 * The running jobs by the file they load. Only used by the background thread.
+	 */
+	private final Map<File, JobReference> running = new HashMap<File, JobReference>();
+
+	private ScheduledExecutorService ticker;
+
+	/**
+	 * @param bigquery
+	 * 		The connection the jobs are submitted and polled through.
+	 * @param router
+	 * 		Resolves the table of a file from its name.
+	 * @param directory
+	 * 		Where the files are staged. Created if missing.
+	 * @param maxFileBytes
+	 * 		The size at which a file is closed and loaded.
+	 * @param rotateMillis
+	 * 		The longest a file stays open, and so about the longest a row waits before it is loaded.
+	 * @param pollMillis
+	 * 		How often files are checked for their age, uploaded, and their jobs polled.
+	 * @param schema
+	 * 		The schema missing tables are created with, or null to fail the load if the table is missing.
+	 * @param metrics
+	 * 		Records the uploads and the rows loaded or lost.
+	 * @throws IOException
+	 * 		If the directory could not be created.
+	 */
+	LoadJobSender(Bigquery bigquery, TableRouter router, File directory, long maxFileBytes, long rotateMillis, long pollMillis,
+			TableSchema schema, AppenderMetrics metrics) throws IOException
+	{
+		this.bigquery = bigquery;
+		this.router = router;
+		this.directory = directory;
+		this.maxFileBytes = maxFileBytes;
+		this.rotateMillis = rotateMillis;
+		this.pollMillis = pollMillis;
+		this.schema = schema;
+		this.metrics = metrics;
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create load directory " + directory);
+
+		recover();
+	}
+
+	/**
+	 * Makes the files left open by a previous run ready to load, without the last row if it is incomplete.
+	 */
+	private void recover() throws IOException
+	{
+		File[] files = directory.listFiles();
+		for (File file : files == null ? new File[0] : files)
+		{
+			if (!file.getName().endsWith(OPEN_SUFFIX))
+				continue;
+
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try
+			{
+				long length = raf.length();
+				while (length > 0)
+				{
+					raf.seek(length - 1);
+					if (raf.read() == '\n')
+						break;
+					length--;
+				}
+				raf.setLength(length);
+			}
+			finally
+			{
+				raf.close();
+			}
+
+			if (file.length() == 0)
+				file.delete();
+			else
+				file.renameTo(rename(file, READY_SUFFIX));
+		}
+	}
+
+	/**
+	 * Starts the background thread that closes old files, submits the ready ones and polls their jobs.
+	 *
+	 * @param name
+	 * 		The name of the owning appender, used to name the thread.
+	 */
+	void start(final String name)
+	{
+		ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "BigQueryAppender-" + name + "-load");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		ticker.scheduleWithFixedDelay(this, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Closes all files and submits them, then stops the background thread. Jobs still running are not
+	 * waited for; their files are submitted again, and found already loaded, on the next start.
+	 */
+	void stop()
+	{
+		if (ticker == null)
+			return;
+
+		ticker.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				rotate(true);
+				submitReady();
+				pollJobs();
+			}
+		});
+		ticker.shutdown();
+		try
+		{
+			if (!ticker.awaitTermination(STOP_MILLIS, TimeUnit.MILLISECONDS))
+				System.err.println("BigQuery load files still uploading after " + STOP_MILLIS + "ms, they are loaded on the next start");
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Appends the rows of a batch to the open file of its table. Only called from the sender thread.
+	 *
+	 * @throws IOException
+	 * 		If the rows could not be written. Some of them may have been.
+	 */
+	void stage(RowBatch batch) throws IOException
+	{
+		String table = batch.table == null ? router.destination(null).key : batch.table;
+		synchronized (this)
+		{
+			OpenFile file = open.get(table);
+			if (file == null)
+			{
+				String name = table + "." + System.currentTimeMillis() + "-" + PROCESS_ID + "-" + fileIds.incrementAndGet();
+				file = new OpenFile(new File(directory, name + OPEN_SUFFIX));
+				open.put(table, file);
+			}
+
+			for (int i = 0; i < batch.rowCount(); i++)
+			{
+				batch.writeRow(i, file.out);
+				file.out.write('\n');
+			}
+			file.bytes += batch.byteSize() + batch.rowCount();
+
+			if (file.bytes >= maxFileBytes)
+			{
+				open.remove(table);
+				close(file);
+			}
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		try
+		{
+			rotate(false);
+			submitReady();
+			pollJobs();
+		}
+		catch (RuntimeException e)
+		{
+			System.err.println("BigQuery load jobs failed: " + e);
+		}
+	}
+
+	/**
+	 * Closes the files that have been open too long, or all of them.
+	 */
+	private synchronized void rotate(boolean all)
+	{
+		long now = System.currentTimeMillis();
+		for (Iterator<OpenFile> i = open.values().iterator(); i.hasNext();)
+		{
+			OpenFile file = i.next();
+			if (all || now - file.openedMillis >= rotateMillis)
+			{
+				i.remove();
+				close(file);
+			}
+		}
+	}
+
+	private void close(OpenFile file)
+	{
+		try
+		{
+			file.out.close();
+			if (!file.file.renameTo(rename(file.file, READY_SUFFIX)))
+				System.err.println("Could not rename " + file.file + " for loading into BigQuery");
+		}
+		catch (IOException e)
+		{
+			System.err.println("Could not close " + file.file + ", loading what was written: " + e.getMessage());
+			file.file.renameTo(rename(file.file, READY_SUFFIX));
+		}
+	}
+
+	/**
+	 * Uploads every ready file that has no job yet.
+	 */
+	private void submitReady()
+	{
+		File[] files = directory.listFiles();
+		for (File file : files == null ? new File[0] : files)
+		{
+			if (file.getName().endsWith(READY_SUFFIX) && !running.containsKey(file))
+				submit(file);
+		}
+	}
+
+	private void submit(File file)
+	{
+		String base = file.getName().substring(0, file.getName().length() - READY_SUFFIX.length());
+		String[] parts = base.split("\\.", 3);
+		if (parts.length < 3)
+		{
+			System.err.println("Not a BigQuery load file, ignoring: " + file);
+			return;
+		}
+
+		TableReference table = router.destination(parts[0] + "." + parts[1]).ref;
+		JobReference jobRef = new JobReference().setProjectId(table.getProjectId()).setJobId(JOB_PREFIX + base.replace('.', '_'));
+		JobConfigurationLoad load = new JobConfigurationLoad()
+				.setDestinationTable(table)
+				.setSourceFormat(SOURCE_FORMAT)
+				.setWriteDisposition("WRITE_APPEND")
+				.setCreateDisposition(schema == null ? "CREATE_NEVER" : "CREATE_IF_NEEDED")
+				.setSchema(schema);
+		Job job = new Job()
+				.setJobReference(jobRef)
+				.setConfiguration(new JobConfiguration().setLoad(load));
+
+		long start = System.nanoTime();
+		boolean succeeded = false;
+		try
+		{
+			Bigquery.Jobs.Insert insert = bigquery.jobs().insert(table.getProjectId(), job, new FileContent(MEDIA_TYPE, file));
+			// One request per file; a failed upload is repeated whole on the next tick.
+			insert.getMediaHttpUploader().setDirectUploadEnabled(true);
+			insert.execute();
+			succeeded = true;
+			running.put(file, jobRef);
+		}
+		catch (GoogleJsonResponseException e)
+		{
+			// 409: submitted before, e.g. by a previous run; track the existing job.
+			if (e.getStatusCode() == 409)
+				running.put(file, jobRef);
+			else if (RetryingInserter.classify(e) == RetryingInserter.Failure.FATAL)
+				fail(file, "BigQuery rejected the load job for " + file + ": " + e.getMessage());
+			else
+				System.err.println("Could not submit BigQuery load job for " + file + ", retrying: " + e.getMessage());
+		}
+		catch (IOException e)
+		{
+			System.err.println("Could not submit BigQuery load job for " + file + ", retrying: " + e.getMessage());
+		}
+		finally
+		{
+			metrics.requestCompleted(System.nanoTime() - start, succeeded);
+		}
+	}
+
+	/**
+	 * Checks each running job once, and deletes or sets aside the files of the jobs that are done.
+	 */
+	private void pollJobs()
+	{
+		for (Iterator<Map.Entry<File, JobReference>> i = running.entrySet().iterator(); i.hasNext();)
+		{
+			Map.Entry<File, JobReference> entry = i.next();
+			File file = entry.getKey();
+			String jobId = entry.getValue().getJobId();
+			Job job;
+			try
+			{
+				job = bigquery.jobs().get(entry.getValue().getProjectId(), jobId).execute();
+			}
+			catch (IOException e)
+			{
+				System.err.println("Could not poll BigQuery load job " + jobId + ": " + e.getMessage());
+				continue;
+			}
+
+			if (job.getStatus() == null || !"DONE".equals(job.getStatus().getState()))
+				continue;
+
+			i.remove();
+			if (job.getStatus().getErrorResult() == null)
+			{
+				if (job.getStatistics() != null && job.getStatistics().getLoad() != null && job.getStatistics().getLoad().getOutputRows() != null)
+					metrics.rowsInserted(job.getStatistics().getLoad().getOutputRows().intValue());
+				file.delete();
+			}
+			else
+				fail(file, "BigQuery load job " + jobId + " failed: " + job.getStatus().getErrorResult().getMessage());
+		}
+	}
+
+	/**
+	 * Sets a file aside as {@code .failed}, so it is not submitted again, and counts its rows as failed.
+	 */
+	private void fail(File file, String reason)
+	{
+		int rows = countRows(file);
+		metrics.rowsFailed(rows);
+		System.err.println(reason + "; keeping its " + rows + " rows in " + rename(file, FAILED_SUFFIX));
+		if (!file.renameTo(rename(file, FAILED_SUFFIX)))
+		{
+			System.err.println("Could not rename " + file + ", deleting it");
+			file.delete();
+		}
+	}
+
+	/**
+	 * @return
+	 * 		The number of rows in a ready file, one per line.
+	 */
+	private static int countRows(File file)
+	{
+		int rows = 0;
+		try
+		{
+			InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+			try
+			{
+				int b;
+				while ((b = in.read()) != -1)
+				{
+					if (b == '\n')
+						rows++;
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println("Could not count the rows of " + file + ": " + e.getMessage());
+		}
+		return rows;
+	}
+
+	private static File rename(File file, String suffix)
+	{
+		String name = file.getName();
+		return new File(file.getParentFile(), name.substring(0, name.lastIndexOf('.')) + suffix);
+	}
+}
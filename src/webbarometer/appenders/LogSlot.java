@@ -0,0 +1,230 @@
+package webbarometer.appenders;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.message.MapMessage;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+
+/**
+ * A reusable ring buffer slot holding the parts of a {@link LogEvent} the sender needs to build a row.
+ *
+ * Only references are copied on the logging thread where that is safe, and messages are formatted later, on the
+ * sender thread, by {@link #message()}. A {@link ParameterizedMessage} is kept as its pattern and parameters;
+ * log4j hands over the caller's own arguments, so any that are not immutable, such as a reused StringBuilder, are
+ * turned into Strings right away, see {@link #freeze(Object[])}, as the caller may change them once the call
+ * returns. Other messages, which may refer to mutable objects, are formatted right away; the data of a
+ * {@link MapMessage}, which is a view of the caller's map, is copied too. Exceptions are rendered and rows serialized on
+ * the sender thread too, so the same holds for events handed over by log4j's async loggers, whose
+ * {@code RingBufferLogEvent}s are recycled after the call.
+ *
+ * The one exception is the appender's layout, which needs the whole event: if a column uses it, the event is
+ * rendered on the logging thread into a buffer the slot keeps from event to event, see {@link LayoutRenderer}.
+ */
+class LogSlot
+{
+	/**
+	 * A rendering buffer grown beyond this many chars by an unusually long event is not kept for the next one.
+	 */
+	private static final int MAX_RETAINED_CHARS = 16 * 1024;
+
+	static final RingBuffer.Factory<LogSlot> FACTORY = new RingBuffer.Factory<LogSlot>()
+	{
+		@Override
+		public LogSlot newInstance()
+		{
+			return new LogSlot();
+		}
+	};
+
+	static final RingBuffer.Translator<LogSlot, LogEvent> TRANSLATOR = new RingBuffer.Translator<LogSlot, LogEvent>()
+	{
+		@Override
+		public void translateTo(LogSlot slot, LogEvent event)
+		{
+			slot.set(event, false);
+		}
+	};
+
+	/**
+	 * Copies an aggregated event, see {@link Aggregator}.
+	 */
+	static final RingBuffer.Translator<LogSlot, LogSlot> COPY_TRANSLATOR = new RingBuffer.Translator<LogSlot, LogSlot>()
+	{
+		@Override
+		public void translateTo(LogSlot slot, LogSlot from)
+		{
+			slot.copy(from);
+		}
+	};
+
+	/**
+	 * Also captures the caller's location, which log4j computes by walking the stack.
+	 */
+	static final RingBuffer.Translator<LogSlot, LogEvent> LOCATION_TRANSLATOR = new RingBuffer.Translator<LogSlot, LogEvent>()
+	{
+		@Override
+		public void translateTo(LogSlot slot, LogEvent event)
+		{
+			slot.set(event, true);
+		}
+	};
+
+	long timeMillis;
+
+	/**
+	 * The time of the last event and the number of events this slot stands for, if they were aggregated.
+	 */
+	long lastMillis;
+	long count;
+
+	Level level;
+	String loggerName;
+	String threadName;
+
+	/**
+	 * The formatted message, or null until {@link #message()} formats the deferred one.
+	 */
+	String message;
+	String pattern;
+	Object[] parameters;
+	Throwable thrown;
+	Marker marker;
+	StackTraceElement location;
+	Map<String, String> contextMap;
+	Map<String, String> mapFields;
+
+	/**
+	 * The event rendered by the appender's layout, if {@link #hasRendered}. Reused by the next event.
+	 */
+	StringBuilder rendered;
+	boolean hasRendered;
+
+	void set(LogEvent event, boolean includeLocation)
+	{
+		Message msg = event.getMessage();
+		timeMillis = event.getTimeMillis();
+		level = event.getLevel();
+		loggerName = event.getLoggerName();
+		threadName = event.getThreadName();
+		message = null;
+		pattern = null;
+		parameters = null;
+		if (msg instanceof ParameterizedMessage)
+		{
+			pattern = msg.getFormat();
+			parameters = freeze(msg.getParameters());
+		}
+		else
+			message = msg.getFormattedMessage();
+		thrown = event.getThrown();
+		marker = event.getMarker();
+		location = includeLocation ? event.getSource() : null;
+		contextMap = event.getContextMap();
+		mapFields = msg instanceof MapMessage ? new HashMap<String, String>(((MapMessage) msg).getData()) : null;
+		lastMillis = timeMillis;
+		count = 1;
+		hasRendered = false;
+	}
+
+	/**
+	 * @return
+	 * 		The parameters, or a copy of them in which every one that may still change is formatted the way
+	 * 		{@link ParameterizedMessage} would, so {@link #message()} writes what was logged.
+	 */
+	static Object[] freeze(Object[] parameters)
+	{
+		if (parameters == null)
+			return null;
+
+		Object[] frozen = parameters;
+		for (int i = 0; i < parameters.length; i++)
+		{
+			if (!isImmutable(parameters[i]))
+			{
+				if (frozen == parameters)
+					frozen = parameters.clone();
+				frozen[i] = ParameterizedMessage.deepToString(parameters[i]);
+			}
+		}
+		return frozen;
+	}
+
+	private static boolean isImmutable(Object value)
+	{
+		return value == null || value instanceof String || value instanceof Number && value.getClass().getName().startsWith("java.lang.")
+				|| value instanceof Boolean || value instanceof Character || value instanceof Enum;
+	}
+
+	/**
+	 * Renders the event into {@link #rendered}. Called on the logging thread after {@link #set}.
+	 */
+	void render(LayoutRenderer renderer, LogEvent event)
+	{
+		if (rendered == null)
+			rendered = new StringBuilder(256);
+		rendered.setLength(0);
+		renderer.render(event, rendered);
+		hasRendered = true;
+	}
+
+	void copy(LogSlot from)
+	{
+		timeMillis = from.timeMillis;
+		lastMillis = from.lastMillis;
+		count = from.count;
+		level = from.level;
+		loggerName = from.loggerName;
+		threadName = from.threadName;
+		message = from.message;
+		pattern = from.pattern;
+		parameters = from.parameters;
+		thrown = from.thrown;
+		marker = from.marker;
+		location = from.location;
+		contextMap = from.contextMap;
+		mapFields = from.mapFields;
+		hasRendered = from.hasRendered;
+		if (hasRendered)
+		{
+			if (rendered == null)
+				rendered = new StringBuilder(from.rendered.length());
+			rendered.setLength(0);
+			rendered.append(from.rendered);
+		}
+	}
+
+	/**
+	 * Formats the message if that was deferred. Only called from the sender thread.
+	 */
+	String message()
+	{
+		if (message == null && pattern != null)
+			message = ParameterizedMessage.format(pattern, parameters);
+		return message;
+	}
+
+	/**
+	 * Drops the references held by this slot so a consumed slot does not keep messages alive.
+	 */
+	void clear()
+	{
+		loggerName = null;
+		threadName = null;
+		message = null;
+		pattern = null;
+		parameters = null;
+		thrown = null;
+		marker = null;
+		location = null;
+		contextMap = null;
+		mapFields = null;
+		hasRendered = false;
+		if (rendered != null && rendered.capacity() > MAX_RETAINED_CHARS)
+			rendered = null;
+	}
+}
@@ -0,0 +1,25 @@
+package webbarometer.appenders;
+
+/**
+ * What the {@link BigQueryAppender} does with an event when its buffer is full.
+ */
+public enum OverflowPolicy
+{
+	/**
+	 * The logging thread waits until the sender frees a slot.
+	 */
+	BLOCK,
+	/**
+	 * The new event is dropped.
+	 */
+	DROP_NEWEST,
+	/**
+	 * The oldest queued event is dropped to make room for the new one.
+	 */
+	DROP_OLDEST,
+	/**
+	 * Events less specific than the configured threshold are dropped; the rest wait like {@link #BLOCK}.
+	 * ERROR and FATAL are always kept, whatever the threshold.
+	 */
+	DROP_BELOW_LEVEL;
+}
@@ -0,0 +1,170 @@
+package webbarometer.appenders;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.status.StatusLogger;
+
+/**
+ * Caps the rate of some events of a {@link BigQueryAppender}, declared as a {@code <RateLimit>} element inside
+ * the appender:
+ *
+ * <pre>
+ * &lt;RateLimit level="DEBUG" eventsPerSecond="100" /&gt;
+ * &lt;RateLimit logger="com.example.chatty" level="INFO" eventsPerSecond="10" burst="50" /&gt;
+ * </pre>
+ *
+ * An event is counted against the first limit whose logger prefix and level it matches; a limit's level
+ * covers that level and the less specific ones. Each limit is one token bucket shared by all events it
+ * matches, refilled at {@code eventsPerSecond} and holding up to {@code burst} tokens. Events beyond it are
+ * suppressed, see {@link Sampler}.
+ */
+@Plugin(name = "RateLimit", category = "Core", printObject = true)
+public final class RateLimit
+{
+	private final String loggerPrefix;
+	private final Level level;
+	private final double eventsPerSecond;
+	private final int burst;
+
+	/**
+	 * Nanoseconds per token.
+	 */
+	private final long interval;
+
+	/**
+	 * How far the bucket may run ahead of now before it is empty.
+	 */
+	private final long tolerance;
+
+	/**
+	 * The time the bucket is full again, in {@link System#nanoTime()}. Every taken token moves it one
+	 * interval ahead, so taking a token is a single compare-and-set.
+	 */
+	private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+	RateLimit(String loggerPrefix, Level level, double eventsPerSecond, int burst)
+	{
+		this.loggerPrefix = loggerPrefix;
+		this.level = level;
+		this.eventsPerSecond = eventsPerSecond;
+		this.burst = burst;
+		this.interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / eventsPerSecond));
+		this.tolerance = interval * burst;
+	}
+
+	/**
+	 * @return
+	 * 		Whether the limit applies to an event of the given logger and level.
+	 */
+	boolean matches(String loggerName, Level eventLevel)
+	{
+		if (level != null && !eventLevel.isLessSpecificThan(level))
+			return false;
+		if (loggerPrefix == null)
+			return true;
+		if (loggerName == null || !loggerName.startsWith(loggerPrefix))
+			return false;
+
+		return loggerName.length() == loggerPrefix.length() || loggerName.charAt(loggerPrefix.length()) == '.';
+	}
+
+	/**
+	 * Takes a token if there is one.
+	 *
+	 * @param now
+	 * 		{@link System#nanoTime()}.
+	 * @return
+	 * 		false if the bucket is empty and the event is to be suppressed.
+	 */
+	boolean tryAcquire(long now)
+	{
+		while (true)
+		{
+			long current = fullAt.get();
+			long next = Math.max(current, now) + interval;
+			if (next - now > tolerance)
+				return false;
+			if (fullAt.compareAndSet(current, next))
+				return true;
+		}
+	}
+
+	/**
+	 * @return
+	 * 		The logger name prefix, or null to match every logger.
+	 */
+	public String getLoggerPrefix()
+	{
+		return loggerPrefix;
+	}
+
+	/**
+	 * @return
+	 * 		The most specific level that is limited, or null for every level the appender samples.
+	 */
+	public Level getLevel()
+	{
+		return level;
+	}
+
+	public double getEventsPerSecond()
+	{
+		return eventsPerSecond;
+	}
+
+	public int getBurst()
+	{
+		return burst;
+	}
+
+	@Override
+	public String toString()
+	{
+		return (loggerPrefix == null ? "*" : loggerPrefix) + (level == null ? "" : " <= " + level) + ": "
+				+ eventsPerSecond + "/s burst " + burst;
+	}
+
+	/**
+	 * @param logger
+	 * 		The logger name prefix to match. Leave out to match every logger.
+	 * @param level
+	 * 		The most specific level to limit. Leave out to limit every level that is sampled.
+	 * @param eventsPerSecond
+	 * 		The sustained rate let through.
+	 * @param burst
+	 * 		The number of events let through at once after a quiet period. Defaults to one second's worth.
+	 * @return
+	 * 		The limit, or null if it is not valid.
+	 */
+	@PluginFactory
+	public static RateLimit createRateLimit(
+			@PluginAttribute("logger") String logger,
+			@PluginAttribute("level") String level,
+			@PluginAttribute(value = "eventsPerSecond", defaultDouble = 0) double eventsPerSecond,
+			@PluginAttribute(value = "burst", defaultInt = 0) int burst)
+	{
+		if (eventsPerSecond <= 0)
+		{
+			StatusLogger.getLogger().error("A BigQuery RateLimit needs a positive eventsPerSecond");
+			return null;
+		}
+
+		Level parsed = null;
+		if (level != null)
+		{
+			parsed = Level.toLevel(level, null);
+			if (parsed == null)
+			{
+				StatusLogger.getLogger().error("Unknown level " + level + " for a BigQuery RateLimit");
+				return null;
+			}
+		}
+
+		return new RateLimit(logger, parsed, eventsPerSecond, burst > 0 ? burst : (int) Math.max(1, Math.ceil(eventsPerSecond)));
+	}
+}
@@ -0,0 +1,290 @@
+package webbarometer.appenders;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.bigquery.Bigquery;
+import com.google.api.services.bigquery.model.ErrorProto;
+import com.google.api.services.bigquery.model.TableDataInsertAllResponse;
+
+import webbarometer.utils.BigqueryUtils;
+
+/**
+ * Inserts a batch of rows, retrying what can be retried.
+ *
+ * Both request-level errors and the per-row {@code insertErrors} of a response are classified as a
+ * {@link Failure}. Only the rows that failed are re-submitted, after a capped exponential backoff with full
+ * jitter. Rows that fail for good go to the {@link DeadLetterSink}; rows that were still retryable when
+ * the attempts ran out are returned to the caller, which may spool them.
+ */
+class RetryingInserter
+{
+	/**
+	 * How a failed insert, or a failed row within an insert, is handled.
+	 */
+	enum Failure
+	{
+		/**
+		 * A transient error such as a 5xx, a timeout or a dropped connection. Retried.
+		 */
+		RETRYABLE,
+		/**
+		 * A 429 or quota/rate limit error. Retried with a longer backoff.
+		 */
+		QUOTA,
+		/**
+		 * BigQuery rejected the row itself. Dead-lettered without retrying.
+		 */
+		INVALID_ROW,
+		/**
+		 * Anything else, e.g. a missing table or bad credentials. Dead-lettered without retrying.
+		 */
+		FATAL;
+	}
+
+	/**
+	 * Quota errors wait as if this many more attempts had been made.
+	 */
+	private static final int QUOTA_BACKOFF_SHIFT = 2;
+
+	private final Bigquery bigquery;
+	private final TableRouter router;
+	private final String templateSuffix;
+	private final int maxAttempts;
+	private final long baseBackoffMillis;
+	private final long maxBackoffMillis;
+	private final DeadLetterSink deadLetters;
+	private final GzipCompressor compressor;
+	private final AppenderMetrics metrics;
+
+	/**
+	 * @param bigquery
+	 * 		The {@link Bigquery} connection used for the inserts.
+	 * @param router
+	 * 		Finds the table of a batch from its {@link RowBatch#table}, and creates it if needed.
+	 * @param templateSuffix
+	 * 		The insertAll template suffix, or null to insert into the batch's table itself.
+	 * @param maxAttempts
+	 * 		The maximum number of times a row is submitted.
+	 * @param baseBackoffMillis
+	 * 		The backoff cap for the first retry. Doubles with every attempt.
+	 * @param maxBackoffMillis
+	 * 		The highest the backoff cap can grow to.
+	 * @param deadLetters
+	 * 		Where rows that failed for good go. May be null, in which case they are reported on stderr.
+	 * @param compressor
+	 * 		Compresses the request bodies. May be null to send them uncompressed.
+	 * @param metrics
+	 * 		Records the requests, retries and failed rows.
+	 */
+	RetryingInserter(Bigquery bigquery, TableRouter router, String templateSuffix, int maxAttempts, long baseBackoffMillis, long maxBackoffMillis,
+			DeadLetterSink deadLetters, GzipCompressor compressor, AppenderMetrics metrics)
+	{
+		this.bigquery = bigquery;
+		this.router = router;
+		this.templateSuffix = templateSuffix;
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.baseBackoffMillis = baseBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+		this.deadLetters = deadLetters;
+		this.compressor = compressor;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Inserts the rows of a batch into its table, retrying failed ones.
+	 *
+	 * @param batch
+	 * 		The rows to insert.
+	 * @return
+	 * 		The indexes of the rows that were still failing with a retryable error when the attempts ran out.
+	 * 		Empty if everything was either inserted or dead-lettered.
+	 * @throws InterruptedException
+	 * 		If the thread was interrupted during a backoff. The pending rows are lost to the caller.
+	 */
+	int[] insert(RowBatch batch) throws InterruptedException
+	{
+		TableRouter.Destination destination = router.destination(batch.table);
+		InsertAllContent pending = new InsertAllContent(batch, null, 0, templateSuffix);
+
+		for (int attempt = 0; attempt < maxAttempts && pending.rowCount() > 0; attempt++)
+		{
+			Failure worst = null;
+			int[] retry = new int[pending.rowCount()];
+			int retryCount = 0;
+
+			try
+			{
+				TableDataInsertAllResponse response = send(destination, pending);
+				int rejected = response.getInsertErrors() == null ? 0 : response.getInsertErrors().size();
+				metrics.rowsInserted(pending.rowCount() - rejected);
+				if (response.getInsertErrors() != null)
+				{
+					for (TableDataInsertAllResponse.InsertErrors errors : response.getInsertErrors())
+					{
+						int row = pending.rowAt(errors.getIndex().intValue());
+						String reason = firstReason(errors.getErrors());
+						Failure failure = classify(reason);
+
+						if (failure == Failure.RETRYABLE || failure == Failure.QUOTA)
+						{
+							retry[retryCount++] = row;
+							worst = worst == Failure.QUOTA ? worst : failure;
+						}
+						else
+							deadLetter(batch, row, reason);
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				Failure failure = classify(e);
+				for (int i = 0; i < pending.rowCount(); i++)
+				{
+					if (failure == Failure.RETRYABLE || failure == Failure.QUOTA)
+						retry[retryCount++] = pending.rowAt(i);
+					else
+						deadLetter(batch, pending.rowAt(i), e.getMessage());
+				}
+				worst = failure;
+			}
+
+			pending = new InsertAllContent(batch, retry, retryCount, templateSuffix);
+			if (retryCount > 0 && attempt + 1 < maxAttempts)
+			{
+				metrics.rowsRetried(retryCount);
+				Thread.sleep(backoff(worst == Failure.QUOTA ? attempt + QUOTA_BACKOFF_SHIFT : attempt));
+			}
+		}
+
+		int[] failed = new int[pending.rowCount()];
+		for (int i = 0; i < failed.length; i++)
+			failed[i] = pending.rowAt(i);
+
+		return failed;
+	}
+
+	/**
+	 * Sends one insertAll request, compressed if there is a compressor, and records how long it took. Creates
+	 * the table first if it is missing and the router creates tables; a failure to do so counts as a failed
+	 * request.
+	 */
+	private TableDataInsertAllResponse send(TableRouter.Destination destination, InsertAllContent content) throws IOException
+	{
+		HttpContent body = compressor == null ? content : compressor.compress(content);
+		String encoding = body instanceof GzipCompressor.GzipContent ? GzipCompressor.GzipContent.ENCODING : null;
+		long start = System.nanoTime();
+		boolean succeeded = false;
+		try
+		{
+			router.ensureExists(destination);
+			TableDataInsertAllResponse response = BigqueryUtils.insertTableData(bigquery, destination.ref, body, encoding);
+			succeeded = true;
+			return response;
+		}
+		finally
+		{
+			long elapsed = System.nanoTime() - start;
+			metrics.requestCompleted(elapsed, succeeded);
+			if (compressor != null)
+				compressor.requestCompleted(body, elapsed);
+		}
+	}
+
+	/**
+	 * Picks a random delay between zero and the capped exponential backoff for the given attempt.
+	 */
+	long backoff(int attempt)
+	{
+		long cap = baseBackoffMillis << Math.min(attempt, 30);
+		if (cap <= 0 || cap > maxBackoffMillis)
+			cap = maxBackoffMillis;
+
+		return ThreadLocalRandom.current().nextLong(cap + 1);
+	}
+
+	/**
+	 * Hands a row that failed for good to the dead-letter sink.
+	 */
+	void deadLetter(RowBatch batch, int row, String reason)
+	{
+		metrics.rowsFailed(1);
+		if (deadLetters != null)
+			deadLetters.deadLetter(batch.rowString(row), reason);
+		else
+			System.err.println("Could not insert row into BigQuery (" + reason + "): " + batch.rowString(row));
+	}
+
+	private static String firstReason(List<ErrorProto> errors)
+	{
+		if (errors == null || errors.isEmpty())
+			return null;
+
+		// A row rejected because another row in its request was invalid reports "stopped" first.
+		for (ErrorProto error : errors)
+		{
+			if (!"stopped".equals(error.getReason()))
+				return error.getReason();
+		}
+
+		return errors.get(0).getReason();
+	}
+
+	/**
+	 * Classifies an insertError reason.
+	 */
+	static Failure classify(String reason)
+	{
+		if (reason == null)
+			return Failure.RETRYABLE;
+
+		switch (reason)
+		{
+			case "stopped":
+			case "timeout":
+			case "backendError":
+			case "internalError":
+				return Failure.RETRYABLE;
+			case "quotaExceeded":
+			case "rateLimitExceeded":
+				return Failure.QUOTA;
+			case "invalid":
+				return Failure.INVALID_ROW;
+			default:
+				return Failure.FATAL;
+		}
+	}
+
+	/**
+	 * Classifies an exception thrown by the insertAll request.
+	 */
+	static Failure classify(IOException e)
+	{
+		if (!(e instanceof HttpResponseException))
+			return Failure.RETRYABLE;
+
+		int status = ((HttpResponseException) e).getStatusCode();
+		if (status == 429)
+			return Failure.QUOTA;
+		if (status >= 500)
+			return Failure.RETRYABLE;
+
+		if (e instanceof GoogleJsonResponseException)
+		{
+			GoogleJsonError details = ((GoogleJsonResponseException) e).getDetails();
+			if (details != null && details.getErrors() != null && !details.getErrors().isEmpty())
+			{
+				Failure failure = classify(details.getErrors().get(0).getReason());
+				if (failure == Failure.QUOTA)
+					return failure;
+			}
+		}
+
+		return Failure.FATAL;
+	}
+}
@@ -0,0 +1,147 @@
+package webbarometer.appenders;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A preallocated, lock-free bounded ring buffer of reusable slots.
+ *
+ * Any number of threads may publish into it. Slots are claimed with a CAS on the tail and published by
+ * advancing the slot's sequence number, so producers never take a lock and never allocate. Consumption
+ * also claims slots with a CAS, which lets a producer evict the oldest slot when the buffer is full while
+ * the sender thread is draining it.
+ *
+ * @param <E>
+ * 		The type of the slot objects, created once up front and reused.
+ */
+class RingBuffer<E>
+{
+	/**
+	 * Creates the slot objects when the buffer is allocated.
+	 */
+	interface Factory<E>
+	{
+		E newInstance();
+	}
+
+	/**
+	 * Copies a value into a claimed slot.
+	 */
+	interface Translator<E, A>
+	{
+		void translateTo(E slot, A arg);
+	}
+
+	/**
+	 * Reads a slot that has been claimed for consumption. The slot may be reused once this returns.
+	 */
+	interface Handler<E>
+	{
+		void onSlot(E slot);
+	}
+
+	private static final class Cell<E>
+	{
+		volatile long sequence;
+		final E value;
+
+		Cell(long sequence, E value)
+		{
+			this.sequence = sequence;
+			this.value = value;
+		}
+	}
+
+	private final Cell<E>[] cells;
+	private final int mask;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * @param requestedCapacity
+	 * 		The minimum number of slots. Rounded up to the next power of two.
+	 * @param factory
+	 * 		Creates the slot objects.
+	 */
+	@SuppressWarnings("unchecked")
+	RingBuffer(int requestedCapacity, Factory<E> factory)
+	{
+		int capacity = Integer.highestOneBit(Math.max(2, requestedCapacity) - 1) << 1;
+
+		cells = (Cell<E>[]) new Cell<?>[capacity];
+		for (int i = 0; i < capacity; i++)
+			cells[i] = new Cell<E>(i, factory.newInstance());
+
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Claims a free slot, copies {@code arg} into it and publishes it.
+	 *
+	 * @return
+	 * 		false if the buffer is full.
+	 */
+	<A> boolean tryPublish(Translator<E, A> translator, A arg)
+	{
+		while (true)
+		{
+			long pos = tail.get();
+			Cell<E> cell = cells[(int) pos & mask];
+			long dif = cell.sequence - pos;
+
+			if (dif == 0)
+			{
+				if (tail.compareAndSet(pos, pos + 1))
+				{
+					translator.translateTo(cell.value, arg);
+					cell.sequence = pos + 1;
+					return true;
+				}
+			}
+			else if (dif < 0)
+				return false;
+		}
+	}
+
+	/**
+	 * Claims the oldest published slot, hands it to the handler and frees it.
+	 *
+	 * @return
+	 * 		false if the buffer is empty.
+	 */
+	boolean poll(Handler<E> handler)
+	{
+		while (true)
+		{
+			long pos = head.get();
+			Cell<E> cell = cells[(int) pos & mask];
+			long dif = cell.sequence - (pos + 1);
+
+			if (dif == 0)
+			{
+				if (head.compareAndSet(pos, pos + 1))
+				{
+					handler.onSlot(cell.value);
+					cell.sequence = pos + mask + 1;
+					return true;
+				}
+			}
+			else if (dif < 0)
+				return false;
+		}
+	}
+
+	/**
+	 * @return
+	 * 		An approximate count of published slots that have not been consumed yet.
+	 */
+	int size()
+	{
+		long size = tail.get() - head.get();
+		return (int) Math.max(0, Math.min(size, cells.length));
+	}
+
+	int capacity()
+	{
+		return cells.length;
+	}
+}
@@ -0,0 +1,254 @@
+package webbarometer.appenders;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * A reusable buffer of insertAll rows that are already encoded as JSON.
+ *
+ * Each row is one {@code {"json": {...}, "insertId": ...}} object. Rows are written straight into a
+ * growable byte array through a long-lived Jackson {@link JsonGenerator}, and the batch remembers where
+ * each row starts, so a subset of rows can be re-sent, spooled or dead-lettered without encoding anything
+ * twice. {@link #clear()} keeps the arrays, so a batch that is recycled stops allocating once it has
+ * grown to its working size.
+ *
+ * The batch also keeps count of its size as an insertAll request body, row by row as they are written, so the
+ * sender can cut requests at BigQuery's limits without measuring anything twice.
+ */
+class RowBatch
+{
+	private static final JsonFactory JSON_FACTORY = new JsonFactory()
+			.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+	/**
+	 * Appends to {@link #bytes}; the target of the generator.
+	 */
+	private final OutputStream sink = new OutputStream()
+	{
+		@Override
+		public void write(int b)
+		{
+			ensureCapacity(1);
+			bytes[size++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		{
+			ensureCapacity(len);
+			System.arraycopy(b, off, bytes, size, len);
+			size += len;
+		}
+	};
+
+	/**
+	 * The {@link TableRouter.Destination#key} of the table the rows go to. Null for rows read back from
+	 * the spool that were spooled before rows carried their table.
+	 */
+	String table;
+
+	private byte[] bytes;
+	private int size;
+	private int[] starts;
+	private int count;
+	private JsonGenerator generator;
+
+	/**
+	 * @param initialBytes
+	 * 		The initial size of the byte buffer.
+	 * @param initialRows
+	 * 		The initial number of rows the batch has room for.
+	 */
+	RowBatch(int initialBytes, int initialRows)
+	{
+		this.bytes = new byte[Math.max(64, initialBytes)];
+		this.starts = new int[Math.max(1, initialRows)];
+	}
+
+	/**
+	 * Starts a new row.
+	 *
+	 * @return
+	 * 		The generator to write the row object with. Finish with {@link #endRow()} or {@link #abortRow()}.
+	 */
+	JsonGenerator beginRow() throws IOException
+	{
+		if (generator == null)
+		{
+			generator = JSON_FACTORY.createGenerator(sink);
+			generator.setRootValueSeparator(null);
+		}
+
+		if (count == starts.length)
+			starts = Arrays.copyOf(starts, count * 2);
+		starts[count] = size;
+		return generator;
+	}
+
+	/**
+	 * Completes the row started by {@link #beginRow()}.
+	 */
+	void endRow() throws IOException
+	{
+		generator.flush();
+		count++;
+	}
+
+	/**
+	 * Discards the row started by {@link #beginRow()}, e.g. after the encoder failed half-way.
+	 */
+	void abortRow()
+	{
+		// The generator may be left inside an object, so start over with a fresh one.
+		generator = null;
+		size = starts[count];
+	}
+
+	/**
+	 * Appends a row that was encoded earlier, e.g. one read back from the spool, taking {@code length}
+	 * bytes from the buffer's position.
+	 */
+	void addRaw(ByteBuffer src, int length)
+	{
+		if (count == starts.length)
+			starts = Arrays.copyOf(starts, count * 2);
+		starts[count++] = size;
+		ensureCapacity(length);
+		src.get(bytes, size, length);
+		size += length;
+	}
+
+	/**
+	 * Hashes the bytes written so far for the row started by {@link #beginRow()}. The caller must have
+	 * flushed the generator.
+	 *
+	 * @return
+	 * 		A 64-bit FNV-1a hash of the bytes, with a final avalanche step.
+	 */
+	long hashCurrentRow()
+	{
+		long hash = 0xcbf29ce484222325L;
+		for (int i = starts[count]; i < size; i++)
+		{
+			hash ^= bytes[i] & 0xff;
+			hash *= 0x100000001b3L;
+		}
+
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	int rowCount()
+	{
+		return count;
+	}
+
+	/**
+	 * @return
+	 * 		The encoded size of all rows, without the separators of a request body.
+	 */
+	int byteSize()
+	{
+		return count == 0 ? 0 : size - starts[0];
+	}
+
+	/**
+	 * @return
+	 * 		The size of the rows in an insertAll request body, with the commas between them.
+	 */
+	long requestBytes()
+	{
+		return count == 0 ? 0 : (long) byteSize() + count - 1;
+	}
+
+	/**
+	 * @return
+	 * 		The encoded size of the last row.
+	 */
+	int lastRowLength()
+	{
+		return rowLength(count - 1);
+	}
+
+	int rowLength(int row)
+	{
+		return (row + 1 < count ? starts[row + 1] : size) - starts[row];
+	}
+
+	/**
+	 * Writes the encoded row to a stream.
+	 */
+	void writeRow(int row, OutputStream out) throws IOException
+	{
+		out.write(bytes, starts[row], rowLength(row));
+	}
+
+	/**
+	 * Copies the encoded row into a buffer at its current position.
+	 */
+	void copyRow(int row, ByteBuffer dest)
+	{
+		dest.put(bytes, starts[row], rowLength(row));
+	}
+
+	/**
+	 * @return
+	 * 		The encoded row as a String, for error reporting.
+	 */
+	String rowString(int row)
+	{
+		return new String(bytes, starts[row], rowLength(row), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Drops the rows from the given one on, e.g. the rows of an event that failed to encode half-way.
+	 */
+	void truncate(int rows)
+	{
+		if (rows >= count)
+			return;
+		size = starts[rows];
+		count = rows;
+	}
+
+	/**
+	 * Moves the last row to the end of another batch, e.g. when it took this batch past a request limit.
+	 */
+	void moveLastRow(RowBatch to)
+	{
+		int row = count - 1;
+		int length = rowLength(row);
+		if (to.count == to.starts.length)
+			to.starts = Arrays.copyOf(to.starts, to.count * 2);
+		to.starts[to.count++] = to.size;
+		to.ensureCapacity(length);
+		System.arraycopy(bytes, starts[row], to.bytes, to.size, length);
+		to.size += length;
+		truncate(row);
+	}
+
+	/**
+	 * Empties the batch, keeping its buffers.
+	 */
+	void clear()
+	{
+		size = 0;
+		count = 0;
+	}
+
+	private void ensureCapacity(int extra)
+	{
+		if (size + extra > bytes.length)
+			bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+	}
+}
@@ -0,0 +1,227 @@
+package webbarometer.appenders;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+/**
+ * Writes a {@link LogSlot} straight into a {@link RowBatch} as an insertAll row, without building a
+ * {@code TableRow} map first. The columns come from a compiled {@link RowSchema}; field names are pre-encoded
+ * and the timestamp and insertId are formatted into reusable arrays, so encoding a row with the default
+ * columns allocates nothing beyond what the batch buffer needs to grow.
+ *
+ * The insertId is written after the row's columns, so a {@link InsertIdStrategy#CONTENT_HASH} can be
+ * computed from the bytes already in the batch. Rows for load job files are written bare, as just the
+ * object of columns.
+ *
+ * Not thread-safe; each sender thread has its own.
+ */
+class RowEncoder
+{
+	static final SerializedString INSERT_ID = new SerializedString("insertId");
+	static final SerializedString JSON = new SerializedString("json");
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * The {@link InsertIdStrategy#SEQUENCE} prefix, random for every JVM.
+	 */
+	private static final long SEQUENCE_PREFIX = new SecureRandom().nextLong();
+
+	/**
+	 * The {@link InsertIdStrategy#SEQUENCE} counter, shared by every appender in the JVM.
+	 */
+	private static final AtomicLong SEQUENCE = new AtomicLong();
+
+	private final char[] insertId = new char[32];
+	private final RowSchema schema;
+	private final HostMetadata metadata;
+	private final InsertIdStrategy insertIds;
+	private final boolean bare;
+
+	/**
+	 * @param schema
+	 * 		The columns to write.
+	 * @param metadata
+	 * 		The host metadata written into every row. May be null to leave it out of the rows.
+	 * @param insertIds
+	 * 		How the insertId of each row is picked.
+	 */
+	RowEncoder(RowSchema schema, HostMetadata metadata, InsertIdStrategy insertIds)
+	{
+		this.schema = schema;
+		this.metadata = metadata;
+		this.insertIds = insertIds;
+		this.bare = false;
+	}
+
+	/**
+	 * Creates an encoder of bare rows, without the insertAll wrapper and insertId, as load jobs read them.
+	 *
+	 * @param schema
+	 * 		The columns to write.
+	 * @param metadata
+	 * 		The host metadata written into every row. May be null to leave it out of the rows.
+	 */
+	RowEncoder(RowSchema schema, HostMetadata metadata)
+	{
+		this.schema = schema;
+		this.metadata = metadata;
+		this.insertIds = InsertIdStrategy.NONE;
+		this.bare = true;
+	}
+
+	/**
+	 * Appends the rows for the event held in the slot to the batch: one, unless a
+	 * {@link FieldMapping.Overflow#SPLIT} column's value is too long for it. If encoding fails the batch is left
+	 * as it was.
+	 *
+	 * @param slot
+	 * 		The slot to read. It is not modified.
+	 * @param batch
+	 * 		The batch to append to.
+	 * @throws IOException
+	 * 		If a row could not be encoded.
+	 */
+	void encode(LogSlot slot, RowBatch batch) throws IOException
+	{
+		int rows = batch.rowCount();
+		try
+		{
+			int parts = split(slot);
+			for (int part = 0; part < parts; part++)
+				encode(slot, batch, part);
+		}
+		catch (IOException e)
+		{
+			batch.truncate(rows);
+			throw e;
+		}
+		catch (RuntimeException e)
+		{
+			batch.truncate(rows);
+			throw e;
+		}
+		finally
+		{
+			endSplit();
+		}
+	}
+
+	/**
+	 * Reads the values of the event's split columns.
+	 *
+	 * @return
+	 * 		The number of rows the event is written as. Write each with {@link #encode(LogSlot, RowBatch, int)},
+	 * 		then call {@link #endSplit()}.
+	 */
+	int split(LogSlot slot)
+	{
+		return schema.split(slot);
+	}
+
+	/**
+	 * Drops the values read by {@link #split(LogSlot)}.
+	 */
+	void endSplit()
+	{
+		schema.endSplit();
+	}
+
+	/**
+	 * Appends one of the rows for the event held in the slot to the batch. If encoding fails the batch is left
+	 * as it was.
+	 *
+	 * @param slot
+	 * 		The slot to read. It is not modified.
+	 * @param batch
+	 * 		The batch to append to.
+	 * @param part
+	 * 		The row of the event, 0 unless {@link #split(LogSlot)} returned more than 1.
+	 * @throws IOException
+	 * 		If the row could not be encoded.
+	 */
+	void encode(LogSlot slot, RowBatch batch, int part) throws IOException
+	{
+		JsonGenerator json = batch.beginRow();
+		try
+		{
+			if (!bare)
+			{
+				json.writeStartObject();
+				json.writeFieldName(JSON);
+			}
+
+			json.writeStartObject();
+			schema.write(json, slot, part);
+			if (metadata != null)
+				metadata.write(json);
+			json.writeEndObject();
+
+			if (!bare)
+			{
+				writeInsertId(json, batch);
+				json.writeEndObject();
+			}
+			batch.endRow();
+		}
+		catch (IOException e)
+		{
+			batch.abortRow();
+			throw e;
+		}
+		catch (RuntimeException e)
+		{
+			batch.abortRow();
+			throw e;
+		}
+	}
+
+	private void writeInsertId(JsonGenerator json, RowBatch batch) throws IOException
+	{
+		switch (insertIds)
+		{
+			case SEQUENCE:
+				writeHex(SEQUENCE_PREFIX, insertId, 0);
+				writeHex(SEQUENCE.getAndIncrement(), insertId, 16);
+				json.writeFieldName(INSERT_ID);
+				json.writeString(insertId, 0, 32);
+				break;
+			case CONTENT_HASH:
+				json.flush();
+				writeHex(batch.hashCurrentRow(), insertId, 0);
+				json.writeFieldName(INSERT_ID);
+				json.writeString(insertId, 0, 16);
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Writes the value as 16 lower-case hex digits.
+	 */
+	private static void writeHex(long value, char[] out, int offset)
+	{
+		for (int i = 15; i >= 0; i--)
+		{
+			out[offset + i] = HEX[(int) value & 0xf];
+			value >>>= 4;
+		}
+	}
+
+	/**
+	 * Writes a String field, leaving it out if the value is null.
+	 */
+	static void writeString(JsonGenerator json, SerializedString name, String value) throws IOException
+	{
+		if (value == null)
+			return;
+
+		json.writeFieldName(name);
+		json.writeString(value);
+	}
+}
@@ -0,0 +1,714 @@
+package webbarometer.appenders;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.google.api.services.bigquery.model.TableFieldSchema;
+import com.google.api.services.bigquery.model.TableSchema;
+
+import webbarometer.utils.BigqueryUtils;
+import webbarometer.utils.BigqueryUtils.FieldMode;
+import webbarometer.utils.BigqueryUtils.FieldType;
+import webbarometer.utils.TimestampFormatter;
+
+/**
+ * The configured {@link FieldMapping}s compiled into one {@link Column} per field. Each column already knows
+ * its pre-encoded name, its key and how to convert its value, so writing a row is a loop over an array with
+ * no lookups beyond the ThreadContext or MapMessage key a column reads.
+ *
+ * If the appender has a layout, {@link FieldMapping.Source#LAYOUT} columns, or else the message columns, are
+ * copied from the rendering the {@link LogSlot} holds, without making a String of it.
+ *
+ * STRING columns with a {@code maxLength} are wrapped to truncate or split their values. An event with a
+ * value too long for a {@link FieldMapping.Overflow#SPLIT} column is written as several rows: {@link #split}
+ * reads the split values once and tells how many rows there are, then each is written with {@link #write}.
+ *
+ * Not thread-safe, since the columns keep buffers to format into; each {@link RowEncoder} has its own.
+ */
+class RowSchema
+{
+	/**
+	 * Causes beyond this depth are left out, which also stops at a cycle in the cause chain.
+	 */
+	private static final int MAX_CAUSES = 16;
+
+	private static final SerializedString CLASS = new SerializedString("class");
+	private static final SerializedString MESSAGE = new SerializedString("message");
+	private static final SerializedString CAUSE = new SerializedString("cause");
+	private static final SerializedString METHOD = new SerializedString("method");
+	private static final SerializedString FILE = new SerializedString("file");
+	private static final SerializedString LINE = new SerializedString("line");
+
+	/**
+	 * Writes one column of a row.
+	 */
+	abstract static class Column
+	{
+		final SerializedString name;
+
+		Column(String name)
+		{
+			this.name = new SerializedString(name);
+		}
+
+		/**
+		 * Writes the column's field into the row object being generated, or nothing if the event has no value
+		 * for it.
+		 */
+		abstract void write(JsonGenerator json, LogSlot slot) throws IOException;
+	}
+
+	/**
+	 * A column whose value is a String, which can be limited in length.
+	 */
+	abstract static class StringColumn extends Column
+	{
+		StringColumn(String name)
+		{
+			super(name);
+		}
+
+		/**
+		 * @return
+		 * 		The event's value for the column, or null if it has none.
+		 */
+		abstract String value(LogSlot slot);
+
+		@Override
+		void write(JsonGenerator json, LogSlot slot) throws IOException
+		{
+			RowEncoder.writeString(json, name, value(slot));
+		}
+	}
+
+	private static final String ELLIPSIS = "...";
+
+	private final FieldMapping[] fields;
+	private final Column[] columns;
+	private final SplitColumn[] splitColumns;
+	private final boolean needsLocation;
+	private final boolean needsLayout;
+
+	/**
+	 * The row of the event being written, see {@link #write(JsonGenerator, LogSlot, int)}.
+	 */
+	private int part;
+
+	/**
+	 * @param fields
+	 * 		The configured fields, or null or empty for {@link FieldMapping#defaults()}.
+	 * @param epochTimestamps
+	 * 		Whether timestamp columns are sent as numeric epoch seconds rather than formatted Strings.
+	 * @param hasLayout
+	 * 		Whether the appender has a layout to render events with.
+	 */
+	RowSchema(FieldMapping[] fields, boolean epochTimestamps, boolean hasLayout)
+	{
+		this.fields = fields == null || fields.length == 0 ? FieldMapping.defaults() : fields.clone();
+		this.columns = new Column[this.fields.length];
+
+		boolean layoutColumn = false;
+		for (FieldMapping field : this.fields)
+			layoutColumn |= field.getSource() == FieldMapping.Source.LAYOUT;
+		boolean renderMessage = hasLayout && !layoutColumn;
+
+		List<SplitColumn> split = new ArrayList<SplitColumn>();
+		boolean location = false;
+		boolean layout = false;
+		for (int i = 0; i < columns.length; i++)
+		{
+			FieldMapping field = this.fields[i];
+			Column column;
+			if (field.getSource() == FieldMapping.Source.LAYOUT || (renderMessage && field.getSource() == FieldMapping.Source.MESSAGE))
+			{
+				column = new RenderedColumn(field.getName());
+				layout = hasLayout;
+			}
+			else
+				column = compile(field, epochTimestamps);
+			if (field.getMaxLength() > 0 && column instanceof StringColumn)
+			{
+				if (field.getOverflow() == FieldMapping.Overflow.SPLIT)
+				{
+					SplitColumn splitColumn = new SplitColumn((StringColumn) column, field.getMaxLength());
+					split.add(splitColumn);
+					column = splitColumn;
+				}
+				else
+					column = new TruncatedColumn((StringColumn) column, field.getMaxLength());
+			}
+			columns[i] = column;
+			location |= field.getSource() == FieldMapping.Source.LOCATION;
+		}
+		this.splitColumns = split.toArray(new SplitColumn[split.size()]);
+		this.needsLocation = location;
+		this.needsLayout = layout;
+	}
+
+	/**
+	 * Reads the values of the split columns for the event, keeping them until {@link #endSplit()}.
+	 *
+	 * @return
+	 * 		The number of rows the event is written as, 1 unless a split column's value is too long.
+	 */
+	int split(LogSlot slot)
+	{
+		int parts = 1;
+		for (SplitColumn column : splitColumns)
+			parts = Math.max(parts, column.read(slot));
+		return parts;
+	}
+
+	/**
+	 * Drops the values read by {@link #split(LogSlot)}.
+	 */
+	void endSplit()
+	{
+		for (SplitColumn column : splitColumns)
+			column.value = null;
+	}
+
+	/**
+	 * Writes every column of one of the event's rows into the row object being generated.
+	 *
+	 * @param part
+	 * 		The row, from 0 to one less than {@link #split(LogSlot)} returned.
+	 */
+	void write(JsonGenerator json, LogSlot slot, int part) throws IOException
+	{
+		this.part = part;
+		for (Column column : columns)
+			column.write(json, slot);
+	}
+
+	/**
+	 * @return
+	 * 		Whether a column reads the caller's location, which then has to be captured with every event.
+	 */
+	boolean needsLocation()
+	{
+		return needsLocation;
+	}
+
+	/**
+	 * @return
+	 * 		Whether a column reads the event rendered by the appender's layout, which then has to be rendered
+	 * 		with every event.
+	 */
+	boolean needsLayout()
+	{
+		return needsLayout;
+	}
+
+	/**
+	 * @param suffixed
+	 * 		Whether the rows go to per-host tables, and so carry only the host metadata columns the table name
+	 * 		does not hold.
+	 * @return
+	 * 		The table schema matching the rows this schema writes.
+	 */
+	TableSchema tableSchema(boolean suffixed)
+	{
+		List<TableFieldSchema> schema = new ArrayList<TableFieldSchema>();
+		for (FieldMapping field : fields)
+		{
+			switch (field.getSource())
+			{
+				case EXCEPTION:
+					List<TableFieldSchema> exception = new ArrayList<TableFieldSchema>();
+					exception.add(BigqueryUtils.makeFieldSchema("class", FieldType.STRING));
+					exception.add(BigqueryUtils.makeFieldSchema("message", FieldType.STRING));
+					schema.add(BigqueryUtils.makeFieldSchema(field.getName(), exception, FieldMode.REPEATED,
+							"The thrown exception and its causes"));
+					break;
+				case FRAMES:
+					List<TableFieldSchema> frame = new ArrayList<TableFieldSchema>();
+					frame.add(BigqueryUtils.makeFieldSchema("cause", FieldType.INTEGER));
+					frame.add(BigqueryUtils.makeFieldSchema("class", FieldType.STRING));
+					frame.add(BigqueryUtils.makeFieldSchema("method", FieldType.STRING));
+					frame.add(BigqueryUtils.makeFieldSchema("file", FieldType.STRING));
+					frame.add(BigqueryUtils.makeFieldSchema("line", FieldType.INTEGER));
+					schema.add(BigqueryUtils.makeFieldSchema(field.getName(), frame, FieldMode.REPEATED,
+							"The stack frames of the thrown exception and its causes"));
+					break;
+				default:
+					schema.add(BigqueryUtils.makeFieldSchema(field.getName(), field.getType()));
+					break;
+			}
+		}
+
+		HostMetadata.addFieldSchemas(schema, suffixed);
+
+		return new TableSchema().setFields(schema);
+	}
+
+	private Column compile(final FieldMapping field, boolean epochTimestamps)
+	{
+		switch (field.getSource())
+		{
+			case TIMESTAMP:
+				return new TimestampColumn(field.getName(), epochTimestamps, false);
+			case LAST_TIMESTAMP:
+				return new TimestampColumn(field.getName(), epochTimestamps, true);
+			case COUNT:
+				return new Column(field.getName())
+				{
+					@Override
+					void write(JsonGenerator json, LogSlot slot) throws IOException
+					{
+						json.writeFieldName(name);
+						json.writeNumber(slot.count);
+					}
+				};
+			case PART:
+				return new Column(field.getName())
+				{
+					@Override
+					void write(JsonGenerator json, LogSlot slot) throws IOException
+					{
+						json.writeFieldName(name);
+						json.writeNumber(part);
+					}
+				};
+			case LEVEL:
+				return new StringColumn(field.getName())
+				{
+					@Override
+					String value(LogSlot slot)
+					{
+						return slot.level.name();
+					}
+				};
+			case LOGGER:
+				return new StringColumn(field.getName())
+				{
+					@Override
+					String value(LogSlot slot)
+					{
+						return slot.loggerName;
+					}
+				};
+			case MESSAGE:
+				return new StringColumn(field.getName())
+				{
+					@Override
+					String value(LogSlot slot)
+					{
+						return slot.message();
+					}
+				};
+			case THREAD:
+				return new StringColumn(field.getName())
+				{
+					@Override
+					String value(LogSlot slot)
+					{
+						return slot.threadName;
+					}
+				};
+			case MARKER:
+				return new StringColumn(field.getName())
+				{
+					@Override
+					String value(LogSlot slot)
+					{
+						return slot.marker == null ? null : slot.marker.getName();
+					}
+				};
+			case LOCATION:
+				return new StringColumn(field.getName())
+				{
+					@Override
+					String value(LogSlot slot)
+					{
+						return slot.location == null ? null : slot.location.toString();
+					}
+				};
+			case THROWN:
+				return new StringColumn(field.getName())
+				{
+					@Override
+					String value(LogSlot slot)
+					{
+						return slot.thrown == null ? "" : slot.thrown.getMessage();
+					}
+				};
+			case STACK_TRACE:
+				return new StackTraceColumn(field.getName());
+			case EXCEPTION:
+				return new ExceptionColumn(field.getName());
+			case FRAMES:
+				return new FramesColumn(field.getName());
+			case CONTEXT:
+				if (field.getType() == FieldType.STRING)
+				{
+					return new StringColumn(field.getName())
+					{
+						private final String key = field.getKey();
+
+						@Override
+						String value(LogSlot slot)
+						{
+							return slot.contextMap == null ? null : slot.contextMap.get(key);
+						}
+					};
+				}
+				return new Column(field.getName())
+				{
+					private final String key = field.getKey();
+					private final FieldType type = field.getType();
+
+					@Override
+					void write(JsonGenerator json, LogSlot slot) throws IOException
+					{
+						if (slot.contextMap != null)
+							writeValue(json, name, type, slot.contextMap.get(key));
+					}
+				};
+			case MAP:
+				if (field.getType() == FieldType.STRING)
+				{
+					return new StringColumn(field.getName())
+					{
+						private final String key = field.getKey();
+
+						@Override
+						String value(LogSlot slot)
+						{
+							return slot.mapFields == null ? null : slot.mapFields.get(key);
+						}
+					};
+				}
+				return new Column(field.getName())
+				{
+					private final String key = field.getKey();
+					private final FieldType type = field.getType();
+
+					@Override
+					void write(JsonGenerator json, LogSlot slot) throws IOException
+					{
+						Map<String, String> values = slot.mapFields;
+						if (values != null)
+							writeValue(json, name, type, values.get(key));
+					}
+				};
+			default:
+				throw new IllegalArgumentException("Unknown source " + field.getSource());
+		}
+	}
+
+	/**
+	 * Writes a String value as the given scalar type. Values that do not parse as that type are left out, so
+	 * one bad value does not get the whole row rejected.
+	 */
+	static void writeValue(JsonGenerator json, SerializedString name, FieldType type, String value) throws IOException
+	{
+		if (value == null)
+			return;
+
+		switch (type)
+		{
+			case INTEGER:
+				long integer;
+				try
+				{
+					integer = Long.parseLong(value.trim());
+				}
+				catch (NumberFormatException e)
+				{
+					return;
+				}
+				json.writeFieldName(name);
+				json.writeNumber(integer);
+				break;
+			case FLOAT:
+				double number;
+				try
+				{
+					number = Double.parseDouble(value);
+				}
+				catch (NumberFormatException e)
+				{
+					return;
+				}
+				if (Double.isNaN(number) || Double.isInfinite(number))
+					return;
+				json.writeFieldName(name);
+				json.writeNumber(number);
+				break;
+			case BOOLEAN:
+				boolean truth = "true".equalsIgnoreCase(value);
+				if (!truth && !"false".equalsIgnoreCase(value))
+					return;
+				json.writeFieldName(name);
+				json.writeBoolean(truth);
+				break;
+			default:
+				json.writeFieldName(name);
+				json.writeString(value);
+				break;
+		}
+	}
+
+	private static final class TimestampColumn extends Column
+	{
+		private final TimestampFormatter formatter = new TimestampFormatter();
+		private final char[] timestamp = new char[TimestampFormatter.LENGTH];
+		private final boolean epochTimestamps;
+		private final boolean last;
+
+		/**
+		 * @param last
+		 * 		Whether to write the time of the last aggregated event rather than the first.
+		 */
+		TimestampColumn(String name, boolean epochTimestamps, boolean last)
+		{
+			super(name);
+			this.epochTimestamps = epochTimestamps;
+			this.last = last;
+		}
+
+		@Override
+		void write(JsonGenerator json, LogSlot slot) throws IOException
+		{
+			long millis = last ? slot.lastMillis : slot.timeMillis;
+			json.writeFieldName(name);
+			if (epochTimestamps)
+				json.writeNumber(TimestampFormatter.toEpochSeconds(millis));
+			else
+				json.writeString(timestamp, 0, formatter.formatTo(millis, timestamp, 0));
+		}
+	}
+
+	private static final class StackTraceColumn extends StringColumn
+	{
+		private final StringWriter trace = new StringWriter(1024);
+		private final PrintWriter printer = new PrintWriter(trace);
+
+		StackTraceColumn(String name)
+		{
+			super(name);
+		}
+
+		@Override
+		String value(LogSlot slot)
+		{
+			if (slot.thrown == null)
+				return null;
+
+			trace.getBuffer().setLength(0);
+			slot.thrown.printStackTrace(printer);
+			printer.flush();
+			return trace.toString();
+		}
+	}
+
+	/**
+	 * Copies the rendered event from the slot's buffer through a reusable char array.
+	 */
+	private static final class RenderedColumn extends StringColumn
+	{
+		private char[] chars = new char[256];
+
+		RenderedColumn(String name)
+		{
+			super(name);
+		}
+
+		@Override
+		String value(LogSlot slot)
+		{
+			return slot.hasRendered ? slot.rendered.toString() : null;
+		}
+
+		@Override
+		void write(JsonGenerator json, LogSlot slot) throws IOException
+		{
+			if (!slot.hasRendered)
+				return;
+
+			int length = slot.rendered.length();
+			if (length > chars.length)
+				chars = new char[Math.max(length, chars.length * 2)];
+			slot.rendered.getChars(0, length, chars, 0);
+			json.writeFieldName(name);
+			json.writeString(chars, 0, length);
+		}
+	}
+
+	/**
+	 * @return
+	 * 		The index at or just before the given one that does not fall between the two chars of a surrogate
+	 * 		pair, capped at the end of the value.
+	 */
+	private static int boundary(String value, int index)
+	{
+		if (index >= value.length())
+			return value.length();
+		if (index > 0 && Character.isHighSurrogate(value.charAt(index - 1)))
+			return index - 1;
+		return index;
+	}
+
+	/**
+	 * Cuts longer values to {@code maxLength} characters ending in "...".
+	 */
+	private static final class TruncatedColumn extends Column
+	{
+		private final StringColumn column;
+		private final int maxLength;
+
+		TruncatedColumn(StringColumn column, int maxLength)
+		{
+			super(column.name.getValue());
+			this.column = column;
+			this.maxLength = maxLength;
+		}
+
+		@Override
+		void write(JsonGenerator json, LogSlot slot) throws IOException
+		{
+			String value = column.value(slot);
+			if (value == null)
+				return;
+
+			json.writeFieldName(name);
+			if (value.length() <= maxLength)
+				json.writeString(value);
+			else
+				json.writeString(value.substring(0, boundary(value, maxLength - ELLIPSIS.length())) + ELLIPSIS);
+		}
+	}
+
+	/**
+	 * Writes the {@link #part}th {@code maxLength} characters of the value read by {@link #split(LogSlot)}, and
+	 * nothing in the rows past its end.
+	 */
+	private final class SplitColumn extends Column
+	{
+		private final StringColumn column;
+		private final int maxLength;
+		private String value;
+
+		SplitColumn(StringColumn column, int maxLength)
+		{
+			super(column.name.getValue());
+			this.column = column;
+			this.maxLength = maxLength;
+		}
+
+		/**
+		 * @return
+		 * 		The number of rows the value needs.
+		 */
+		int read(LogSlot slot)
+		{
+			value = column.value(slot);
+			return value == null ? 1 : Math.max(1, (value.length() + maxLength - 1) / maxLength);
+		}
+
+		@Override
+		void write(JsonGenerator json, LogSlot slot) throws IOException
+		{
+			if (value == null)
+				return;
+			if (value.length() <= maxLength)
+			{
+				if (part == 0)
+				{
+					json.writeFieldName(name);
+					json.writeString(value);
+				}
+				return;
+			}
+
+			int start = boundary(value, part * maxLength);
+			if (start >= value.length())
+				return;
+			json.writeFieldName(name);
+			json.writeString(value.substring(start, boundary(value, (part + 1) * maxLength)));
+		}
+	}
+
+	private static final class ExceptionColumn extends Column
+	{
+		ExceptionColumn(String name)
+		{
+			super(name);
+		}
+
+		@Override
+		void write(JsonGenerator json, LogSlot slot) throws IOException
+		{
+			if (slot.thrown == null)
+				return;
+
+			json.writeFieldName(name);
+			json.writeStartArray();
+			Throwable t = slot.thrown;
+			for (int depth = 0; t != null && depth < MAX_CAUSES; depth++, t = t.getCause())
+			{
+				json.writeStartObject();
+				RowEncoder.writeString(json, CLASS, t.getClass().getName());
+				RowEncoder.writeString(json, MESSAGE, t.getMessage());
+				json.writeEndObject();
+			}
+			json.writeEndArray();
+		}
+	}
+
+	private static final class FramesColumn extends Column
+	{
+		FramesColumn(String name)
+		{
+			super(name);
+		}
+
+		@Override
+		void write(JsonGenerator json, LogSlot slot) throws IOException
+		{
+			if (slot.thrown == null)
+				return;
+
+			json.writeFieldName(name);
+			json.writeStartArray();
+			StackTraceElement[] enclosing = null;
+			Throwable t = slot.thrown;
+			for (int depth = 0; t != null && depth < MAX_CAUSES; depth++, t = t.getCause())
+			{
+				StackTraceElement[] trace = t.getStackTrace();
+				int last = trace.length - 1;
+				if (enclosing != null)
+				{
+					for (int e = enclosing.length - 1; last >= 0 && e >= 0 && trace[last].equals(enclosing[e]); e--)
+						last--;
+				}
+
+				for (int i = 0; i <= last; i++)
+				{
+					StackTraceElement frame = trace[i];
+					json.writeStartObject();
+					json.writeFieldName(CAUSE);
+					json.writeNumber(depth);
+					RowEncoder.writeString(json, CLASS, frame.getClassName());
+					RowEncoder.writeString(json, METHOD, frame.getMethodName());
+					RowEncoder.writeString(json, FILE, frame.getFileName());
+					if (frame.getLineNumber() >= 0)
+					{
+						json.writeFieldName(LINE);
+						json.writeNumber(frame.getLineNumber());
+					}
+					json.writeEndObject();
+				}
+				enclosing = trace;
+			}
+			json.writeEndArray();
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package webbarometer.appenders;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+
+/**
+ * Decides whether an event is worth sending before it is copied into the {@link EventBuffer}, so a log storm
+ * of chatty events does not crowd out the ones that matter.
+ *
+ * Events at or above the exempt level always pass. Other events are counted against the first matching
+ * {@link RateLimit}, then, once the buffer is fuller than the start fill, kept with a probability that falls
+ * linearly to 0 as the buffer fills up; events of DEBUG and below are kept with the square of it. The check
+ * reads a few fields, one or two atomics and the buffer's size, and allocates nothing.
+ *
+ * Suppressed events are counted and reported at most once per second as a WARN event of their own, published
+ * into the buffer behind the next event that passes.
+ */
+class Sampler
+{
+	private static final long SUMMARY_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final String SUMMARY_LOGGER = BigQueryAppender.class.getName();
+
+	private final EventBuffer buffer;
+	private final RateLimit[] limits;
+	private final Level exempt;
+	private final double startFill;
+
+	private final LongAdder suppressed = new LongAdder();
+	private final LongAdder suppressedTotal = new LongAdder();
+	private final AtomicLong nextSummary = new AtomicLong(System.nanoTime());
+
+	/**
+	 * @param buffer
+	 * 		The buffer whose fill drives the sampling.
+	 * @param limits
+	 * 		The rate limits, tried in order. May be empty.
+	 * @param exempt
+	 * 		The least specific level that is never suppressed.
+	 * @param startFill
+	 * 		The fraction of the buffer above which events are sampled, or 0 or 1 to only apply the limits.
+	 */
+	Sampler(EventBuffer buffer, RateLimit[] limits, Level exempt, double startFill)
+	{
+		this.buffer = buffer;
+		this.limits = limits.clone();
+		this.exempt = exempt;
+		this.startFill = startFill > 0 && startFill < 1 ? startFill : 1;
+	}
+
+	/**
+	 * @return
+	 * 		Whether the event is to be sent. If not it is counted as suppressed.
+	 */
+	boolean accept(LogEvent event)
+	{
+		Level level = event.getLevel();
+		if (level.isMoreSpecificThan(exempt))
+			return true;
+
+		if (limits.length > 0)
+		{
+			String loggerName = event.getLoggerName();
+			for (RateLimit limit : limits)
+			{
+				if (limit.matches(loggerName, level))
+				{
+					if (!limit.tryAcquire(System.nanoTime()))
+					{
+						suppress();
+						return false;
+					}
+					break;
+				}
+			}
+		}
+
+		if (startFill < 1)
+		{
+			double fill = (double) buffer.size() / buffer.capacity();
+			if (fill > startFill)
+			{
+				double keep = (1 - fill) / (1 - startFill);
+				if (level.isLessSpecificThan(Level.DEBUG))
+					keep *= keep;
+				if (ThreadLocalRandom.current().nextDouble() >= keep)
+				{
+					suppress();
+					return false;
+				}
+			}
+		}
+
+		return true;
+	}
+
+	private void suppress()
+	{
+		suppressed.increment();
+		suppressedTotal.increment();
+	}
+
+	/**
+	 * Takes the summary of the events suppressed since the last one, if it is due. Called after an event
+	 * passed, so the summary follows it into the buffer.
+	 *
+	 * @param force
+	 * 		Whether to take it even if the last one was less than a second ago, e.g. when stopping.
+	 * @return
+	 * 		The summary event, or null if nothing was suppressed or it is not due.
+	 */
+	LogEvent takeSummary(boolean force)
+	{
+		if (suppressed.sum() == 0)
+			return null;
+
+		long now = System.nanoTime();
+		long due = nextSummary.get();
+		if (!force && now - due < 0)
+			return null;
+		if (!nextSummary.compareAndSet(due, now + SUMMARY_NANOS))
+			return null;
+
+		long count = suppressed.sumThenReset();
+		if (count == 0)
+			return null;
+
+		return new Log4jLogEvent(SUMMARY_LOGGER, null, SUMMARY_LOGGER, Level.WARN, new SimpleMessage(count + " events suppressed by sampling"), null);
+	}
+
+	/**
+	 * @return
+	 * 		The number of events suppressed since the sampler was created.
+	 */
+	long getSuppressed()
+	{
+		return suppressedTotal.sum();
+	}
+}
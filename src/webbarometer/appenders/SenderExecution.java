@@ -0,0 +1,129 @@
+package webbarometer.appenders;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * What the {@link SenderPool} runs the insertAll requests on.
+ */
+enum SenderExecution
+{
+	/**
+	 * A fixed pool of {@code senderThreads} platform threads, each blocked for the whole of a request.
+	 */
+	PLATFORM,
+	/**
+	 * A virtual thread per request, so up to {@code maxInFlight} requests can wait on the network while sharing
+	 * the JVM's few carrier threads; {@code senderThreads} is then ignored. Needs Java 21; the appender falls
+	 * back to {@link #PLATFORM} on older JVMs.
+	 */
+	VIRTUAL;
+
+	/**
+	 * {@code Thread.ofVirtual()}, {@code Executors.newThreadPerTaskExecutor(ThreadFactory)} and the builder's
+	 * {@code name(String, long)} and {@code factory()}, looked up at run time so the code still compiles for
+	 * Java 8. Null on JVMs without virtual threads.
+	 */
+	private static final Method OF_VIRTUAL;
+	private static final Method THREAD_PER_TASK;
+	private static final Method NAME;
+	private static final Method FACTORY;
+
+	/**
+	 * {@code Thread.isVirtual()}, if the JVM has it, even where virtual threads cannot be started.
+	 */
+	private static final Method IS_VIRTUAL;
+
+	static
+	{
+		Method ofVirtual = null;
+		Method threadPerTask = null;
+		Method name = null;
+		Method factory = null;
+		try
+		{
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			threadPerTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			name = builderClass.getMethod("name", String.class, long.class);
+			factory = builderClass.getMethod("factory");
+
+			// Java 19 and 20 have the methods, but they throw unless preview features are enabled.
+			Object probe = factory.invoke(name.invoke(ofVirtual.invoke(null), "probe", 0L));
+			((ExecutorService) threadPerTask.invoke(null, probe)).shutdown();
+		}
+		catch (ReflectiveOperationException | RuntimeException | LinkageError e)
+		{
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		THREAD_PER_TASK = ofVirtual == null ? null : threadPerTask;
+		NAME = ofVirtual == null ? null : name;
+		FACTORY = ofVirtual == null ? null : factory;
+
+		Method isVirtual;
+		try
+		{
+			isVirtual = Thread.class.getMethod("isVirtual");
+		}
+		catch (NoSuchMethodException e)
+		{
+			isVirtual = null;
+		}
+		IS_VIRTUAL = isVirtual;
+	}
+
+	/**
+	 * @return
+	 * 		Whether the JVM has virtual threads.
+	 */
+	static boolean virtualThreadsAvailable()
+	{
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * @return
+	 * 		Whether the thread is a virtual thread, for which the JVM does not measure CPU time.
+	 */
+	static boolean isVirtual(Thread thread)
+	{
+		if (OF_VIRTUAL == null)
+			return false;
+
+		try
+		{
+			return (Boolean) IS_VIRTUAL.invoke(thread);
+		}
+		catch (ReflectiveOperationException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * @param prefix
+	 * 		The name of the threads, followed by a number.
+	 * @return
+	 * 		An executor starting a virtual thread for every task.
+	 * @throws UnsupportedOperationException
+	 * 		If the JVM has no virtual threads.
+	 */
+	static ExecutorService newVirtualThreadExecutor(String prefix)
+	{
+		if (OF_VIRTUAL == null)
+			throw new UnsupportedOperationException("Virtual threads need Java 21");
+
+		try
+		{
+			ThreadFactory factory = (ThreadFactory) FACTORY.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 1L));
+			return (ExecutorService) THREAD_PER_TASK.invoke(null, factory);
+		}
+		catch (ReflectiveOperationException e)
+		{
+			throw new UnsupportedOperationException("Could not create virtual threads", e);
+		}
+	}
+}
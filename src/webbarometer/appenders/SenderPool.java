@@ -0,0 +1,249 @@
+package webbarometer.appenders;
+
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of threads running insertAll requests, with a cap on the number of requests in flight.
+ *
+ * The threads are a fixed number of platform threads, or a virtual thread per request; see
+ * {@link SenderExecution}. Either way the cap bounds the number of requests, and of connections, in use.
+ *
+ * {@link #submit(String, Runnable)} blocks the caller while the cap is reached, which pushes back on the
+ * {@link BatchingSender} and, through the {@link EventBuffer}, on the logging threads. When ordering is
+ * requested, tasks submitted with the same key (the destination table) run one at a time in submission
+ * order; tasks with different keys still run concurrently.
+ */
+class SenderPool
+{
+	/**
+	 * Runs the tasks of one key one after another on the pool. Once it has run out of tasks it removes itself
+	 * from {@link SenderPool#queues}, so keys such as hourly tables do not leave a queue each behind.
+	 */
+	private final class SerialQueue implements Runnable
+	{
+		private final String key;
+		private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+		private Runnable active;
+
+		/**
+		 * Whether the queue has removed itself; a task added now would race one added to its replacement.
+		 */
+		private boolean retired;
+
+		SerialQueue(String key)
+		{
+			this.key = key;
+		}
+
+		/**
+		 * @return
+		 * 		false if the queue is retired and the task was not added.
+		 */
+		synchronized boolean add(Runnable task)
+		{
+			if (retired)
+				return false;
+
+			tasks.add(task);
+			if (active == null)
+				scheduleNext();
+			return true;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				active.run();
+			}
+			finally
+			{
+				synchronized (this)
+				{
+					scheduleNext();
+				}
+			}
+		}
+
+		private void scheduleNext()
+		{
+			active = tasks.poll();
+			if (active != null)
+				executor.execute(this);
+			else
+			{
+				retired = true;
+				queues.remove(key, this);
+			}
+		}
+	}
+
+	private final ExecutorService executor;
+	private final Semaphore inFlight;
+	private final int maxInFlight;
+	private final boolean ordered;
+
+	/**
+	 * The threads running a task right now, to interrupt on {@link #shutdownNow(long)}.
+	 */
+	private final Set<Thread> workers = ConcurrentHashMap.newKeySet();
+	private final ConcurrentMap<String, SerialQueue> queues = new ConcurrentHashMap<String, SerialQueue>();
+
+	/**
+	 * @param name
+	 * 		The name of the owning appender, used to name the threads.
+	 * @param threads
+	 * 		The number of sender threads, for {@link SenderExecution#PLATFORM}.
+	 * @param maxInFlight
+	 * 		The maximum number of submitted tasks that have not finished yet.
+	 * @param ordered
+	 * 		Whether tasks with the same key must run in submission order.
+	 * @param execution
+	 * 		What the tasks run on. {@link SenderExecution#VIRTUAL} needs
+	 * 		{@link SenderExecution#virtualThreadsAvailable()}.
+	 */
+	SenderPool(final String name, int threads, int maxInFlight, boolean ordered, SenderExecution execution)
+	{
+		this.maxInFlight = Math.max(1, maxInFlight);
+		this.inFlight = new Semaphore(this.maxInFlight);
+		this.ordered = ordered;
+		if (execution == SenderExecution.VIRTUAL)
+		{
+			this.executor = SenderExecution.newVirtualThreadExecutor("BigQueryAppender-" + name + "-sender-");
+			return;
+		}
+
+		this.executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory()
+		{
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "BigQueryAppender-" + name + "-sender-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Runs the task on the pool, waiting first if the in-flight cap is reached.
+	 *
+	 * @param key
+	 * 		The ordering key, e.g. the table id.
+	 * @param task
+	 * 		The insert to run.
+	 * @throws InterruptedException
+	 * 		If the caller was interrupted while waiting; the task was not submitted.
+	 */
+	void submit(String key, final Runnable task) throws InterruptedException
+	{
+		inFlight.acquire();
+
+		Runnable release = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				Thread current = Thread.currentThread();
+				workers.add(current);
+				try
+				{
+					task.run();
+				}
+				finally
+				{
+					workers.remove(current);
+					inFlight.release();
+				}
+			}
+		};
+
+		if (!ordered)
+		{
+			executor.execute(release);
+			return;
+		}
+
+		while (true)
+		{
+			SerialQueue queue = queues.get(key);
+			if (queue == null)
+			{
+				SerialQueue created = new SerialQueue(key);
+				queue = queues.putIfAbsent(key, created);
+				if (queue == null)
+					queue = created;
+			}
+			if (queue.add(release))
+				return;
+		}
+	}
+
+	/**
+	 * @return
+	 * 		The number of keys with ordered tasks queued or running.
+	 */
+	int queuedKeys()
+	{
+		return queues.size();
+	}
+
+	/**
+	 * Lets the submitted tasks finish and stops the threads.
+	 *
+	 * @param timeoutMillis
+	 * 		How long to wait for the tasks.
+	 * @return
+	 * 		true if all tasks finished in time. If not, the threads keep running; call
+	 * 		{@link #shutdownNow(long)}.
+	 */
+	boolean shutdown(long timeoutMillis) throws InterruptedException
+	{
+		// Ordered queues hand their next task to the executor from a finishing task, so wait for every
+		// permit to come back before shutting the executor down.
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		if (!inFlight.tryAcquire(maxInFlight, timeoutMillis, TimeUnit.MILLISECONDS))
+			return false;
+		inFlight.release(maxInFlight);
+
+		executor.shutdown();
+		return executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Interrupts the running tasks, gives the queued ones a last chance to run, then stops the threads.
+	 * Tasks are expected to give up quickly once interrupted or past their deadline.
+	 *
+	 * @param graceMillis
+	 * 		How long to wait for the tasks after interrupting them.
+	 */
+	void shutdownNow(long graceMillis)
+	{
+		for (Thread thread : workers)
+			thread.interrupt();
+
+		try
+		{
+			if (inFlight.tryAcquire(maxInFlight, graceMillis, TimeUnit.MILLISECONDS))
+				inFlight.release(maxInFlight);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		executor.shutdownNow();
+	}
+}
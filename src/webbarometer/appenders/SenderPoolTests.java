@@ -0,0 +1,71 @@
+package webbarometer.appenders;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Runs ordered tasks on a {@link SenderPool} and checks that tasks of one key keep their order while their
+ * queue comes and goes.
+ */
+public class SenderPoolTests
+{
+	@Test
+	public void orderedTasksRunInSubmissionOrder() throws InterruptedException
+	{
+		SenderPool pool = new SenderPool("SenderPoolTests", 4, 4, true, SenderExecution.PLATFORM);
+		final List<Integer> ran = Collections.synchronizedList(new ArrayList<Integer>());
+		List<Integer> expected = new ArrayList<Integer>();
+		for (int i = 0; i < 200; i++)
+		{
+			final int n = i;
+			expected.add(n);
+			pool.submit("table", new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					ran.add(n);
+				}
+			});
+		}
+
+		Assert.assertTrue(pool.shutdown(10000));
+		Assert.assertEquals(expected, ran);
+	}
+
+	/**
+	 * A key's queue is dropped once its tasks are done, and a later task for the key gets a new one.
+	 */
+	@Test
+	public void idleQueuesAreRemoved() throws InterruptedException
+	{
+		SenderPool pool = new SenderPool("SenderPoolTests", 2, 2, true, SenderExecution.PLATFORM);
+		for (int hour = 0; hour < 24; hour++)
+			await(pool, "Logs_" + hour);
+		await(pool, "Logs_0");
+
+		// A queue removes itself after its last task returns, so wait for the threads to finish.
+		Assert.assertTrue(pool.shutdown(10000));
+		Assert.assertEquals(0, pool.queuedKeys());
+	}
+
+	private static void await(SenderPool pool, String key) throws InterruptedException
+	{
+		final CountDownLatch done = new CountDownLatch(1);
+		pool.submit(key, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				done.countDown();
+			}
+		});
+		Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+	}
+}
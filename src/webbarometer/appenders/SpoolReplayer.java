@@ -0,0 +1,98 @@
+package webbarometer.appenders;
+
+/**
+ * Drains a {@link DiskSpool} into BigQuery, oldest rows first.
+ *
+ * Rows go through the same {@link RetryingInserter} as live batches, so invalid rows are dead-lettered
+ * rather than replayed forever. While inserts keep failing the replayer backs off, doubling its wait up to
+ * {@link #MAX_BACKOFF_MILLIS}.
+ */
+class SpoolReplayer implements Runnable
+{
+	private static final long IDLE_MILLIS = 1000;
+	private static final long MAX_BACKOFF_MILLIS = 60000;
+
+	private final RetryingInserter inserter;
+	private final DiskSpool spool;
+	private final int maxRows;
+	private final RowBatch batch = new RowBatch(64 * 1024, 64);
+
+	private volatile boolean running;
+	private Thread thread;
+
+	SpoolReplayer(RetryingInserter inserter, DiskSpool spool, int maxRows)
+	{
+		this.inserter = inserter;
+		this.spool = spool;
+		this.maxRows = maxRows;
+	}
+
+	void start(String name)
+	{
+		running = true;
+		thread = new Thread(this, "BigQueryAppender-" + name + "-replay");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	void stop()
+	{
+		running = false;
+		if (thread != null)
+			thread.interrupt();
+	}
+
+	@Override
+	public void run()
+	{
+		long backoff = IDLE_MILLIS;
+
+		while (running)
+		{
+			try
+			{
+				if (spool.isEmpty())
+				{
+					Thread.sleep(IDLE_MILLIS);
+					continue;
+				}
+
+				if (replayBatch())
+					backoff = IDLE_MILLIS;
+				else
+				{
+					Thread.sleep(backoff);
+					backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+				}
+			}
+			catch (InterruptedException e)
+			{
+				running = false;
+			}
+		}
+	}
+
+	/**
+	 * Sends the next batch from the spool and consumes it. Rows still failing with a retryable error are
+	 * appended to the spool again, so rows that were inserted or dead-lettered are not sent a second time;
+	 * a row the spool has no room for any more is dead-lettered.
+	 *
+	 * @return
+	 * 		false if rows had to be spooled again.
+	 */
+	private boolean replayBatch() throws InterruptedException
+	{
+		batch.clear();
+		if (spool.peek(maxRows, batch) == 0)
+			return true;
+
+		int[] failed = inserter.insert(batch);
+		spool.commit();
+		for (int row : failed)
+		{
+			if (!spool.append(batch, row))
+				inserter.deadLetter(batch, row, "spool full");
+		}
+		return failed.length == 0;
+	}
+}
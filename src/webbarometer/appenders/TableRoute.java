@@ -0,0 +1,136 @@
+package webbarometer.appenders;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.status.StatusLogger;
+
+/**
+ * Sends some events of a {@link BigQueryAppender} to another table, declared as a {@code <TableRoute>}
+ * element inside the appender:
+ *
+ * <pre>
+ * &lt;TableRoute logger="com.example.audit" table="Audit_{yyyyMM}" /&gt;
+ * &lt;TableRoute level="ERROR" table="Errors_{yyyyMMdd}" dataset="Alerts" /&gt;
+ * </pre>
+ *
+ * An event goes to the first route whose logger prefix and level it matches, or to the appender's own
+ * table if none does. The table name is a pattern as described in {@link TableRouter}.
+ */
+@Plugin(name = "TableRoute", category = "Core", printObject = true)
+public final class TableRoute
+{
+	private final String loggerPrefix;
+	private final Level level;
+	private final String table;
+	private final String dataset;
+
+	TableRoute(String loggerPrefix, Level level, String table, String dataset)
+	{
+		this.loggerPrefix = loggerPrefix;
+		this.level = level;
+		this.table = table;
+		this.dataset = dataset;
+	}
+
+	/**
+	 * @return
+	 * 		Whether an event of the given logger and level takes this route.
+	 */
+	boolean matches(String loggerName, Level eventLevel)
+	{
+		if (level != null && !eventLevel.isMoreSpecificThan(level))
+			return false;
+		if (loggerPrefix == null)
+			return true;
+		if (loggerName == null || !loggerName.startsWith(loggerPrefix))
+			return false;
+
+		// "com.example" matches "com.example" and "com.example.Foo", not "com.exampleFoo".
+		return loggerName.length() == loggerPrefix.length() || loggerName.charAt(loggerPrefix.length()) == '.';
+	}
+
+	/**
+	 * @return
+	 * 		The logger name prefix, or null to match every logger.
+	 */
+	public String getLoggerPrefix()
+	{
+		return loggerPrefix;
+	}
+
+	/**
+	 * @return
+	 * 		The least specific level that is routed, or null for every level.
+	 */
+	public Level getLevel()
+	{
+		return level;
+	}
+
+	public String getTable()
+	{
+		return table;
+	}
+
+	/**
+	 * @return
+	 * 		The dataset, or null for the appender's dataset.
+	 */
+	public String getDataset()
+	{
+		return dataset;
+	}
+
+	@Override
+	public String toString()
+	{
+		return (loggerPrefix == null ? "*" : loggerPrefix) + (level == null ? "" : " >= " + level) + " -> "
+				+ (dataset == null ? "" : dataset + ".") + table;
+	}
+
+	/**
+	 * @param logger
+	 * 		The logger name prefix to match. Leave out to match every logger.
+	 * @param level
+	 * 		The least specific level to match. Leave out to match every level.
+	 * @param table
+	 * 		The table name pattern.
+	 * @param dataset
+	 * 		The dataset of the table, if not the appender's.
+	 * @return
+	 * 		The route, or null if it is not valid.
+	 */
+	@PluginFactory
+	public static TableRoute createRoute(
+			@PluginAttribute("logger") String logger,
+			@PluginAttribute("level") String level,
+			@PluginAttribute("table") String table,
+			@PluginAttribute("dataset") String dataset)
+	{
+		if (table == null)
+		{
+			StatusLogger.getLogger().error("A BigQuery TableRoute needs a table");
+			return null;
+		}
+		if (!TableRouter.isValidPattern(table))
+		{
+			StatusLogger.getLogger().error("Invalid table pattern " + table + " for a BigQuery TableRoute");
+			return null;
+		}
+
+		Level parsed = null;
+		if (level != null)
+		{
+			parsed = Level.toLevel(level, null);
+			if (parsed == null)
+			{
+				StatusLogger.getLogger().error("Unknown level " + level + " for a BigQuery TableRoute");
+				return null;
+			}
+		}
+
+		return new TableRoute(logger, parsed, table, dataset);
+	}
+}
@@ -0,0 +1,343 @@
+package webbarometer.appenders;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.logging.log4j.Level;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.bigquery.Bigquery;
+import com.google.api.services.bigquery.model.TableReference;
+import com.google.api.services.bigquery.model.TableSchema;
+
+import webbarometer.utils.BigqueryUtils;
+
+/**
+ * Picks the table each event is written to.
+ *
+ * Table names are patterns: letters, digits and underscores, plus date formats in braces that are filled in
+ * from the event time in UTC, e.g. {@code Logs_{yyyyMMdd}} for a table per day or {@code Logs_{yyyyMMddHH}}
+ * for one per hour. Formats finer than an hour are not allowed. Each pattern remembers the table of the
+ * hour it last resolved, so routing an event is a walk over the {@link TableRoute}s and a comparison of
+ * the hour; names are only formatted, and {@link Destination}s only looked up, when the hour changes.
+ *
+ * Destinations are cached, and dropped once they have not been looked up for two hours, so the tables of past
+ * hours and days do not pile up in a long-running JVM. The cache is swept whenever a pattern moves on to a new
+ * hour. If a schema is given, a destination's table is created before the first insert into it if it does not
+ * exist yet; a dropped destination that is used again is checked again.
+ */
+class TableRouter
+{
+	private static final long HOUR_MILLIS = 3600000;
+
+	/**
+	 * How long a destination may go unused before it is dropped from the cache: the current and the previous
+	 * hour, so late rows and retries for the previous table still find it.
+	 */
+	private static final long IDLE_EVICT_MILLIS = 2 * HOUR_MILLIS;
+
+	/**
+	 * Date format letters for units shorter than an hour.
+	 */
+	private static final String SUB_HOUR_LETTERS = "msS";
+
+	/**
+	 * A table rows are inserted into.
+	 */
+	static final class Destination
+	{
+		/**
+		 * {@code dataset.table}, which is also how spooled rows remember their table.
+		 */
+		final String key;
+		final TableReference ref;
+
+		/**
+		 * The batch being filled for this table. Only used by the sender thread.
+		 */
+		RowBatch batch;
+
+		/**
+		 * Whether the table is known to exist, or does not need to be checked.
+		 */
+		private volatile boolean ready;
+
+		/**
+		 * When the destination was last looked up.
+		 */
+		private volatile long usedMillis;
+
+		Destination(String projectId, String datasetId, String tableId, boolean ready)
+		{
+			this.key = datasetId + "." + tableId;
+			this.ref = new TableReference().setProjectId(projectId).setDatasetId(datasetId).setTableId(tableId);
+			this.ready = ready;
+		}
+
+		@Override
+		public String toString()
+		{
+			return ref.getProjectId() + ":" + key;
+		}
+	}
+
+	/**
+	 * A table name pattern with its last resolved destination. Only used by the sender thread.
+	 */
+	private final class Target
+	{
+		private final String datasetId;
+		private final String[] literals;
+		private final SimpleDateFormat[] formats;
+		private long cachedHour = Long.MIN_VALUE;
+		private Destination cached;
+
+		/**
+		 * @param pattern
+		 * 		A pattern that passed {@link TableRouter#isValidPattern(String)}.
+		 */
+		Target(String datasetId, String pattern)
+		{
+			this.datasetId = datasetId;
+
+			List<String> literalParts = new ArrayList<String>();
+			List<SimpleDateFormat> formatParts = new ArrayList<SimpleDateFormat>();
+			int start = 0;
+			while (start < pattern.length())
+			{
+				int open = pattern.indexOf('{', start);
+				if (open < 0)
+					open = pattern.length();
+				if (open > start)
+				{
+					literalParts.add(pattern.substring(start, open));
+					formatParts.add(null);
+				}
+				if (open == pattern.length())
+					break;
+
+				int close = pattern.indexOf('}', open);
+				SimpleDateFormat format = new SimpleDateFormat(pattern.substring(open + 1, close));
+				format.setTimeZone(TimeZone.getTimeZone("UTC"));
+				literalParts.add(null);
+				formatParts.add(format);
+				start = close + 1;
+			}
+
+			literals = literalParts.toArray(new String[literalParts.size()]);
+			formats = hasFormat(formatParts) ? formatParts.toArray(new SimpleDateFormat[formatParts.size()]) : null;
+			if (formats == null)
+				cached = destination(datasetId, pattern);
+		}
+
+		Destination resolve(long timeMillis)
+		{
+			if (formats == null)
+				return cached;
+
+			long hour = Math.floorDiv(timeMillis, HOUR_MILLIS);
+			if (hour != cachedHour)
+			{
+				Date time = new Date(timeMillis);
+				StringBuilder name = new StringBuilder();
+				for (int i = 0; i < literals.length; i++)
+					name.append(formats[i] == null ? literals[i] : formats[i].format(time));
+
+				cached = destination(datasetId, name.toString());
+				cachedHour = hour;
+				evictIdle();
+			}
+			return cached;
+		}
+	}
+
+	private final Bigquery bigquery;
+	private final String projectId;
+	private final TableSchema schema;
+	private final TableRoute[] routes;
+	private final Target[] routeTargets;
+	private final Target defaultTarget;
+	private final Destination legacy;
+	private final ConcurrentMap<String, Destination> destinations = new ConcurrentHashMap<String, Destination>();
+
+	/**
+	 * @param bigquery
+	 * 		The connection used to check for and create tables.
+	 * @param projectId
+	 * 		The project of every table.
+	 * @param datasetId
+	 * 		The dataset of the default table and of routes that do not name one.
+	 * @param table
+	 * 		The pattern of the default table.
+	 * @param routes
+	 * 		The routes, tried in order. May be empty.
+	 * @param schema
+	 * 		The schema to create missing tables with, or null to never create tables.
+	 */
+	TableRouter(Bigquery bigquery, String projectId, String datasetId, String table, TableRoute[] routes, TableSchema schema)
+	{
+		this.bigquery = bigquery;
+		this.projectId = projectId;
+		this.schema = schema;
+		this.routes = routes.clone();
+		this.routeTargets = new Target[routes.length];
+		for (int i = 0; i < routes.length; i++)
+			routeTargets[i] = new Target(routes[i].getDataset() == null ? datasetId : routes[i].getDataset(), routes[i].getTable());
+		this.defaultTarget = new Target(datasetId, table);
+		this.legacy = defaultTarget.resolve(System.currentTimeMillis());
+	}
+
+	/**
+	 * Picks the table for an event. Only called from the sender thread.
+	 */
+	Destination route(String loggerName, Level level, long timeMillis)
+	{
+		for (int i = 0; i < routes.length; i++)
+		{
+			if (routes[i].matches(loggerName, level))
+				return routeTargets[i].resolve(timeMillis);
+		}
+
+		return defaultTarget.resolve(timeMillis);
+	}
+
+	/**
+	 * Looks up a destination by its {@link Destination#key}, e.g. for rows read back from the spool.
+	 *
+	 * @param key
+	 * 		The key, or null for rows spooled before they carried one; those go to the default table as it was
+	 * 		when the appender started.
+	 */
+	Destination destination(String key)
+	{
+		if (key == null)
+			return legacy;
+
+		Destination destination = destinations.get(key);
+		if (destination != null)
+		{
+			destination.usedMillis = System.currentTimeMillis();
+			return destination;
+		}
+
+		int dot = key.indexOf('.');
+		return destination(key.substring(0, dot), key.substring(dot + 1));
+	}
+
+	private Destination destination(String datasetId, String tableId)
+	{
+		String key = datasetId + "." + tableId;
+		Destination destination = destinations.get(key);
+		if (destination == null)
+		{
+			Destination created = new Destination(projectId, datasetId, tableId, schema == null);
+			destination = destinations.putIfAbsent(key, created);
+			if (destination == null)
+				destination = created;
+		}
+		destination.usedMillis = System.currentTimeMillis();
+		return destination;
+	}
+
+	/**
+	 * Drops the destinations that have not been looked up for {@link #IDLE_EVICT_MILLIS}.
+	 */
+	private void evictIdle()
+	{
+		long idleSince = System.currentTimeMillis() - IDLE_EVICT_MILLIS;
+		for (Destination destination : destinations.values())
+		{
+			if (destination.usedMillis < idleSince)
+				destinations.remove(destination.key, destination);
+		}
+	}
+
+	/**
+	 * Creates the destination's table if it is missing and tables are to be created. Checks each table once;
+	 * if checking or creating fails the next insert tries again.
+	 *
+	 * @throws IOException
+	 * 		If BigQuery could not be asked or the table could not be created.
+	 */
+	void ensureExists(Destination destination) throws IOException
+	{
+		if (destination.ready)
+			return;
+
+		synchronized (destination)
+		{
+			if (destination.ready)
+				return;
+
+			TableReference ref = destination.ref;
+			try
+			{
+				bigquery.tables().get(ref.getProjectId(), ref.getDatasetId(), ref.getTableId()).execute();
+			}
+			catch (GoogleJsonResponseException e)
+			{
+				if (e.getStatusCode() != 404)
+					throw e;
+
+				try
+				{
+					BigqueryUtils.createAndInsertTable(bigquery, ref, schema);
+				}
+				catch (GoogleJsonResponseException created)
+				{
+					// 409: another process created it in the meantime.
+					if (created.getStatusCode() != 409)
+						throw created;
+				}
+			}
+			destination.ready = true;
+		}
+	}
+
+	/**
+	 * @return
+	 * 		Whether the pattern only holds letters, digits, underscores and brace-delimited date formats of an
+	 * 		hour or longer.
+	 */
+	static boolean isValidPattern(String pattern)
+	{
+		if (pattern == null || pattern.isEmpty())
+			return false;
+
+		boolean inFormat = false;
+		for (int i = 0; i < pattern.length(); i++)
+		{
+			char c = pattern.charAt(i);
+			if (c == '{' && !inFormat)
+				inFormat = true;
+			else if (c == '}' && inFormat)
+				inFormat = false;
+			else if (inFormat ? !isAsciiLetter(c) || SUB_HOUR_LETTERS.indexOf(c) >= 0 : !(isAsciiLetter(c) || (c >= '0' && c <= '9') || c == '_'))
+				return false;
+		}
+
+		return !inFormat && !pattern.contains("{}");
+	}
+
+	private static boolean isAsciiLetter(char c)
+	{
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	private static boolean hasFormat(List<SimpleDateFormat> formats)
+	{
+		for (SimpleDateFormat format : formats)
+		{
+			if (format != null)
+				return true;
+		}
+
+		return false;
+	}
+}
@@ -0,0 +1,770 @@
+package webbarometer.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonErrorContainer;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.bigquery.model.ErrorProto;
+import com.google.api.services.bigquery.model.GetQueryResultsResponse;
+import com.google.api.services.bigquery.model.Job;
+import com.google.api.services.bigquery.model.JobConfigurationLoad;
+import com.google.api.services.bigquery.model.JobReference;
+import com.google.api.services.bigquery.model.JobStatistics;
+import com.google.api.services.bigquery.model.JobStatistics3;
+import com.google.api.services.bigquery.model.JobStatus;
+import com.google.api.services.bigquery.model.Table;
+import com.google.api.services.bigquery.model.TableCell;
+import com.google.api.services.bigquery.model.TableDataInsertAllRequest;
+import com.google.api.services.bigquery.model.TableDataInsertAllResponse;
+import com.google.api.services.bigquery.model.TableFieldSchema;
+import com.google.api.services.bigquery.model.TableReference;
+import com.google.api.services.bigquery.model.TableRow;
+import com.google.api.services.bigquery.model.TableSchema;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process stand-in for the parts of the BigQuery API that {@link webbarometer.utils.BigqueryUtils},
+ * the appender and the tests use: {@code tabledata.insertAll}, {@code tables.insert/get/delete} and
+ * {@code jobs.insert/get/getQueryResults} for {@code SELECT count(*)} and {@code SELECT *} queries, with paged
+ * results, and load jobs of newline-delimited
+ * JSON sent as a single multipart upload.
+ *
+ * Inserted rows are kept in memory for inspection, and rows whose insertId was seen before are dropped
+ * like BigQuery's best-effort deduplication does; load tests can turn that off and only count rows. Latency, failing requests (e.g. 429 or 500) and partial
+ * {@code insertErrors} can be injected. Point a client at it with
+ * {@link webbarometer.utils.BigqueryUtils#makeBigqueryConnection(String, com.google.api.client.http.HttpTransport)},
+ * or the appender with its {@code rootUrl} attribute. No authentication is checked.
+ *
+ * Run {@code java webbarometer.tests.FakeBigqueryServer [port] [latencyMillis]} to use it for load tests
+ * from another process.
+ */
+public class FakeBigqueryServer
+{
+	private static final String SERVICE_PATH = "/bigquery/v2/";
+	private static final String UPLOAD_PATH = "/upload";
+
+	private static final Pattern INSERT_ALL = Pattern.compile("projects/([^/]+)/datasets/([^/]+)/tables/([^/]+)/insertAll");
+	private static final Pattern TABLES = Pattern.compile("projects/([^/]+)/datasets/([^/]+)/tables");
+	private static final Pattern TABLE = Pattern.compile("projects/([^/]+)/datasets/([^/]+)/tables/([^/]+)");
+	private static final Pattern JOBS = Pattern.compile("projects/([^/]+)/jobs");
+	private static final Pattern JOB = Pattern.compile("projects/([^/]+)/jobs/([^/]+)");
+	private static final Pattern QUERY_RESULTS = Pattern.compile("projects/([^/]+)/queries/([^/]+)");
+	private static final Pattern MULTIPART_BOUNDARY = Pattern.compile("boundary=\"?([^\";]+)\"?");
+	private static final Pattern COUNT_QUERY = Pattern.compile("(?i)SELECT\\s+count\\(\\*\\)\\s+FROM\\s+\\[?([\\w-]+)\\.([\\w-]+)\\]?");
+	private static final Pattern SELECT_QUERY = Pattern.compile("(?i)SELECT\\s+\\*\\s+FROM\\s+\\[?([\\w-]+)\\.([\\w-]+)\\]?");
+
+	private final JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	private final Map<String, Table> tables = new HashMap<String, Table>();
+	private final Map<String, List<TableRow>> rows = new HashMap<String, List<TableRow>>();
+	private final Map<String, Integer> rowCounts = new HashMap<String, Integer>();
+	private final Set<String> insertIds = new HashSet<String>();
+	private final Map<String, GetQueryResultsResponse> jobResults = new HashMap<String, GetQueryResultsResponse>();
+	private final Map<String, Integer> runningPolls = new HashMap<String, Integer>();
+	private final Map<String, Job> loadJobs = new HashMap<String, Job>();
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private final AtomicLong duplicateRows = new AtomicLong();
+	private final AtomicLong jobIds = new AtomicLong();
+	private final AtomicLong queryJobs = new AtomicLong();
+
+	private volatile long latencyMillis;
+	private boolean autoCreateTables;
+	private boolean captureRows = true;
+	private int failCount;
+	private int failStatus;
+	private String failReason;
+	private int rejectEvery;
+	private int queryPolls;
+	private String rejectReason;
+	private long rowsSeen;
+
+	/**
+	 * Binds the server to the loopback address.
+	 *
+	 * @param port
+	 * 		The port to listen on, or 0 for any free port.
+	 * @throws IOException
+	 */
+	public FakeBigqueryServer(int port) throws IOException
+	{
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.setExecutor(executor);
+		server.createContext("/", new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				try
+				{
+					FakeBigqueryServer.this.handle(exchange);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+				finally
+				{
+					exchange.close();
+				}
+			}
+		});
+	}
+
+	public void start()
+	{
+		server.start();
+	}
+
+	public void stop()
+	{
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @return
+	 * 		The root URL to build a client with, e.g. "http://127.0.0.1:41234/".
+	 */
+	public String getRootUrl()
+	{
+		return "http://" + server.getAddress().getAddress().getHostAddress() + ":" + server.getAddress().getPort() + "/";
+	}
+
+	/**
+	 * Delays every response by the given time.
+	 */
+	public void setLatencyMillis(long latencyMillis)
+	{
+		this.latencyMillis = latencyMillis;
+	}
+
+	/**
+	 * Makes the next {@code count} requests fail with the given HTTP status.
+	 *
+	 * @param reason
+	 * 		The error reason in the response, e.g. "rateLimitExceeded" or "backendError".
+	 */
+	public synchronized void failNextRequests(int count, int status, String reason)
+	{
+		failCount = count;
+		failStatus = status;
+		failReason = reason;
+	}
+
+	/**
+	 * Rejects every {@code n}th inserted row with an insertError, and the other rows of its request with
+	 * "stopped", as BigQuery does. 0 turns it off.
+	 *
+	 * @param reason
+	 * 		The error reason of the rejected rows, e.g. "invalid".
+	 */
+	public synchronized void rejectEveryNthRow(int n, String reason)
+	{
+		rejectEvery = n;
+		rejectReason = reason;
+	}
+
+	/**
+	 * Whether insertAll creates a missing table instead of failing with 404 like BigQuery does.
+	 */
+	public synchronized void setAutoCreateTables(boolean autoCreateTables)
+	{
+		this.autoCreateTables = autoCreateTables;
+	}
+
+	/**
+	 * Whether inserted rows are kept and deduplicated. Turn it off for long load tests, so only the row
+	 * counts are kept.
+	 */
+	public synchronized void setCaptureRows(boolean captureRows)
+	{
+		this.captureRows = captureRows;
+	}
+
+	public synchronized void createTable(String datasetId, String tableId)
+	{
+		Table table = new Table().setTableReference(new TableReference().setDatasetId(datasetId).setTableId(tableId));
+		tables.put(key(datasetId, tableId), table);
+	}
+
+	/**
+	 * @return
+	 * 		A copy of the rows inserted into the table so far.
+	 */
+	public synchronized List<TableRow> getRows(String datasetId, String tableId)
+	{
+		List<TableRow> tableRows = rows.get(key(datasetId, tableId));
+		return tableRows == null ? Collections.<TableRow> emptyList() : new ArrayList<TableRow>(tableRows);
+	}
+
+	public synchronized int getRowCount(String datasetId, String tableId)
+	{
+		Integer count = rowCounts.get(key(datasetId, tableId));
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * Waits until the table holds at least {@code count} rows.
+	 *
+	 * @return
+	 * 		Whether the rows arrived before the timeout.
+	 */
+	public synchronized boolean awaitRows(String datasetId, String tableId, int count, long timeoutMillis) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (getRowCount(datasetId, tableId) < count)
+		{
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				return false;
+
+			wait(remaining);
+		}
+
+		return true;
+	}
+
+	public long getRequestCount()
+	{
+		return requests.get();
+	}
+
+	/**
+	 * @return
+	 * 		The number of query jobs submitted.
+	 */
+	public long getQueryJobCount()
+	{
+		return queryJobs.get();
+	}
+
+	/**
+	 * Makes query jobs report RUNNING to the first polls of {@code jobs.get}, as a slow query would.
+	 */
+	public synchronized void setQueryJobPolls(int polls)
+	{
+		this.queryPolls = polls;
+	}
+
+	public long getBytesReceived()
+	{
+		return bytesReceived.get();
+	}
+
+	/**
+	 * @return
+	 * 		The number of rows dropped because their insertId was seen before.
+	 */
+	public long getDuplicateRowCount()
+	{
+		return duplicateRows.get();
+	}
+
+	/**
+	 * Drops all tables, rows and injected faults.
+	 */
+	public synchronized void reset()
+	{
+		tables.clear();
+		rows.clear();
+		rowCounts.clear();
+		insertIds.clear();
+		jobResults.clear();
+		runningPolls.clear();
+		loadJobs.clear();
+		failCount = 0;
+		queryPolls = 0;
+		rejectEvery = 0;
+		rowsSeen = 0;
+		latencyMillis = 0;
+		requests.set(0);
+		bytesReceived.set(0);
+		duplicateRows.set(0);
+		queryJobs.set(0);
+	}
+
+	private void handle(HttpExchange exchange) throws IOException, InterruptedException
+	{
+		requests.incrementAndGet();
+		byte[] body = readBody(exchange);
+		if (latencyMillis > 0)
+			Thread.sleep(latencyMillis);
+
+		String path = exchange.getRequestURI().getPath();
+		boolean upload = path.startsWith(UPLOAD_PATH + SERVICE_PATH);
+		if (upload)
+			path = path.substring(UPLOAD_PATH.length());
+		if (!path.startsWith(SERVICE_PATH))
+		{
+			sendError(exchange, 404, "notFound", "Unknown service path " + path);
+			return;
+		}
+		path = path.substring(SERVICE_PATH.length());
+		String method = exchange.getRequestMethod();
+
+		synchronized (this)
+		{
+			if (failCount > 0)
+			{
+				failCount--;
+				sendError(exchange, failStatus, failReason, "Injected failure");
+				return;
+			}
+		}
+
+		Matcher m;
+		if ("POST".equals(method) && (m = INSERT_ALL.matcher(path)).matches())
+			insertAll(exchange, m.group(2), m.group(3), jsonFactory.createJsonParser(new String(body, "UTF-8")).parse(TableDataInsertAllRequest.class));
+		else if ("POST".equals(method) && TABLES.matcher(path).matches())
+			insertTable(exchange, jsonFactory.createJsonParser(new String(body, "UTF-8")).parse(Table.class));
+		else if ((m = TABLE.matcher(path)).matches())
+			table(exchange, method, m.group(2), m.group(3));
+		else if (upload && "POST".equals(method) && (m = JOBS.matcher(path)).matches())
+			loadJob(exchange, m.group(1), body);
+		else if ("POST".equals(method) && (m = JOBS.matcher(path)).matches())
+			insertJob(exchange, m.group(1), jsonFactory.createJsonParser(new String(body, "UTF-8")).parse(Job.class));
+		else if ("GET".equals(method) && (m = JOB.matcher(path)).matches())
+			getJob(exchange, m.group(1), m.group(2));
+		else if ("GET".equals(method) && (m = QUERY_RESULTS.matcher(path)).matches())
+			getQueryResults(exchange, m.group(2), exchange.getRequestURI().getRawQuery());
+		else
+			sendError(exchange, 404, "notFound", "Not supported: " + method + " " + path);
+	}
+
+	private void insertAll(HttpExchange exchange, String datasetId, String tableId, TableDataInsertAllRequest request) throws IOException
+	{
+		TableDataInsertAllResponse response = new TableDataInsertAllResponse();
+		synchronized (this)
+		{
+			if (autoCreateTables && !tables.containsKey(key(datasetId, tableId)))
+				createTable(datasetId, tableId);
+			if (!tables.containsKey(key(datasetId, tableId)))
+			{
+				sendError(exchange, 404, "notFound", "Not found: Table " + datasetId + "." + tableId);
+				return;
+			}
+
+			Object suffix = request.get("templateSuffix");
+			if (suffix != null)
+			{
+				tableId = tableId + suffix;
+				if (!tables.containsKey(key(datasetId, tableId)))
+					createTable(datasetId, tableId);
+			}
+
+			List<TableDataInsertAllRequest.Rows> requestRows = request.getRows() == null
+					? Collections.<TableDataInsertAllRequest.Rows> emptyList() : request.getRows();
+			int rejected = -1;
+			if (rejectEvery > 0)
+			{
+				for (int i = 0; i < requestRows.size() && rejected < 0; i++)
+				{
+					if (++rowsSeen % rejectEvery == 0)
+						rejected = i;
+				}
+			}
+
+			if (rejected >= 0)
+			{
+				// BigQuery inserts none of the rows of a request that has an invalid row.
+				List<TableDataInsertAllResponse.InsertErrors> errors = new ArrayList<TableDataInsertAllResponse.InsertErrors>();
+				for (int i = 0; i < requestRows.size(); i++)
+				{
+					String reason = i == rejected ? rejectReason : "stopped";
+					errors.add(new TableDataInsertAllResponse.InsertErrors()
+							.setIndex((long) i)
+							.setErrors(Collections.singletonList(new ErrorProto().setReason(reason).setMessage("Injected " + reason))));
+				}
+				response.setInsertErrors(errors);
+			}
+			else
+			{
+				String key = key(datasetId, tableId);
+				List<TableRow> tableRows = rows.get(key);
+				if (tableRows == null)
+					rows.put(key, tableRows = new ArrayList<TableRow>());
+
+				int count = getRowCount(datasetId, tableId);
+				for (TableDataInsertAllRequest.Rows row : requestRows)
+				{
+					if (!captureRows)
+					{
+						count++;
+						continue;
+					}
+
+					if (row.getInsertId() != null && !insertIds.add(key + "/" + row.getInsertId()))
+					{
+						duplicateRows.incrementAndGet();
+						continue;
+					}
+
+					TableRow tableRow = new TableRow();
+					tableRow.putAll(row.getJson());
+					tableRows.add(tableRow);
+					count++;
+				}
+				rowCounts.put(key, count);
+				notifyAll();
+			}
+		}
+
+		send(exchange, 200, response.setKind("bigquery#tableDataInsertAllResponse"));
+	}
+
+	private void insertTable(HttpExchange exchange, Table table) throws IOException
+	{
+		TableReference ref = table.getTableReference();
+		synchronized (this)
+		{
+			if (tables.containsKey(key(ref.getDatasetId(), ref.getTableId())))
+			{
+				sendError(exchange, 409, "duplicate", "Already Exists: Table " + ref.getDatasetId() + "." + ref.getTableId());
+				return;
+			}
+
+			tables.put(key(ref.getDatasetId(), ref.getTableId()), table);
+		}
+
+		send(exchange, 200, table);
+	}
+
+	private void table(HttpExchange exchange, String method, String datasetId, String tableId) throws IOException
+	{
+		Table table;
+		synchronized (this)
+		{
+			table = tables.get(key(datasetId, tableId));
+			if (table != null && "DELETE".equals(method))
+			{
+				tables.remove(key(datasetId, tableId));
+				rows.remove(key(datasetId, tableId));
+				rowCounts.remove(key(datasetId, tableId));
+			}
+		}
+
+		if (table == null)
+			sendError(exchange, 404, "notFound", "Not found: Table " + datasetId + "." + tableId);
+		else if ("DELETE".equals(method))
+		{
+			exchange.sendResponseHeaders(204, -1);
+		}
+		else
+			send(exchange, 200, table);
+	}
+
+	/**
+	 * Runs {@code SELECT count(*) FROM [dataset.table]} and {@code SELECT * FROM [dataset.table]} queries right
+	 * away; every other job completes without results. Query jobs then report RUNNING to the first
+	 * {@link #setQueryJobPolls(int)} polls.
+	 */
+	private void insertJob(HttpExchange exchange, String projectId, Job job) throws IOException
+	{
+		String jobId = "job_" + jobIds.incrementAndGet();
+		String state = "DONE";
+		if (job.getConfiguration() != null && job.getConfiguration().getQuery() != null)
+		{
+			queryJobs.incrementAndGet();
+			String query = job.getConfiguration().getQuery().getQuery();
+			Matcher count = COUNT_QUERY.matcher(query);
+			Matcher select = SELECT_QUERY.matcher(query);
+			synchronized (this)
+			{
+				if (count.find())
+				{
+					TableRow row = new TableRow().setF(Collections.singletonList(new TableCell().setV(String.valueOf(getRowCount(count.group(1), count.group(2))))));
+					jobResults.put(jobId, new GetQueryResultsResponse().setRows(Collections.singletonList(row)));
+				}
+				else if (select.find())
+					jobResults.put(jobId, select(select.group(1), select.group(2)));
+
+				if (queryPolls > 0)
+				{
+					runningPolls.put(jobId, queryPolls);
+					state = "RUNNING";
+				}
+			}
+		}
+
+		send(exchange, 200, job.setId(projectId + ":" + jobId)
+				.setJobReference(new JobReference().setProjectId(projectId).setJobId(jobId))
+				.setStatus(new JobStatus().setState(state)));
+	}
+
+	/**
+	 * @return
+	 * 		The captured rows of the table as query results: cells in the order of the table's schema, or of the
+	 * 		first row's fields if it has none, with every value as a String.
+	 */
+	private GetQueryResultsResponse select(String datasetId, String tableId)
+	{
+		List<TableRow> tableRows = getRows(datasetId, tableId);
+		Table table = tables.get(key(datasetId, tableId));
+		List<String> names = new ArrayList<String>();
+		if (table != null && table.getSchema() != null)
+		{
+			for (TableFieldSchema field : table.getSchema().getFields())
+				names.add(field.getName());
+		}
+		else if (!tableRows.isEmpty())
+			names.addAll(tableRows.get(0).keySet());
+
+		List<TableFieldSchema> fields = new ArrayList<TableFieldSchema>();
+		for (String name : names)
+			fields.add(new TableFieldSchema().setName(name).setType("STRING"));
+
+		List<TableRow> results = new ArrayList<TableRow>();
+		for (TableRow row : tableRows)
+		{
+			List<TableCell> cells = new ArrayList<TableCell>();
+			for (String name : names)
+			{
+				Object value = row.get(name);
+				cells.add(new TableCell().setV(value == null ? null : value.toString()));
+			}
+			results.add(new TableRow().setF(cells));
+		}
+
+		return new GetQueryResultsResponse().setSchema(new TableSchema().setFields(fields)).setRows(results);
+	}
+
+	/**
+	 * Loads the rows of a multipart upload, whose first part is the job and second the rows, right away.
+	 * The job fails if its table is missing and may not be created. Submitting a job id again fails with 409.
+	 */
+	private void loadJob(HttpExchange exchange, String projectId, byte[] body) throws IOException
+	{
+		String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+		Matcher boundary = MULTIPART_BOUNDARY.matcher(contentType == null ? "" : contentType);
+		String[] parts = boundary.find() ? multipartBodies(new String(body, "UTF-8"), boundary.group(1)) : new String[0];
+		if (parts.length < 2)
+		{
+			sendError(exchange, 400, "invalid", "Expected a multipart upload of the job and its rows");
+			return;
+		}
+
+		Job job = jsonFactory.createJsonParser(parts[0]).parse(Job.class);
+		JobConfigurationLoad load = job.getConfiguration().getLoad();
+		TableReference ref = load.getDestinationTable();
+		String jobId = job.getJobReference() == null ? "job_" + jobIds.incrementAndGet() : job.getJobReference().getJobId();
+		job.setId(projectId + ":" + jobId).setJobReference(new JobReference().setProjectId(projectId).setJobId(jobId));
+
+		synchronized (this)
+		{
+			if (loadJobs.containsKey(jobId))
+			{
+				sendError(exchange, 409, "duplicate", "Already Exists: Job " + projectId + ":" + jobId);
+				return;
+			}
+
+			String key = key(ref.getDatasetId(), ref.getTableId());
+			if (!tables.containsKey(key) && "CREATE_IF_NEEDED".equals(load.getCreateDisposition()))
+				tables.put(key, new Table().setTableReference(ref).setSchema(load.getSchema()));
+
+			if (!tables.containsKey(key))
+				job.setStatus(new JobStatus().setState("DONE")
+						.setErrorResult(new ErrorProto().setReason("notFound").setMessage("Not found: Table " + key)));
+			else
+			{
+				List<TableRow> tableRows = rows.get(key);
+				if (tableRows == null)
+					rows.put(key, tableRows = new ArrayList<TableRow>());
+
+				long loaded = 0;
+				for (String line : parts[1].split("\n"))
+				{
+					if (line.trim().isEmpty())
+						continue;
+
+					if (captureRows)
+						tableRows.add(jsonFactory.createJsonParser(line).parse(TableRow.class));
+					loaded++;
+				}
+				rowCounts.put(key, getRowCount(ref.getDatasetId(), ref.getTableId()) + (int) loaded);
+				notifyAll();
+
+				job.setStatus(new JobStatus().setState("DONE"))
+						.setStatistics(new JobStatistics().setLoad(new JobStatistics3().setOutputRows(loaded)));
+			}
+			loadJobs.put(jobId, job);
+		}
+
+		send(exchange, 200, job);
+	}
+
+	/**
+	 * @return
+	 * 		The bodies of the parts of a multipart message, without their headers.
+	 */
+	private static String[] multipartBodies(String message, String boundary)
+	{
+		List<String> bodies = new ArrayList<String>();
+		for (String part : message.split("--" + Pattern.quote(boundary)))
+		{
+			int start = part.indexOf("\r\n\r\n");
+			if (start < 0)
+				continue;
+
+			String content = part.substring(start + 4);
+			bodies.add(content.endsWith("\r\n") ? content.substring(0, content.length() - 2) : content);
+		}
+
+		return bodies.toArray(new String[bodies.size()]);
+	}
+
+	private void getJob(HttpExchange exchange, String projectId, String jobId) throws IOException
+	{
+		Job load;
+		String state = "DONE";
+		synchronized (this)
+		{
+			load = loadJobs.get(jobId);
+			Integer polls = runningPolls.remove(jobId);
+			if (polls != null && polls > 0)
+			{
+				state = "RUNNING";
+				if (polls > 1)
+					runningPolls.put(jobId, polls - 1);
+			}
+		}
+		if (load != null)
+		{
+			send(exchange, 200, load);
+			return;
+		}
+
+		send(exchange, 200, new Job()
+				.setId(projectId + ":" + jobId)
+				.setJobReference(new JobReference().setProjectId(projectId).setJobId(jobId))
+				.setStatus(new JobStatus().setState(state)));
+	}
+
+	/**
+	 * Sends a page of the job's results, as picked by the {@code maxResults} and {@code pageToken} parameters.
+	 * The page token is the index of the page's first row.
+	 */
+	private void getQueryResults(HttpExchange exchange, String jobId, String query) throws IOException
+	{
+		GetQueryResultsResponse results;
+		synchronized (this)
+		{
+			results = jobResults.get(jobId);
+		}
+
+		GetQueryResultsResponse response = new GetQueryResultsResponse().setJobComplete(true);
+		if (results == null)
+		{
+			send(exchange, 200, response.setTotalRows(BigInteger.ZERO).setRows(Collections.<TableRow> emptyList()));
+			return;
+		}
+
+		List<TableRow> all = results.getRows();
+		int start = 0;
+		int max = all.size();
+		for (String parameter : query == null ? new String[0] : query.split("&"))
+		{
+			int eq = parameter.indexOf('=');
+			if (eq < 0)
+				continue;
+			String value = URLDecoder.decode(parameter.substring(eq + 1), "UTF-8");
+			if (parameter.startsWith("pageToken="))
+				start = Integer.parseInt(value);
+			else if (parameter.startsWith("maxResults="))
+				max = Integer.parseInt(value);
+		}
+
+		int end = Math.min(all.size(), start + max);
+		response.setSchema(results.getSchema()).setTotalRows(BigInteger.valueOf(all.size()))
+				.setRows(new ArrayList<TableRow>(all.subList(Math.min(start, end), end)));
+		if (end < all.size())
+			response.setPageToken(String.valueOf(end));
+		send(exchange, 200, response);
+	}
+
+	private byte[] readBody(HttpExchange exchange) throws IOException
+	{
+		InputStream in = exchange.getRequestBody();
+		if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding")))
+			in = new GZIPInputStream(in);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		for (int n; (n = in.read(buffer)) > 0;)
+			out.write(buffer, 0, n);
+
+		bytesReceived.addAndGet(out.size());
+		return out.toByteArray();
+	}
+
+	private void send(HttpExchange exchange, int status, Object json) throws IOException
+	{
+		byte[] bytes = jsonFactory.toByteArray(json);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	private void sendError(HttpExchange exchange, int status, String reason, String message) throws IOException
+	{
+		GoogleJsonError.ErrorInfo info = new GoogleJsonError.ErrorInfo();
+		info.setReason(reason);
+		info.setMessage(message);
+		info.setDomain("global");
+
+		GoogleJsonError error = new GoogleJsonError();
+		error.setCode(status);
+		error.setMessage(message);
+		error.setErrors(Collections.singletonList(info));
+
+		GoogleJsonErrorContainer container = new GoogleJsonErrorContainer();
+		container.setError(error);
+		send(exchange, status, container);
+	}
+
+	private static String key(String datasetId, String tableId)
+	{
+		return datasetId + "." + tableId;
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 9250;
+		long latency = args.length > 1 ? Long.parseLong(args[1]) : 0;
+
+		FakeBigqueryServer server = new FakeBigqueryServer(port);
+		server.setLatencyMillis(latency);
+		server.setAutoCreateTables(true);
+		server.start();
+		System.out.println("Fake BigQuery listening on " + server.getRootUrl());
+	}
+}
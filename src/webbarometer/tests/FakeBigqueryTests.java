@@ -0,0 +1,592 @@
+package webbarometer.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.params.HttpParams;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.MarkerManager;
+import org.apache.logging.log4j.ThreadContext;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.message.MapMessage;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import webbarometer.appenders.BigQueryAppender;
+import webbarometer.appenders.BigQueryAppenderMXBean;
+import webbarometer.utils.BigqueryClients;
+import webbarometer.utils.BigqueryQuery;
+import webbarometer.utils.BigqueryRefresher;
+import webbarometer.utils.BigqueryUtils;
+
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.services.bigquery.Bigquery;
+import com.google.api.services.bigquery.model.Job;
+import com.google.api.services.bigquery.model.JobConfiguration;
+import com.google.api.services.bigquery.model.JobConfigurationQuery;
+import com.google.api.services.bigquery.model.TableRow;
+
+/**
+ * Runs the {@link webbarometer.appenders.BigQueryAppender} against a {@link FakeBigqueryServer}, so the
+ * happy path and the failure modes can be tested without network access or credentials.
+ */
+public class FakeBigqueryTests
+{
+	private static final String TABLE_NAME = "Log4jTestTable";
+	
+	private static FakeBigqueryServer server;
+	private static Bigquery bigquery;
+	
+	private LoggerContext context;
+	private Logger log;
+	
+	@BeforeClass
+	public static void startServer() throws IOException
+	{
+		server = new FakeBigqueryServer(0);
+		server.start();
+		System.setProperty("bigquery.rootUrl", server.getRootUrl());
+		bigquery = BigqueryUtils.makeBigqueryConnection(server.getRootUrl(), new NetHttpTransport());
+	}
+	
+	@AfterClass
+	public static void stopServer()
+	{
+		server.stop();
+	}
+	
+	@Before
+	public void startLogging() throws IOException, URISyntaxException
+	{
+		server.reset();
+		new BigqueryRefresher().start(bigquery);
+		
+		context = new LoggerContext("FakeBigqueryTests", null, getClass().getResource("log4j2-fake.xml").toURI());
+		context.start();
+		log = context.getLogger(FakeBigqueryTests.class.getName());
+	}
+	
+	@After
+	public void stopLogging()
+	{
+		context.stop();
+	}
+	
+	/**
+	 * Logs DEBUG through FATAL and verifies the rows arrive, then counts them with a query like
+	 * {@link Log4jTests} does against BigQuery.
+	 */
+	@Test
+	public void rowsAreInserted() throws InterruptedException, GeneralSecurityException, IOException
+	{
+		logFiveLevels();
+		
+		Assert.assertTrue(server.awaitRows(BigqueryUtils.DATASET_ID, TABLE_NAME, 5, 10000));
+		List<TableRow> rows = server.getRows(BigqueryUtils.DATASET_ID, TABLE_NAME);
+		Assert.assertEquals("DEBUG", rows.get(0).get("level"));
+		Assert.assertEquals("FATAL Message", rows.get(4).get("message"));
+		
+		Job job = new Job().setConfiguration(new JobConfiguration().setQuery(
+				new JobConfigurationQuery().setQuery("SELECT count(*) FROM [Logging.Log4jTestTable]")));
+		String jobId = bigquery.jobs().insert(BigqueryUtils.PROJECT_ID, job).execute().getJobReference().getJobId();
+		String count = (String) bigquery.jobs().getQueryResults(BigqueryUtils.PROJECT_ID, jobId).execute()
+				.getRows().get(0).getF().get(0).getV();
+		Assert.assertEquals("5", count);
+	}
+	
+	/**
+	 * Server errors and rate limiting are retried until the rows get through, without duplicates.
+	 */
+	@Test
+	public void failedRequestsAreRetried() throws InterruptedException
+	{
+		server.failNextRequests(2, 500, "backendError");
+		logFiveLevels();
+		Assert.assertTrue(server.awaitRows(BigqueryUtils.DATASET_ID, TABLE_NAME, 5, 10000));
+		
+		server.failNextRequests(2, 429, "rateLimitExceeded");
+		logFiveLevels();
+		Assert.assertTrue(server.awaitRows(BigqueryUtils.DATASET_ID, TABLE_NAME, 10, 10000));
+		Assert.assertEquals(0, server.getDuplicateRowCount());
+		
+		BigQueryAppenderMXBean metrics = ((BigQueryAppender) context.getConfiguration().getAppender("BIGQUERY")).getMetrics();
+		Assert.assertEquals(10, metrics.getEventsAccepted());
+		Assert.assertEquals(4, metrics.getRequestErrors());
+		Assert.assertEquals(0, metrics.getRowsFailed());
+	}
+	
+	/**
+	 * An invalid row is dropped, while the rows stopped because of it are sent again.
+	 */
+	@Test
+	public void invalidRowsAreNotRetried() throws InterruptedException
+	{
+		server.rejectEveryNthRow(5, "invalid");
+		logFiveLevels();
+		
+		Assert.assertTrue(server.awaitRows(BigqueryUtils.DATASET_ID, TABLE_NAME, 4, 10000));
+		Thread.sleep(500);
+		Assert.assertEquals(4, server.getRowCount(BigqueryUtils.DATASET_ID, TABLE_NAME));
+	}
+	
+	/**
+	 * The configured fields pick up ThreadContext values, MapMessage fields, the marker and the exception
+	 * chain, typed as declared.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void mappedFieldsAreWritten() throws InterruptedException
+	{
+		MapMessage message = new MapMessage();
+		message.put("userId", "42");
+		ThreadContext.put("requestId", "r-1");
+		try
+		{
+			log.error(MarkerManager.getMarker("AUDIT"), message, new IllegalStateException("outer", new IllegalArgumentException("inner")));
+		}
+		finally
+		{
+			ThreadContext.remove("requestId");
+		}
+		
+		Assert.assertTrue(server.awaitRows(BigqueryUtils.DATASET_ID, TABLE_NAME, 1, 10000));
+		TableRow row = server.getRows(BigqueryUtils.DATASET_ID, TABLE_NAME).get(0);
+		Assert.assertEquals("r-1", row.get("request_id"));
+		Assert.assertEquals(42, ((Number) row.get("user_id")).intValue());
+		Assert.assertEquals("AUDIT", row.get("marker"));
+		Assert.assertEquals("outer", row.get("thrown"));
+		
+		List<Map<String, Object>> exception = (List<Map<String, Object>>) row.get("exception");
+		Assert.assertEquals(2, exception.size());
+		Assert.assertEquals(IllegalArgumentException.class.getName(), exception.get(1).get("class"));
+		Assert.assertEquals("inner", exception.get(1).get("message"));
+		
+		List<Map<String, Object>> frames = (List<Map<String, Object>>) row.get("frames");
+		Assert.assertEquals(FakeBigqueryTests.class.getName(), frames.get(0).get("class"));
+		Assert.assertEquals("mappedFieldsAreWritten", frames.get(0).get("method"));
+	}
+	
+	/**
+	 * Events of a routed logger go to a table per day, which is created on first use.
+	 */
+	@Test
+	public void routedRowsGoToDailyTable() throws InterruptedException
+	{
+		SimpleDateFormat day = new SimpleDateFormat("yyyyMMdd");
+		day.setTimeZone(TimeZone.getTimeZone("UTC"));
+		String table = "Routed_" + day.format(new Date());
+		
+		context.getLogger("webbarometer.tests.routed.Orders").info("Routed Message");
+		log.info("Default Message");
+		
+		Assert.assertTrue(server.awaitRows(BigqueryUtils.DATASET_ID, table, 1, 10000));
+		Assert.assertTrue(server.awaitRows(BigqueryUtils.DATASET_ID, TABLE_NAME, 1, 10000));
+		Assert.assertEquals("Routed Message", server.getRows(BigqueryUtils.DATASET_ID, table).get(0).get("message"));
+		Assert.assertEquals("Default Message", server.getRows(BigqueryUtils.DATASET_ID, TABLE_NAME).get(0).get("message"));
+	}
+	
+	/**
+	 * Events over a rate limit are suppressed before they reach the buffer, and reported by a summary row
+	 * that follows the next event let through.
+	 */
+	@Test
+	public void rateLimitedEventsAreSummarized() throws InterruptedException
+	{
+		Logger limited = context.getLogger("webbarometer.tests.limited.Poller");
+		for (int i = 0; i < 10; i++)
+			limited.info("Limited Message " + i);
+		log.info("Default Message");
+		
+		Assert.assertTrue(server.awaitRows(BigqueryUtils.DATASET_ID, TABLE_NAME, 4, 10000));
+		List<TableRow> rows = server.getRows(BigqueryUtils.DATASET_ID, TABLE_NAME);
+		Assert.assertEquals("Limited Message 1", rows.get(1).get("message"));
+		Assert.assertEquals("8 events suppressed by sampling", rows.get(3).get("message"));
+		
+		BigQueryAppenderMXBean metrics = ((BigQueryAppender) context.getConfiguration().getAppender("BIGQUERY")).getMetrics();
+		Assert.assertEquals(8, metrics.getEventsSuppressed());
+	}
+	
+	/**
+	 * After a reconfiguration the metrics of the new appender are still published, although the old appender
+	 * of the same name stops after the new one registered.
+	 */
+	@Test
+	public void metricsSurviveReconfiguration() throws JMException
+	{
+		context.reconfigure();
+		log.info("INFO Message");
+
+		ObjectName name = new ObjectName("webbarometer.appenders:type=BigQueryAppender,name=" + ObjectName.quote("BIGQUERY"));
+		Assert.assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "EventsAccepted"));
+	}
+
+	/**
+	 * Repeats of a parameterized message within the window become one row with their count and the first
+	 * message as the sample.
+	 */
+	@Test
+	public void repeatedEventsAreAggregated() throws InterruptedException
+	{
+		Logger aggregated = context.getLogger("webbarometer.tests.aggregated.Retry");
+		for (int i = 0; i < 100; i++)
+			aggregated.warn("Retrying request {}", i);
+		aggregated.warn("Giving up");
+		
+		Assert.assertTrue(server.awaitRows(BigqueryUtils.DATASET_ID, "Aggregated", 2, 10000));
+		Thread.sleep(200);
+		List<TableRow> rows = server.getRows(BigqueryUtils.DATASET_ID, "Aggregated");
+		Assert.assertEquals(2, rows.size());
+		
+		TableRow retries = "Giving up".equals(rows.get(0).get("message")) ? rows.get(1) : rows.get(0);
+		Assert.assertEquals("Retrying request 0", retries.get("message"));
+		Assert.assertEquals(100, ((Number) retries.get("count")).intValue());
+		Assert.assertNotNull(retries.get("last_timestamp"));
+	}
+	
+	/**
+	 * Map messages have no template, so only those with the same data are aggregated.
+	 */
+	@Test
+	public void mapMessagesWithDifferentDataAreNotAggregated() throws InterruptedException
+	{
+		Logger aggregated = context.getLogger("webbarometer.tests.aggregated.Order");
+		aggregated.info(order("1"));
+		aggregated.info(order("2"));
+		aggregated.info(order("2"));
+		
+		Assert.assertTrue(server.awaitRows(BigqueryUtils.DATASET_ID, "Aggregated", 2, 10000));
+		Thread.sleep(200);
+		List<TableRow> rows = server.getRows(BigqueryUtils.DATASET_ID, "Aggregated");
+		Assert.assertEquals(2, rows.size());
+		Assert.assertEquals(3, ((Number) rows.get(0).get("count")).intValue() + ((Number) rows.get(1).get("count")).intValue());
+	}
+	
+	/**
+	 * A message too long for its SPLIT column is written as several rows, in requests cut to batchMaxBytes; the
+	 * logger name is truncated.
+	 */
+	@Test
+	public void longValuesAreSplitAndTruncated() throws InterruptedException
+	{
+		context.getLogger("webbarometer.tests.split.Long").info("0123456789abcdefghij01234");
+		
+		Assert.assertTrue(server.awaitRows(BigqueryUtils.DATASET_ID, "Split", 3, 10000));
+		String[] parts = new String[3];
+		for (TableRow row : server.getRows(BigqueryUtils.DATASET_ID, "Split"))
+		{
+			parts[((Number) row.get("part")).intValue()] = (String) row.get("message");
+			Assert.assertEquals("webbarometer.test...", row.get("logger"));
+		}
+		Assert.assertArrayEquals(new String[] { "0123456789", "abcdefghij", "01234" }, parts);
+	}
+	
+	/**
+	 * A layout field holds the event rendered by the appender's PatternLayout, without its line separator.
+	 */
+	@Test
+	public void layoutIsRendered() throws InterruptedException
+	{
+		context.getLogger("webbarometer.tests.rendered.Render").warn("Hello {}", 42);
+		
+		Assert.assertTrue(server.awaitRows(BigqueryUtils.DATASET_ID, "Rendered", 1, 10000));
+		TableRow row = server.getRows(BigqueryUtils.DATASET_ID, "Rendered").get(0);
+		Assert.assertEquals("Hello 42", row.get("message"));
+		Assert.assertEquals("WARN Render - Hello 42", row.get("line"));
+	}
+	
+	/**
+	 * Gzipped request bodies reach the server intact, and repetitive rows compress.
+	 */
+	@Test
+	public void compressedRowsArrive() throws InterruptedException
+	{
+		Logger compressed = context.getLogger("webbarometer.tests.compressed.Batch");
+		for (int i = 0; i < 20; i++)
+			compressed.info("Compressed Message " + i);
+		
+		Assert.assertTrue(server.awaitRows(BigqueryUtils.DATASET_ID, "Compressed", 20, 10000));
+		List<TableRow> rows = server.getRows(BigqueryUtils.DATASET_ID, "Compressed");
+		Assert.assertEquals(20, rows.size());
+		Assert.assertEquals("Compressed Message 0", rows.get(0).get("message"));
+		Assert.assertTrue(((BigQueryAppender) context.getConfiguration().getAppender("COMPRESSED")).getCompressionRatio() > 1);
+	}
+	
+	/**
+	 * With the metadata in the template suffix the rows go to a per-host table, and still carry the source
+	 * address and PID, which the table name does not hold.
+	 */
+	@Test
+	public void suffixedRowsKeepSourceAndPid() throws InterruptedException, UnknownHostException
+	{
+		context.getLogger("webbarometer.tests.suffixed.Host").info("Suffixed Message");
+		
+		String table = "Suffixed_test_" + InetAddress.getLocalHost().getHostName().replaceAll("[^A-Za-z0-9]", "_");
+		Assert.assertTrue(server.awaitRows(BigqueryUtils.DATASET_ID, table, 1, 10000));
+		TableRow row = server.getRows(BigqueryUtils.DATASET_ID, table).get(0);
+		Assert.assertEquals("Suffixed Message", row.get("message"));
+		Assert.assertEquals(InetAddress.getLocalHost().getHostAddress(), row.get("source"));
+		Assert.assertNotNull(row.get("pid"));
+		Assert.assertNull(row.get("host"));
+		Assert.assertNull(row.get("environment"));
+	}
+	
+	/**
+	 * The message holds an argument as it was when it was logged, although it is formatted later.
+	 */
+	@Test
+	public void argumentsChangedAfterLoggingAreNotWritten() throws InterruptedException
+	{
+		StringBuilder value = new StringBuilder("before");
+		log.info("Value {} of {}", value, 42);
+		value.setLength(0);
+		value.append("after");
+
+		Assert.assertTrue(server.awaitRows(BigqueryUtils.DATASET_ID, TABLE_NAME, 1, 10000));
+		Assert.assertEquals("Value before of 42", server.getRows(BigqueryUtils.DATASET_ID, TABLE_NAME).get(0).get("message"));
+	}
+
+	/**
+	 * Map fields are written as they were when the message was logged, although the row is built later.
+	 */
+	@Test
+	public void mapChangedAfterLoggingIsNotWritten() throws InterruptedException
+	{
+		MapMessage message = new MapMessage();
+		message.put("userId", "42");
+		log.info(message);
+		message.put("userId", "43");
+
+		Assert.assertTrue(server.awaitRows(BigqueryUtils.DATASET_ID, TABLE_NAME, 1, 10000));
+		Assert.assertEquals("42", String.valueOf(server.getRows(BigqueryUtils.DATASET_ID, TABLE_NAME).get(0).get("user_id")));
+	}
+
+	/**
+	 * Stopping the context waits until the buffered events are sent, even if they would otherwise linger.
+	 */
+	@Test
+	public void stopDrainsBufferedEvents()
+	{
+		server.setLatencyMillis(100);
+		log.info("INFO Message");
+		log.warn("WARN Message");
+		context.stop();
+		
+		Assert.assertEquals(2, server.getRowCount(BigqueryUtils.DATASET_ID, TABLE_NAME));
+	}
+	
+	/**
+	 * In load mode the rows are staged in a file, loaded with a job, and the file is removed once the job
+	 * is done.
+	 */
+	@Test
+	public void rowsAreLoadedWithJobs() throws InterruptedException, IOException, URISyntaxException
+	{
+		File directory = File.createTempFile("bigquery-load", "");
+		directory.delete();
+		System.setProperty("bigquery.loadDirectory", directory.getPath());
+		
+		LoggerContext loadContext = new LoggerContext("FakeBigqueryLoadTests", null, getClass().getResource("log4j2-fake-load.xml").toURI());
+		loadContext.start();
+		try
+		{
+			Logger loadLog = loadContext.getLogger(FakeBigqueryTests.class.getName());
+			loadLog.info("INFO Message");
+			loadLog.error("ERROR Message");
+			
+			Assert.assertTrue(server.awaitRows(BigqueryUtils.DATASET_ID, TABLE_NAME, 2, 10000));
+			Assert.assertEquals("ERROR Message", server.getRows(BigqueryUtils.DATASET_ID, TABLE_NAME).get(1).get("message"));
+			
+			long deadline = System.currentTimeMillis() + 10000;
+			while (directory.list().length > 0 && System.currentTimeMillis() < deadline)
+				Thread.sleep(50);
+			Assert.assertEquals(0, directory.list().length);
+		}
+		finally
+		{
+			loadContext.stop();
+			directory.delete();
+		}
+	}
+	
+	/**
+	 * A load job BigQuery rejects for good is not submitted again; its file is set aside and its rows count
+	 * as failed.
+	 */
+	@Test
+	public void rejectedLoadJobsAreSetAside() throws InterruptedException, IOException, URISyntaxException
+	{
+		File directory = File.createTempFile("bigquery-load", "");
+		directory.delete();
+		System.setProperty("bigquery.loadDirectory", directory.getPath());
+		server.failNextRequests(1, 400, "invalid");
+
+		LoggerContext loadContext = new LoggerContext("FakeBigqueryLoadTests", null, getClass().getResource("log4j2-fake-load.xml").toURI());
+		loadContext.start();
+		try
+		{
+			Logger loadLog = loadContext.getLogger(FakeBigqueryTests.class.getName());
+			loadLog.info("INFO Message");
+			loadLog.error("ERROR Message");
+
+			BigQueryAppenderMXBean metrics = ((BigQueryAppender) loadContext.getConfiguration().getAppender("BIGQUERY")).getMetrics();
+			long deadline = System.currentTimeMillis() + 10000;
+			while (metrics.getRowsFailed() < 2 && System.currentTimeMillis() < deadline)
+				Thread.sleep(50);
+			Assert.assertEquals(2, metrics.getRowsFailed());
+
+			long requests = server.getRequestCount();
+			Thread.sleep(500);
+			Assert.assertEquals(requests, server.getRequestCount());
+			Assert.assertEquals(0, server.getRowCount(BigqueryUtils.DATASET_ID, TABLE_NAME));
+			Assert.assertTrue(directory.list()[0].endsWith(".failed"));
+		}
+		finally
+		{
+			loadContext.stop();
+			for (File file : directory.listFiles())
+				file.delete();
+			directory.delete();
+		}
+	}
+
+	/**
+	 * Leases on the same endpoint share one client, which is shut down with the last lease.
+	 */
+	@Test
+	public void clientsAreSharedUntilReleased() throws GeneralSecurityException, IOException
+	{
+		String rootUrl = server.getRootUrl() + "shared/";
+		int before = BigqueryClients.size();
+		BigqueryClients.Lease first = BigqueryClients.acquire(rootUrl, 2);
+		BigqueryClients.Lease second = BigqueryClients.acquire(rootUrl, 2);
+		Assert.assertSame(first.get(), second.get());
+		Assert.assertEquals(before + 1, BigqueryClients.size());
+		
+		first.close();
+		first.close();
+		Assert.assertEquals(before + 1, BigqueryClients.size());
+		second.close();
+		Assert.assertEquals(before, BigqueryClients.size());
+	}
+	
+	/**
+	 * A lease needing more connections than the shared client has gets a larger client, which later leases
+	 * then share; the smaller one stays usable until its lease is closed.
+	 */
+	@Test
+	public void clientsGrowForLargerLeases() throws GeneralSecurityException, IOException
+	{
+		String rootUrl = server.getRootUrl() + "growing/";
+		int before = BigqueryClients.size();
+		BigqueryClients.Lease small = BigqueryClients.acquire(rootUrl, 2);
+		BigqueryClients.Lease large = BigqueryClients.acquire(rootUrl, 8);
+		BigqueryClients.Lease medium = BigqueryClients.acquire(rootUrl, 4);
+		Assert.assertNotSame(small.get(), large.get());
+		Assert.assertSame(large.get(), medium.get());
+		Assert.assertEquals(before + 1, BigqueryClients.size());
+		Assert.assertEquals(8, maxConnections(medium));
+		
+		large.close();
+		medium.close();
+		Assert.assertEquals(before, BigqueryClients.size());
+		Assert.assertEquals(2, maxConnections(small));
+		small.close();
+		Assert.assertEquals(before, BigqueryClients.size());
+	}
+	
+	/**
+	 * Query results are read across pages once the job is done, and the same query is then answered from the
+	 * cache without another job.
+	 */
+	@Test
+	public void queryResultsArePagedAndCached() throws InterruptedException, IOException
+	{
+		logFiveLevels();
+		Assert.assertTrue(server.awaitRows(BigqueryUtils.DATASET_ID, TABLE_NAME, 5, 10000));
+		server.setQueryJobPolls(2);
+		
+		File directory = File.createTempFile("bigquery-query", "");
+		directory.delete();
+		try
+		{
+			BigqueryQuery query = new BigqueryQuery(bigquery, BigqueryUtils.PROJECT_ID, directory, 60000, 2, 10000);
+			String sql = "SELECT * FROM [Logging.Log4jTestTable]";
+			
+			BigqueryQuery.Results results = query.query(sql);
+			Assert.assertFalse(results.isCached());
+			Assert.assertEquals(5, messages(results).size());
+			Assert.assertEquals(1, server.getQueryJobCount());
+			
+			results = query.query(sql);
+			Assert.assertTrue(results.isCached());
+			List<String> messages = messages(results);
+			Assert.assertEquals("DEBUG Message", messages.get(0));
+			Assert.assertEquals("FATAL Message", messages.get(4));
+			Assert.assertEquals(1, server.getQueryJobCount());
+		}
+		finally
+		{
+			for (File file : directory.listFiles())
+				file.delete();
+			directory.delete();
+		}
+	}
+	
+	/**
+	 * @return
+	 * 		The message column of every row.
+	 */
+	private static List<String> messages(BigqueryQuery.Results results)
+	{
+		int column = 0;
+		while (!"message".equals(results.getSchema().getFields().get(column).getName()))
+			column++;
+		
+		List<String> messages = new ArrayList<String>();
+		while (results.hasNext())
+			messages.add((String) results.next().getF().get(column).getV());
+		return messages;
+	}
+	
+	private static int maxConnections(BigqueryClients.Lease lease)
+	{
+		HttpParams params = ((ApacheHttpTransport) lease.get().getRequestFactory().getTransport()).getHttpClient().getParams();
+		return ConnManagerParams.getMaxTotalConnections(params);
+	}
+	
+	private static MapMessage order(String orderId)
+	{
+		MapMessage message = new MapMessage();
+		message.put("orderId", orderId);
+		return message;
+	}
+	
+	private void logFiveLevels()
+	{
+		log.debug("DEBUG Message");
+		log.info("INFO Message");
+		log.warn("WARN Message");
+		log.error("ERROR Message");
+		log.fatal("FATAL Message");
+	}
+}
@@ -0,0 +1,283 @@
+package webbarometer.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.bigquery.Bigquery;
+
+/**
+ * A registry of shared {@link Bigquery} clients, so every appender and tool talking to the same endpoint with
+ * the same credentials uses one client, one connection pool and one access token.
+ *
+ * Clients are reference counted: {@link #acquire(String, File, int)} hands out a {@link Lease}, and the client
+ * is shut down when the last lease is closed. A lease asking for a larger connection pool than the shared
+ * client has gets a new client with that pool, which is shared from then on; the leases on the old one keep
+ * it until they are closed.
+ *
+ * The access token of a service account is fetched when the client is created and refreshed in the background
+ * {@value #REFRESH_MARGIN_SECONDS} seconds before it expires, so requests do not wait for a token round-trip.
+ * Tokens are fetched without the registry locked, so a slow token endpoint does not hold up other leases.
+ * If a refresh fails it is tried again every {@value #RETRY_SECONDS} seconds; until then the client refreshes
+ * the token itself when it has to, as it would without the registry.
+ */
+public class BigqueryClients
+{
+	/**
+	 * How long before the token expires it is refreshed.
+	 */
+	static final long REFRESH_MARGIN_SECONDS = 300;
+
+	static final long RETRY_SECONDS = 30;
+
+	private static final Map<String, Client> clients = new HashMap<String, Client>();
+
+	/**
+	 * The clients with leases, including those no longer shared because a larger one replaced them.
+	 */
+	private static int liveClients;
+
+	private static ScheduledExecutorService refresher;
+
+	/**
+	 * A shared client and the number of leases on it.
+	 */
+	private static final class Client
+	{
+		final String key;
+		final Bigquery bigquery;
+		final HttpTransport transport;
+		final GoogleCredential credential;
+		final int maxConnections;
+		int leases;
+		ScheduledFuture<?> refresh;
+
+		Client(String key, Bigquery bigquery, HttpTransport transport, GoogleCredential credential, int maxConnections)
+		{
+			this.key = key;
+			this.bigquery = bigquery;
+			this.transport = transport;
+			this.credential = credential;
+			this.maxConnections = maxConnections;
+		}
+	}
+
+	/**
+	 * A use of a shared client. Close it when done; closing it more than once does nothing.
+	 */
+	public static final class Lease implements Closeable
+	{
+		private final Client client;
+		private boolean closed;
+
+		private Lease(Client client)
+		{
+			this.client = client;
+		}
+
+		public Bigquery get()
+		{
+			return client.bigquery;
+		}
+
+		@Override
+		public void close()
+		{
+			synchronized (BigqueryClients.class)
+			{
+				if (closed)
+					return;
+				closed = true;
+				release(client);
+			}
+		}
+	}
+
+	private BigqueryClients()
+	{
+	}
+
+	/**
+	 * Leases the client authenticated as the given service account.
+	 *
+	 * @param serviceAccountEmail
+	 * 		The google service email account that will be used for the connection.
+	 * @param privateKey
+	 * 		The P12 private key for this account.
+	 * @param maxConnections
+	 * 		The smallest connection pool the client may have.
+	 * @return
+	 * 		A lease on the shared client.
+	 *
+	 * @throws GeneralSecurityException
+	 * @throws IOException
+	 * 		If the key could not be read.
+	 */
+	public static Lease acquire(String serviceAccountEmail, File privateKey, int maxConnections)
+			throws GeneralSecurityException, IOException
+	{
+		String key = serviceAccountEmail + "|" + privateKey.getCanonicalPath();
+		Client client;
+		boolean created = false;
+		synchronized (BigqueryClients.class)
+		{
+			client = clients.get(key);
+			if (client == null || client.maxConnections < maxConnections)
+			{
+				JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+				HttpTransport transport = BigqueryUtils.newPooledTransport(maxConnections);
+				GoogleCredential credential = BigqueryUtils.createBigqueryServiceCredentials(serviceAccountEmail, privateKey, jsonFactory, transport);
+				client = new Client(key, new Bigquery.Builder(transport, jsonFactory, credential).setApplicationName("bigquery-log4j").build(),
+						transport, credential, maxConnections);
+				clients.put(key, client);
+				liveClients++;
+				created = true;
+			}
+			client.leases++;
+		}
+
+		// Outside the lock, so other appenders starting or stopping do not wait for the token endpoint.
+		if (created)
+			refresh(client);
+		return new Lease(client);
+	}
+
+	/**
+	 * Leases the unauthenticated client of a stand-in service, see
+	 * {@link BigqueryUtils#makeBigqueryConnection(String, HttpTransport)}.
+	 *
+	 * @param rootUrl
+	 * 		The root URL of the service, ending with "/".
+	 * @param maxConnections
+	 * 		The smallest connection pool the client may have.
+	 * @return
+	 * 		A lease on the shared client.
+	 *
+	 * @throws GeneralSecurityException
+	 * @throws IOException
+	 */
+	public static synchronized Lease acquire(String rootUrl, int maxConnections) throws GeneralSecurityException, IOException
+	{
+		Client client = clients.get(rootUrl);
+		if (client == null || client.maxConnections < maxConnections)
+		{
+			HttpTransport transport = BigqueryUtils.newPooledTransport(maxConnections);
+			client = new Client(rootUrl, BigqueryUtils.makeBigqueryConnection(rootUrl, transport), transport, null, maxConnections);
+			clients.put(rootUrl, client);
+			liveClients++;
+		}
+
+		client.leases++;
+		return new Lease(client);
+	}
+
+	/**
+	 * @return
+	 * 		The number of clients currently shared.
+	 */
+	public static synchronized int size()
+	{
+		return clients.size();
+	}
+
+	private static void release(Client client)
+	{
+		if (--client.leases > 0)
+			return;
+
+		// A client replaced by a larger one is no longer the one registered under its key.
+		if (clients.get(client.key) == client)
+			clients.remove(client.key);
+		liveClients--;
+		if (client.refresh != null)
+			client.refresh.cancel(false);
+		try
+		{
+			client.transport.shutdown();
+		}
+		catch (IOException e)
+		{
+			System.err.println("Could not shut down BigQuery connections: " + e.getMessage());
+		}
+
+		if (liveClients == 0 && refresher != null)
+		{
+			refresher.shutdown();
+			refresher = null;
+		}
+	}
+
+	/**
+	 * Refreshes the client's token now and schedules the next refresh before it expires, unless the client's
+	 * last lease has been closed meanwhile. Called without the registry locked, since the refresh is a network round-trip.
+	 */
+	private static void refresh(final Client client)
+	{
+		if (client.credential == null || !isLive(client))
+			return;
+
+		long delaySeconds;
+		try
+		{
+			client.credential.refreshToken();
+			Long expiresIn = client.credential.getExpiresInSeconds();
+			delaySeconds = expiresIn == null ? RETRY_SECONDS : Math.max(RETRY_SECONDS, expiresIn - REFRESH_MARGIN_SECONDS);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Could not refresh the BigQuery access token, retrying in " + RETRY_SECONDS + "s: " + e.getMessage());
+			delaySeconds = RETRY_SECONDS;
+		}
+
+		synchronized (BigqueryClients.class)
+		{
+			// A released client is not refreshed any more, even if a new one took its key.
+			if (!isLive(client))
+				return;
+
+			client.refresh = refresher().schedule(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					refresh(client);
+				}
+			}, delaySeconds, TimeUnit.SECONDS);
+		}
+	}
+
+	private static synchronized boolean isLive(Client client)
+	{
+		return client.leases > 0;
+	}
+
+	private static ScheduledExecutorService refresher()
+	{
+		if (refresher == null)
+		{
+			refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "BigqueryClients-token-refresh");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return refresher;
+	}
+}
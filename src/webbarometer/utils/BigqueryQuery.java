@@ -0,0 +1,504 @@
+package webbarometer.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.bigquery.Bigquery;
+import com.google.api.services.bigquery.model.ErrorProto;
+import com.google.api.services.bigquery.model.GetQueryResultsResponse;
+import com.google.api.services.bigquery.model.Job;
+import com.google.api.services.bigquery.model.JobConfiguration;
+import com.google.api.services.bigquery.model.JobConfigurationQuery;
+import com.google.api.services.bigquery.model.JobReference;
+import com.google.api.services.bigquery.model.TableCell;
+import com.google.api.services.bigquery.model.TableRow;
+import com.google.api.services.bigquery.model.TableSchema;
+
+/**
+ * Runs queries against the logged tables and streams their results, e.g. for on-call tools.
+ *
+ * A query is submitted as a job, which is polled with a backoff from {@value #FIRST_POLL_MILLIS}ms up to
+ * {@value #MAX_POLL_MILLIS}ms until it is done. Its rows are then read a page at a time through
+ * {@code getQueryResults}, so a large result is never held in memory as a whole.
+ *
+ * With a cache directory, every result read to the end is also written to a file there, keyed by the project
+ * and the query text, and the same query is answered from that file until it is {@code cacheMillis} old.
+ * {@link #queryLast(String, long)} always queries up to now, but keys its result by the window rounded down to
+ * {@code cacheMillis}, so "the errors of the last 15 minutes" asked twice within that time costs one job.
+ */
+public class BigqueryQuery
+{
+	static final long FIRST_POLL_MILLIS = 200;
+	static final long MAX_POLL_MILLIS = 5000;
+
+	private static final String CACHE_SUFFIX = ".json";
+	private static final String PARTIAL_SUFFIX = ".part";
+
+	private final Bigquery bigquery;
+	private final String projectId;
+	private final File cacheDirectory;
+	private final long cacheMillis;
+	private final long pageSize;
+	private final long timeoutMillis;
+	private final JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+
+	/**
+	 * Reads results in pages of 1000 rows and waits up to 5 minutes for a job.
+	 *
+	 * @see #BigqueryQuery(Bigquery, String, File, long, long, long)
+	 */
+	public BigqueryQuery(Bigquery bigquery, String projectId, File cacheDirectory, long cacheMillis)
+	{
+		this(bigquery, projectId, cacheDirectory, cacheMillis, 1000, 300000);
+	}
+
+	/**
+	 * @param bigquery
+	 * 		The client to run the queries with.
+	 * @param projectId
+	 * 		The project the jobs run in.
+	 * @param cacheDirectory
+	 * 		Where results are cached, created if needed. Null to not cache.
+	 * @param cacheMillis
+	 * 		How long a cached result is used, and what {@link #queryLast(String, long)} rounds the cache key of
+	 * 		a window to; the window itself is queried up to now.
+	 * @param pageSize
+	 * 		The most rows read in one request.
+	 * @param timeoutMillis
+	 * 		How long to wait for a job to be done.
+	 */
+	public BigqueryQuery(Bigquery bigquery, String projectId, File cacheDirectory, long cacheMillis, long pageSize, long timeoutMillis)
+	{
+		this.bigquery = bigquery;
+		this.projectId = projectId;
+		this.cacheDirectory = cacheMillis > 0 ? cacheDirectory : null;
+		this.cacheMillis = cacheMillis;
+		this.pageSize = pageSize;
+		this.timeoutMillis = timeoutMillis;
+
+		if (this.cacheDirectory != null)
+		{
+			this.cacheDirectory.mkdirs();
+			evictExpired();
+		}
+	}
+
+	/**
+	 * Runs the query, or reads its cached result.
+	 *
+	 * @param sql
+	 * 		The query.
+	 * @return
+	 * 		The rows. Close them if they are not read to the end.
+	 * @throws IOException
+	 * 		If the job could not be run or failed.
+	 * @throws InterruptedException
+	 * 		If interrupted while waiting for the job.
+	 */
+	public Results query(String sql) throws IOException, InterruptedException
+	{
+		return query(sql, sql);
+	}
+
+	/**
+	 * @param cacheKey
+	 * 		The query the result is cached under, which may differ from the one run.
+	 */
+	private Results query(String sql, String cacheKey) throws IOException, InterruptedException
+	{
+		File cached = cacheFile(cacheKey);
+		if (cached != null && cached.isFile())
+		{
+			if (System.currentTimeMillis() - cached.lastModified() < cacheMillis)
+				return new Results(this, cached);
+			cached.delete();
+		}
+
+		JobReference job = submit(sql);
+		await(job);
+		return new Results(this, job.getJobId(), cached);
+	}
+
+	/**
+	 * Runs a query over a time window that ends now. The window's bounds are filled in for {@code {start}} and
+	 * {@code {end}}, as {@code TIMESTAMP('yyyy-MM-dd HH:mm:ss.SSS')}:
+	 *
+	 * <pre>
+	 * SELECT timestamp, logger, message FROM [Logging.Log4jTestTable]
+	 * WHERE level = 'ERROR' AND timestamp &gt;= {start} AND timestamp &lt; {end}
+	 * </pre>
+	 *
+	 * The result is cached under the window rounded down to {@code cacheMillis}, so calls within the same
+	 * {@code cacheMillis} share it, but a query that runs always reads up to now and includes the latest
+	 * rows.
+	 *
+	 * @param sql
+	 * 		The query with the {@code {start}} and {@code {end}} placeholders.
+	 * @param windowMillis
+	 * 		The length of the window.
+	 * @see #query(String)
+	 */
+	public Results queryLast(String sql, long windowMillis) throws IOException, InterruptedException
+	{
+		long end = System.currentTimeMillis();
+		long roundedEnd = cacheMillis > 0 ? end - end % cacheMillis : end;
+
+		return query(window(sql, end - windowMillis, end), window(sql, roundedEnd - windowMillis, roundedEnd));
+	}
+
+	private static String window(String sql, long start, long end)
+	{
+		return sql.replace("{start}", "TIMESTAMP('" + BigqueryUtils.formatTimestamp(start) + "')")
+				.replace("{end}", "TIMESTAMP('" + BigqueryUtils.formatTimestamp(end) + "')");
+	}
+
+	private JobReference submit(String sql) throws IOException
+	{
+		Job job = new Job().setConfiguration(new JobConfiguration().setQuery(new JobConfigurationQuery().setQuery(sql)));
+		return bigquery.jobs().insert(projectId, job).execute().getJobReference();
+	}
+
+	/**
+	 * Polls the job until it is done, waiting twice as long after every poll.
+	 *
+	 * @throws IOException
+	 * 		If the job failed or is not done within the timeout.
+	 */
+	private void await(JobReference ref) throws IOException, InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		long wait = FIRST_POLL_MILLIS;
+		while (true)
+		{
+			Job job = bigquery.jobs().get(projectId, ref.getJobId()).execute();
+			if ("DONE".equals(job.getStatus().getState()))
+			{
+				ErrorProto error = job.getStatus().getErrorResult();
+				if (error != null)
+					throw new IOException("Query job " + ref.getJobId() + " failed: " + error.getMessage());
+				return;
+			}
+
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				throw new IOException("Query job " + ref.getJobId() + " not done after " + timeoutMillis + "ms");
+
+			Thread.sleep(Math.min(wait, remaining));
+			wait = Math.min(wait * 2, MAX_POLL_MILLIS);
+		}
+	}
+
+	private GetQueryResultsResponse page(String jobId, String pageToken) throws IOException
+	{
+		return bigquery.jobs().getQueryResults(projectId, jobId).setMaxResults(pageSize).setPageToken(pageToken).execute();
+	}
+
+	/**
+	 * @return
+	 * 		The cache file of the query, which may not exist, or null if results are not cached.
+	 */
+	private File cacheFile(String sql)
+	{
+		if (cacheDirectory == null)
+			return null;
+
+		try
+		{
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest((projectId + "\n" + sql).getBytes(StandardCharsets.UTF_8));
+			StringBuilder name = new StringBuilder(digest.length * 2 + CACHE_SUFFIX.length());
+			for (byte b : digest)
+				name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			return new File(cacheDirectory, name.append(CACHE_SUFFIX).toString());
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Deletes the expired results, and partial ones left by a crash.
+	 */
+	private void evictExpired()
+	{
+		File[] files = cacheDirectory.listFiles();
+		if (files == null)
+			return;
+
+		long now = System.currentTimeMillis();
+		for (File file : files)
+		{
+			boolean partial = file.getName().endsWith(PARTIAL_SUFFIX);
+			if ((partial || file.getName().endsWith(CACHE_SUFFIX)) && now - file.lastModified() >= cacheMillis)
+				file.delete();
+		}
+	}
+
+	/**
+	 * The rows of a query, read a page at a time from BigQuery or a line at a time from the cache. Each row is
+	 * a list of cells in the order of {@link #getSchema()}.
+	 *
+	 * Rows read from BigQuery are written to the cache as they go; the cache file only replaces an older one
+	 * once the last row has been read. Failures while reading are thrown as {@link UncheckedIOException}.
+	 */
+	public static final class Results implements Iterator<TableRow>, Closeable
+	{
+		private final BigqueryQuery query;
+		private final String jobId;
+		private final File cacheFile;
+		private final File partialFile;
+		private final boolean cached;
+
+		private TableSchema schema;
+		private BufferedReader reader;
+		private Writer writer;
+		private List<TableRow> page = Collections.emptyList();
+		private int index;
+		private String pageToken;
+		private boolean lastPage;
+		private TableRow next;
+
+		/**
+		 * Reads the rows of a done job, writing them to the cache file if it is not null.
+		 */
+		Results(BigqueryQuery query, String jobId, File cacheFile) throws IOException
+		{
+			this.query = query;
+			this.jobId = jobId;
+			this.cacheFile = cacheFile;
+			this.cached = false;
+			this.partialFile = cacheFile == null ? null : new File(cacheFile.getPath() + PARTIAL_SUFFIX);
+
+			fetch();
+			if (partialFile != null)
+			{
+				writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(partialFile), StandardCharsets.UTF_8));
+				writer.write(schema == null ? "{}" : query.jsonFactory.toString(schema));
+				writer.write('\n');
+			}
+		}
+
+		/**
+		 * Reads the rows from a cache file, whose first line is the schema.
+		 */
+		Results(BigqueryQuery query, File cacheFile) throws IOException
+		{
+			this.query = query;
+			this.jobId = null;
+			this.cacheFile = cacheFile;
+			this.partialFile = null;
+			this.cached = true;
+
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(cacheFile), StandardCharsets.UTF_8));
+			String line = reader.readLine();
+			schema = line == null ? null : query.jsonFactory.fromString(line, TableSchema.class);
+		}
+
+		/**
+		 * @return
+		 * 		The columns of the rows, or null if BigQuery sent none.
+		 */
+		public TableSchema getSchema()
+		{
+			return schema;
+		}
+
+		/**
+		 * @return
+		 * 		Whether the rows come from the cache rather than a job.
+		 */
+		public boolean isCached()
+		{
+			return cached;
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			if (next == null)
+			{
+				try
+				{
+					next = cached ? readCached() : readPaged();
+				}
+				catch (IOException e)
+				{
+					close();
+					throw new UncheckedIOException(e);
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public TableRow next()
+		{
+			if (!hasNext())
+				throw new NoSuchElementException();
+
+			TableRow row = next;
+			next = null;
+			return row;
+		}
+
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Stops reading. Rows not read to the end are not cached.
+		 */
+		@Override
+		public void close()
+		{
+			closeQuietly(reader);
+			reader = null;
+			if (writer != null)
+			{
+				closeQuietly(writer);
+				writer = null;
+				partialFile.delete();
+			}
+		}
+
+		private TableRow readCached() throws IOException
+		{
+			String line = reader == null ? null : reader.readLine();
+			if (line == null)
+			{
+				close();
+				return null;
+			}
+			return query.jsonFactory.fromString(line, TableRow.class);
+		}
+
+		private TableRow readPaged() throws IOException
+		{
+			while (index >= page.size())
+			{
+				if (lastPage)
+				{
+					finish();
+					return null;
+				}
+				fetch();
+			}
+
+			TableRow row = page.get(index++);
+			if (writer != null)
+			{
+				writer.write(query.jsonFactory.toString(row));
+				writer.write('\n');
+			}
+			return row;
+		}
+
+		private void fetch() throws IOException
+		{
+			GetQueryResultsResponse response = query.page(jobId, pageToken);
+			if (schema == null)
+				schema = response.getSchema();
+			page = response.getRows() == null ? Collections.<TableRow> emptyList() : response.getRows();
+			index = 0;
+			pageToken = response.getPageToken();
+			lastPage = pageToken == null;
+		}
+
+		/**
+		 * Moves the complete cache file into place.
+		 */
+		private void finish() throws IOException
+		{
+			if (writer == null)
+				return;
+
+			writer.close();
+			writer = null;
+			cacheFile.delete();
+			if (!partialFile.renameTo(cacheFile))
+				partialFile.delete();
+		}
+
+		private static void closeQuietly(Closeable closeable)
+		{
+			if (closeable == null)
+				return;
+			try
+			{
+				closeable.close();
+			}
+			catch (IOException e)
+			{
+				// Nothing left to read or write.
+			}
+		}
+	}
+
+	/**
+	 * Prints the rows of a query as tab-separated values. With a number of minutes before the query, it is run
+	 * over that many minutes up to now, see {@link #queryLast(String, long)}; results are cached for a minute
+	 * in the {@code bigquery.queryCache} directory, by default under {@code java.io.tmpdir}.
+	 *
+	 * <pre>
+	 * java webbarometer.utils.BigqueryQuery 15 "SELECT timestamp, message FROM [Logging.Log4jTestTable] WHERE level = 'ERROR' AND timestamp &gt;= {start}"
+	 * </pre>
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length == 0)
+		{
+			System.err.println("Usage: BigqueryQuery [minutes] sql");
+			return;
+		}
+
+		File cache = new File(System.getProperty("bigquery.queryCache", new File(System.getProperty("java.io.tmpdir"), "bigquery-log4j-queries").getPath()));
+		BigqueryClients.Lease client = BigqueryClients.acquire(BigqueryUtils.serviceAccountEmail(), BigqueryUtils.keyFile(), 2);
+		try
+		{
+			BigqueryQuery query = new BigqueryQuery(client.get(), BigqueryUtils.projectId(), cache, 60000);
+			Results results = args.length > 1 ? query.queryLast(args[1], Long.parseLong(args[0]) * 60000) : query.query(args[0]);
+			try
+			{
+				while (results.hasNext())
+				{
+					StringBuilder line = new StringBuilder();
+					for (TableCell cell : results.next().getF())
+					{
+						if (line.length() > 0)
+							line.append('\t');
+						line.append(cell.getV());
+					}
+					System.out.println(line);
+				}
+			}
+			finally
+			{
+				results.close();
+			}
+		}
+		finally
+		{
+			client.close();
+		}
+	}
+}
@@ -1,6 +1,5 @@
 package webbarometer.utils;
 
-import java.io.File;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.util.LinkedList;
@@ -22,32 +21,83 @@ public class BigqueryRefresher
 {
 	private static final String TEST_TABLE_NAME = "Log4jTestTable";
 	
+	private final String projectId;
+	
 	private Bigquery bigquery;
 	
 	private TableReference tableReference;
 	
 	/**
-	 * Connects to BigQuery, deletes the table, and then recreates it.
+	 * Works in {@link BigqueryUtils#projectId()}.
+	 */
+	public BigqueryRefresher()
+	{
+		this(BigqueryUtils.projectId());
+	}
+	
+	/**
+	 * @param projectId The project holding the table.
+	 */
+	public BigqueryRefresher(String projectId)
+	{
+		this.projectId = projectId;
+	}
+	
+	/**
+	 * Connects to BigQuery as {@link BigqueryUtils#serviceAccountEmail()}, deletes the table, and then recreates it.
+	 * The connection is shared with any appender using the same account, see {@link BigqueryClients}.
 	 * 
-	 * @param bigquery The {@link Bigquery}.
 	 * @throws IOException 
 	 * @throws GeneralSecurityException 
 	 */
 	public void start() throws GeneralSecurityException, IOException
 	{
+		System.out.println("Connecting...");
+		BigqueryClients.Lease client = BigqueryClients.acquire(BigqueryUtils.serviceAccountEmail(), BigqueryUtils.keyFile(), 2);
+		try
+		{
+			start(client.get());
+		}
+		finally
+		{
+			client.close();
+		}
+	}
+	
+	/**
+	 * Deletes the table, and then recreates it, through the given connection.
+	 * 
+	 * @param bigquery The {@link Bigquery}, e.g. one connected to a local stand-in server.
+	 * @throws IOException 
+	 */
+	public void start(Bigquery bigquery) throws IOException
+	{
+		start(bigquery, null);
+	}
+	
+	/**
+	 * Deletes the table, and then recreates it with the given schema, through the given connection.
+	 * 
+	 * @param bigquery The {@link Bigquery}.
+	 * @param schema The schema, e.g. from {@code BigQueryAppender.getTableSchema()}, or null for the default columns.
+	 * @throws IOException 
+	 */
+	public void start(Bigquery bigquery, TableSchema schema) throws IOException
+	{
+		this.bigquery = bigquery;
 		tableReference = new TableReference();
-		tableReference.setProjectId(BigqueryUtils.PROJECT_ID);
+		tableReference.setProjectId(projectId);
 		tableReference.setDatasetId(BigqueryUtils.DATASET_ID);
 		tableReference.setTableId(TEST_TABLE_NAME);
-
-		System.out.println("Connecting...");
-		bigquery = BigqueryUtils.makeBigqueryConnection(BigqueryUtils.SERVICE_ACCOUNT_EMAIL, new File("key.p12"));
 		
 		System.out.println("Deleting "+TEST_TABLE_NAME+"...");
 		deleteTestTable();
 		
 		System.out.println("Creating "+TEST_TABLE_NAME+"...");
-		createTestTable();
+		if (schema == null)
+			createTestTable();
+		else
+			createTestTable(schema);
 		
 		System.out.println("Done!");
 	}
@@ -73,6 +123,10 @@ public class BigqueryRefresher
 	 * <li>level: {@link FieldType#STRING}</li>
 	 * <li>logger: {@link FieldType#STRING}</li>
 	 * <li>source: {@link FieldType#STRING}</li>
+	 * <li>host: {@link FieldType#STRING}</li>
+	 * <li>pid: {@link FieldType#INTEGER}</li>
+	 * <li>environment: {@link FieldType#STRING}</li>
+	 * <li>deployment: {@link FieldType#STRING}</li>
 	 * <li>thread: {@link FieldType#STRING}</li>
 	 * <li>thrown: {@link FieldType#STRING}</li>
 	 * <li>message: {@link FieldType#STRING}</li>
@@ -85,6 +139,10 @@ public class BigqueryRefresher
 		fields.add(BigqueryUtils.makeFieldSchema("level", FieldType.STRING));
 		fields.add(BigqueryUtils.makeFieldSchema("logger", FieldType.STRING));
 		fields.add(BigqueryUtils.makeFieldSchema("source", FieldType.STRING));
+		fields.add(BigqueryUtils.makeFieldSchema("host", FieldType.STRING));
+		fields.add(BigqueryUtils.makeFieldSchema("pid", FieldType.INTEGER));
+		fields.add(BigqueryUtils.makeFieldSchema("environment", FieldType.STRING));
+		fields.add(BigqueryUtils.makeFieldSchema("deployment", FieldType.STRING));
 		fields.add(BigqueryUtils.makeFieldSchema("thread", FieldType.STRING));
 		fields.add(BigqueryUtils.makeFieldSchema("thrown", FieldType.STRING));
 		fields.add(BigqueryUtils.makeFieldSchema("message", FieldType.STRING));
@@ -92,6 +150,17 @@ public class BigqueryRefresher
 		TableSchema schema = new TableSchema();
 		schema.setFields(fields);
 		
+		createTestTable(schema);
+	}
+	
+	/**
+	 * Creates the table defined in {@code tableReference} with the given schema.
+	 * 
+	 * @param schema
+	 * @throws IOException 
+	 */
+	public void createTestTable(TableSchema schema) throws IOException
+	{
 		BigqueryUtils.createAndInsertTable(bigquery, tableReference, schema);
 	}
 	
@@ -3,14 +3,25 @@ package webbarometer.utils;
 import java.io.File;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
-import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import com.google.api.client.googleapis.GoogleUtils;
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.UriTemplate;
+import com.google.api.client.http.apache.ApacheHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.services.bigquery.Bigquery;
@@ -38,8 +49,38 @@ public class BigqueryUtils
 	public static final String DATASET_ID = "Logging";
 	public static final String SERVICE_ACCOUNT_EMAIL =
 			"750903728331-t6hl208qt3v8r4e5bcr3ggi0ujkghc8k@developer.gserviceaccount.com";
+	public static final String KEY_FILE = "key.p12";
 		
-	private static final SimpleDateFormat bigqueryDateFormatter = new SimpleDateFormat("YYYY-MM-dd HH:mm:ss.SS");	
+	private static final TimestampFormatter bigqueryDateFormatter = new TimestampFormatter();
+	
+	/**
+	 * @return
+	 * 		The project the tools work in: the {@code bigquery.project} system property, or {@link #PROJECT_ID}.
+	 */
+	public static String projectId()
+	{
+		return System.getProperty("bigquery.project", PROJECT_ID);
+	}
+	
+	/**
+	 * @return
+	 * 		The service account the tools connect as: the {@code bigquery.serviceAccount} system property, or
+	 * 		{@link #SERVICE_ACCOUNT_EMAIL}.
+	 */
+	public static String serviceAccountEmail()
+	{
+		return System.getProperty("bigquery.serviceAccount", SERVICE_ACCOUNT_EMAIL);
+	}
+	
+	/**
+	 * @return
+	 * 		The P12 key of {@link #serviceAccountEmail()}: the {@code bigquery.keyFile} system property, or
+	 * 		{@link #KEY_FILE} in the working directory.
+	 */
+	public static File keyFile()
+	{
+		return new File(System.getProperty("bigquery.keyFile", KEY_FILE));
+	}
 	
 	/**
 	 * Creates and inserts a table given the Table reference and scheme.
@@ -101,7 +142,28 @@ public class BigqueryUtils
 				.setMode(mode.toString())
 				.setDescription(description);
 	}
-	
+
+	/**
+	 * A convenience method for generating the schema of a {@link FieldType#RECORD} field.
+	 *
+	 * @param name
+	 * 		The name of the field.
+	 * @param fields
+	 * 		The fields of the record. They cannot be records themselves.
+	 * @param mode
+	 * 		The mode of this field. Use {@link FieldMode#REPEATED} for a list of records.
+	 * @param description
+	 * 		This fields description. (Can be null)
+	 * @return
+	 * 		The schema of the created field.
+	 *
+	 * @see #makeFieldSchema(String, FieldType, FieldMode, String)
+	 */
+	public static TableFieldSchema makeFieldSchema(String name, List<TableFieldSchema> fields, FieldMode mode, String description)
+	{
+		return makeFieldSchema(name, FieldType.RECORD, mode, description).setFields(fields);
+	}
+
 	/**
 	 * Inserts the given data into the given table.
 	 * 
@@ -112,25 +174,124 @@ public class BigqueryUtils
 	 * @throws IOException 
 	 */
 	public static TableDataInsertAllResponse insertTableData(Bigquery bigquery, TableReference ref, List<TableDataInsertAllRequest.Rows> data) throws IOException
+	{
+		return insertTableData(bigquery, ref, data, null);
+	}
+	
+	/**
+	 * Inserts the given data into the table created from the given table and template suffix.
+	 * 
+	 * @param bigquery
+	 * @param ref
+	 * 		The template table. Its project and dataset default to {@link #PROJECT_ID} and {@link #DATASET_ID}.
+	 * @param data
+	 * @param templateSuffix
+	 * 		Appended to the table name. Bigquery creates the suffixed table from the template table's schema
+	 * 		if it does not exist. May be null to insert into the table itself.
+	 * @return
+	 * @throws IOException 
+	 */
+	public static TableDataInsertAllResponse insertTableData(Bigquery bigquery, TableReference ref, List<TableDataInsertAllRequest.Rows> data,
+			String templateSuffix) throws IOException
 	{
 		TableDataInsertAllRequest insertRequest = new TableDataInsertAllRequest().setRows(data);
+		if (templateSuffix != null)
+			insertRequest.set("templateSuffix", templateSuffix);
 		
-		InsertAll req = bigquery.tabledata().insertAll(PROJECT_ID, DATASET_ID, ref.getTableId(), insertRequest);			
+		String projectId = ref.getProjectId() != null ? ref.getProjectId() : PROJECT_ID;
+		String datasetId = ref.getDatasetId() != null ? ref.getDatasetId() : DATASET_ID;
+		InsertAll req = bigquery.tabledata().insertAll(projectId, datasetId, ref.getTableId(), insertRequest);			
 		return req.execute();
 	}
 	
+	/**
+	 * Inserts pre-encoded rows into the given table. The content must be a complete insertAll request body,
+	 * which lets callers stream rows they have already serialized instead of building a
+	 * {@link TableDataInsertAllRequest}.
+	 * 
+	 * @param bigquery
+	 * @param ref
+	 * 		The table to insert into.
+	 * @param content
+	 * 		The JSON request body.
+	 * @return
+	 * 		The parsed response, including any per-row insert errors.
+	 * @throws IOException
+	 * 		A {@link GoogleJsonResponseException} if Bigquery rejected the request.
+	 */
+	public static TableDataInsertAllResponse insertTableData(Bigquery bigquery, TableReference ref, HttpContent content) throws IOException
+	{
+		return insertTableData(bigquery, ref, content, null);
+	}
+	
+	/**
+	 * Inserts pre-encoded rows into the given table, sending the body with the given content encoding.
+	 * 
+	 * @param bigquery
+	 * @param ref
+	 * 		The table to insert into.
+	 * @param content
+	 * 		The JSON request body, already encoded as {@code contentEncoding} says.
+	 * @param contentEncoding
+	 * 		The Content-Encoding header, e.g. "gzip". May be null for an unencoded body.
+	 * @return
+	 * 		The parsed response, including any per-row insert errors.
+	 * @throws IOException
+	 * 		A {@link GoogleJsonResponseException} if Bigquery rejected the request.
+	 * 
+	 * @see #insertTableData(Bigquery, TableReference, HttpContent)
+	 */
+	public static TableDataInsertAllResponse insertTableData(Bigquery bigquery, TableReference ref, HttpContent content, String contentEncoding)
+			throws IOException
+	{
+		GenericUrl url = new GenericUrl(UriTemplate.expand(bigquery.getBaseUrl(),
+				"projects/{projectId}/datasets/{datasetId}/tables/{tableId}/insertAll", ref, true));
+		
+		HttpRequest request = bigquery.getRequestFactory().buildPostRequest(url, content);
+		request.setParser(bigquery.getObjectParser());
+		if (contentEncoding != null)
+			request.getHeaders().setContentEncoding(contentEncoding);
+		
+		// parseAs closes the response, which hands the connection back to the transport's pool.
+		try
+		{
+			return GoogleJsonResponseException.execute(bigquery.getJsonFactory(), request).parseAs(TableDataInsertAllResponse.class);
+		}
+		catch (IllegalArgumentException e)
+		{
+			// An empty or cut off response body; report it like any other failed request.
+			throw new IOException("Could not parse the insertAll response", e);
+		}
+	}
+	
 	/**
 	 * Format a date object in such a way that Bigquery can interpret it as a Timestamp. A
-	 * Timestamp field only accepts Strings in the form "YYYY-MM-dd HH:mm[[:ss].SS]".
+	 * Timestamp field accepts Strings in the form "yyyy-MM-dd HH:mm[:ss[.SSS]]", read as UTC.
 	 * 
 	 * @param date
 	 * 		The date to format as a String.
 	 * @return
 	 * 		A formatted string representing the given date.
+	 * 
+	 * @see #formatTimestamp(long)
 	 */
 	public static String formatDate(Date date)
 	{
-		return bigqueryDateFormatter.format(date);
+		return bigqueryDateFormatter.format(date.getTime());
+	}
+	
+	/**
+	 * Format epoch milliseconds as a Bigquery Timestamp, "yyyy-MM-dd HH:mm:ss.SSS" in UTC. Thread-safe
+	 * and cheap enough to call for every log event; see {@link TimestampFormatter}.
+	 * 
+	 * @param epochMillis
+	 * 		Milliseconds since the epoch.
+	 * @return
+	 * 		A formatted string representing the given time.
+	 */
+	public static String formatTimestamp(long epochMillis)
+	{
+		return bigqueryDateFormatter.format(epochMillis);
 	}
 	
 	/**
@@ -168,14 +329,78 @@ public class BigqueryUtils
 	
 	
 	public static Bigquery makeBigqueryConnection(String serviceAccountEmail, File privateKey) throws GeneralSecurityException, IOException
+	{
+		return makeBigqueryConnection(serviceAccountEmail, privateKey, GoogleNetHttpTransport.newTrustedTransport());
+	}
+	
+	/**
+	 * Build a {@link Bigquery} client that sends its requests through the given transport.
+	 * 
+	 * @param serviceAccountEmail
+	 * 		The google service email account that will be used for the connection.
+	 * @param privateKey
+	 * 		The private key for this account.
+	 * @param transport
+	 * 		The HTTP Transport used as a connection, e.g. one made by {@link #newPooledTransport(int)}.
+	 * @return
+	 * 		A new {@link Bigquery} client.
+	 * 
+	 * @throws GeneralSecurityException
+	 * @throws IOException
+	 */
+	public static Bigquery makeBigqueryConnection(String serviceAccountEmail, File privateKey, HttpTransport transport) throws GeneralSecurityException, IOException
 	{
 		JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
-		HttpTransport transport = GoogleNetHttpTransport.newTrustedTransport();
 			
 		GoogleCredential credentials = createBigqueryServiceCredentials(serviceAccountEmail, privateKey, jsonFactory, transport);
 		return new Bigquery.Builder(transport, jsonFactory, credentials).build();	
 	}
 	
+	/**
+	 * Build an unauthenticated {@link Bigquery} client for a stand-in service, such as a local fake server
+	 * used for offline tests. Requests go to {@code rootUrl} instead of https://www.googleapis.com/.
+	 * 
+	 * @param rootUrl
+	 * 		The root URL of the service, ending with "/", e.g. "http://127.0.0.1:9250/".
+	 * @param transport
+	 * 		The HTTP Transport used as a connection.
+	 * @return
+	 * 		A new {@link Bigquery} client.
+	 */
+	public static Bigquery makeBigqueryConnection(String rootUrl, HttpTransport transport)
+	{
+		return new Bigquery.Builder(transport, JacksonFactory.getDefaultInstance(), null)
+				.setRootUrl(rootUrl)
+				.setApplicationName("bigquery-log4j")
+				.build();
+	}
+	
+	/**
+	 * Build an HTTP transport trusting Google's certificates that keeps connections alive and pools up to
+	 * {@code maxConnections} of them, so concurrent requests reuse TLS connections instead of opening new ones.
+	 * The default {@link GoogleNetHttpTransport#newTrustedTransport()} keeps only a handful of idle connections.
+	 * 
+	 * @param maxConnections
+	 * 		The maximum number of open connections, both in total and to BigQuery.
+	 * @return
+	 * 		A new pooled {@link HttpTransport}.
+	 * 
+	 * @throws GeneralSecurityException
+	 * @throws IOException
+	 */
+	public static HttpTransport newPooledTransport(int maxConnections) throws GeneralSecurityException, IOException
+	{
+		ApacheHttpTransport.Builder builder = new ApacheHttpTransport.Builder()
+				.trustCertificates(GoogleUtils.getCertificateTrustStore());
+		
+		HttpParams params = builder.getHttpParams();
+		ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnections));
+		HttpConnectionParams.setTcpNoDelay(params, true);
+		
+		return builder.build();
+	}
+	
 	/**
 	 * The possible values for a particular table field's "mode" value. If unspecified, a field will be
 	 * set to NULLABLE.
@@ -228,8 +453,9 @@ public class BigqueryUtils
 		FLOAT,
 		BOOLEAN,
 		/**
-		 * A timestamp in the format "YYYY-MM-dd HH:mm:ss.SS". When setting this field, you must pass a String
-		 * in that format. {@link BigqueryUtils} provides a convenience method for this called {@link BigqueryUtils#formatDate(Date)}.
+		 * A timestamp in the format "yyyy-MM-dd HH:mm:ss.SSS", in UTC. When setting this field, pass a String
+		 * in that format or the number of seconds since the epoch. {@link BigqueryUtils} provides convenience
+		 * methods for this called {@link BigqueryUtils#formatDate(Date)} and {@link BigqueryUtils#formatTimestamp(long)}.
 		 */
 		TIMESTAMP,
 		/**
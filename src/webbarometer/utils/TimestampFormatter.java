@@ -0,0 +1,163 @@
+package webbarometer.utils;
+
+/**
+ * Formats epoch milliseconds as Bigquery TIMESTAMP strings of the form "yyyy-MM-dd HH:mm:ss.SSS" in UTC.
+ *
+ * The "yyyy-MM-dd HH:mm:ss." prefix is computed once per second and cached; every other call only copies
+ * it and appends the milliseconds. The cache is an immutable object published through a plain field, so
+ * the formatter is thread-safe without locks: a thread that sees a stale entry simply recomputes it. No
+ * {@link java.util.Date} or {@link java.util.Calendar} is created, not even when the second changes.
+ */
+public final class TimestampFormatter
+{
+	/**
+	 * The length of a formatted timestamp.
+	 */
+	public static final int LENGTH = 23;
+
+	private static final int PREFIX_LENGTH = 20;
+
+	private static final class CachedSecond
+	{
+		final long second;
+		final char[] prefix;
+
+		CachedSecond(long second, char[] prefix)
+		{
+			this.second = second;
+			this.prefix = prefix;
+		}
+	}
+
+	private CachedSecond cached = new CachedSecond(Long.MIN_VALUE, null);
+
+	/**
+	 * Format a timestamp.
+	 *
+	 * @param epochMillis
+	 * 		Milliseconds since the epoch, e.g. {@link org.apache.logging.log4j.core.LogEvent#getTimeMillis()}.
+	 * @return
+	 * 		The timestamp as "yyyy-MM-dd HH:mm:ss.SSS" in UTC.
+	 */
+	public String format(long epochMillis)
+	{
+		char[] chars = new char[LENGTH];
+		formatTo(epochMillis, chars, 0);
+		return new String(chars);
+	}
+
+	/**
+	 * Append a formatted timestamp to a reusable builder instead of creating a String.
+	 *
+	 * @param epochMillis
+	 * 		Milliseconds since the epoch.
+	 * @param out
+	 * 		The builder to append to.
+	 */
+	public void formatTo(long epochMillis, StringBuilder out)
+	{
+		out.append(prefix(epochMillis));
+
+		int millis = (int) Math.floorMod(epochMillis, 1000L);
+		out.append((char) ('0' + millis / 100))
+			.append((char) ('0' + millis / 10 % 10))
+			.append((char) ('0' + millis % 10));
+	}
+
+	/**
+	 * Write a formatted timestamp into a reusable array instead of creating a String.
+	 *
+	 * @param epochMillis
+	 * 		Milliseconds since the epoch.
+	 * @param out
+	 * 		The array to write to. Must have room for {@link #LENGTH} chars from {@code offset}.
+	 * @param offset
+	 * 		Where in the array to start.
+	 * @return
+	 * 		The number of chars written, always {@link #LENGTH}.
+	 */
+	public int formatTo(long epochMillis, char[] out, int offset)
+	{
+		System.arraycopy(prefix(epochMillis), 0, out, offset, PREFIX_LENGTH);
+
+		int millis = (int) Math.floorMod(epochMillis, 1000L);
+		out[offset + PREFIX_LENGTH] = (char) ('0' + millis / 100);
+		out[offset + PREFIX_LENGTH + 1] = (char) ('0' + millis / 10 % 10);
+		out[offset + PREFIX_LENGTH + 2] = (char) ('0' + millis % 10);
+
+		return LENGTH;
+	}
+
+	/**
+	 * Convert a timestamp to the numeric form Bigquery also accepts for TIMESTAMP fields: seconds since the
+	 * epoch, with the milliseconds as the fraction.
+	 *
+	 * @param epochMillis
+	 * 		Milliseconds since the epoch.
+	 * @return
+	 * 		Seconds since the epoch.
+	 */
+	public static double toEpochSeconds(long epochMillis)
+	{
+		return epochMillis / 1000.0;
+	}
+
+	private char[] prefix(long epochMillis)
+	{
+		long second = Math.floorDiv(epochMillis, 1000L);
+
+		CachedSecond current = cached;
+		if (current.second != second)
+		{
+			current = new CachedSecond(second, formatPrefix(second));
+			cached = current;
+		}
+
+		return current.prefix;
+	}
+
+	/**
+	 * Formats "yyyy-MM-dd HH:mm:ss." for the given epoch second, using the days-to-civil-date algorithm
+	 * for the proleptic Gregorian calendar.
+	 */
+	private static char[] formatPrefix(long epochSecond)
+	{
+		long days = Math.floorDiv(epochSecond, 86400L);
+		int secondOfDay = (int) Math.floorMod(epochSecond, 86400L);
+
+		long z = days + 719468;
+		long era = Math.floorDiv(z, 146097L);
+		long dayOfEra = z - era * 146097;
+		long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		long mp = (5 * dayOfYear + 2) / 153;
+		int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+		int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+		int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+		char[] chars = new char[PREFIX_LENGTH];
+		putDigits(chars, 0, year, 4);
+		chars[4] = '-';
+		putDigits(chars, 5, month, 2);
+		chars[7] = '-';
+		putDigits(chars, 8, day, 2);
+		chars[10] = ' ';
+		putDigits(chars, 11, secondOfDay / 3600, 2);
+		chars[13] = ':';
+		putDigits(chars, 14, secondOfDay / 60 % 60, 2);
+		chars[16] = ':';
+		putDigits(chars, 17, secondOfDay % 60, 2);
+		chars[19] = '.';
+
+		return chars;
+	}
+
+	private static void putDigits(char[] chars, int offset, int value, int width)
+	{
+		for (int i = offset + width - 1; i >= offset; i--)
+		{
+			chars[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+	}
+}